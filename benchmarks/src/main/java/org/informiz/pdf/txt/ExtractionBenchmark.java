@@ -0,0 +1,121 @@
+package org.informiz.pdf.txt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openpdf.text.pdf.PdfReader;
+import org.openpdf.text.pdf.parser.PdfTextExtractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks the text extraction from synthetic documents of 1, 100 and 5,000 pages: reading the number of pages,
+ * extracting the text of a single page (with the full and the fast extractors), splitting a document into single-page
+ * files, and extracting the text from a whole document in each of the extraction modes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ExtractionBenchmark {
+
+    private static final String PREFIX = "bench.pdf";
+
+    @Param({"1", "100", "5000"})
+    public int pages;
+
+    private File pdfFile;
+    private PdfReader reader;
+    private PdfTextExtractor extractor;
+    private FastTextExtractor fastExtractor;
+    private int nextPage = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        pdfFile = Fixtures.pdf(pages);
+        reader = PdfDocumentService.openReader(pdfFile);
+        extractor = new PdfTextExtractor(reader);
+        fastExtractor = new FastTextExtractor(reader);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        reader.close();
+    }
+
+    @Benchmark
+    public int getNumPages() {
+        return PdfDocumentService.getNumPages(pdfFile);
+    }
+
+    // A single page per operation, cycling through the pages of the document
+    @Benchmark
+    public String getContent() {
+        int pageNum = nextPage++ % pages + 1;
+        return PdfDocumentService.getContent(extractor, pageNum, pageNum);
+    }
+
+    @Benchmark
+    public String getContentFast() {
+        int pageNum = nextPage++ % pages + 1;
+        return PdfDocumentService.getContent(fastExtractor, pageNum, pageNum);
+    }
+
+    @Benchmark
+    public void splitPdf(SplitFolder folder) {
+        PdfDocumentService.splitPdf(pdfFile, folder.path.toFile(), PREFIX);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MINUTES)
+    public int pdfToTxtSinglePass(Blackhole blackhole) throws IOException {
+        return Utils.pdfToTxt(pdfFile, PREFIX, blackhole::consume, Utils.ExtractionMode.SINGLE_PASS);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MINUTES)
+    public int pdfToTxtSplit(SplitFolder folder, Blackhole blackhole) throws IOException {
+        return Utils.pdfToTxt(pdfFile, PREFIX, blackhole::consume, Utils.ExtractionMode.SPLIT);
+    }
+
+    /**
+     * A folder for the single-page files, emptied after every operation so the disk doesn't fill up.
+     * Splitting in pdfToTxt uses its own temp folders, these are removed as well.
+     */
+    @State(Scope.Thread)
+    public static class SplitFolder {
+        Path path;
+
+        @Setup(Level.Invocation)
+        public void create() throws IOException {
+            path = Files.createTempDirectory("bench_split");
+        }
+
+        @TearDown(Level.Invocation)
+        public void delete() throws IOException {
+            Fixtures.delete(path);
+            try (Stream<Path> tmp = Files.list(Path.of(System.getProperty("java.io.tmpdir")))) {
+                for (Path dir : tmp.filter(p -> p.getFileName().toString().startsWith("split_" + PREFIX)).toList())
+                    Fixtures.delete(dir);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.informiz.pdf.txt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * Locates and creates the files used by the benchmarks.
+ * Synthetic PDF files are created once under the fixtures folder (-Dfixtures.dir, by default a folder in the temp
+ * folder) and reused by later runs. The text corpus is read from -Dcorpus.dir, by default the converted text under
+ * src/test/resources of the main project.
+ */
+public class Fixtures {
+
+    private static final int LINES_PER_PAGE = 50;
+
+    public static File pdf(int numPages) throws IOException {
+        File folder = new File(System.getProperty("fixtures.dir",
+                new File(System.getProperty("java.io.tmpdir"), "pdf-to-text-fixtures").getPath()));
+        if (! folder.exists() && ! folder.mkdirs())
+            throw new IllegalStateException("Failed to create fixtures folder " + folder.getAbsolutePath());
+        return SyntheticPdf.generate(folder, numPages);
+    }
+
+    /**
+     * @return the text of the converted documents, in pages of 50 lines
+     */
+    public static List<String> corpusPages() throws IOException {
+        File corpus = new File(System.getProperty("corpus.dir", "src/test/resources/converted"));
+        if (! corpus.isDirectory())
+            corpus = new File("..", corpus.getPath()); // run from the benchmarks folder
+        if (! corpus.isDirectory())
+            throw new IllegalStateException("Corpus folder not found, set -Dcorpus.dir=/full/path/to/converted");
+
+        List<String> pages = new ArrayList<>();
+        for (File file : Objects.requireNonNull(corpus.listFiles())) {
+            List<String> lines = Files.readAllLines(file.toPath());
+            for (int i = 0; i < lines.size(); i += LINES_PER_PAGE)
+                pages.add(String.join("\n", lines.subList(i, Math.min(i + LINES_PER_PAGE, lines.size()))));
+        }
+        return pages;
+    }
+
+    public static void delete(Path path) throws IOException {
+        if (! Files.exists(path))
+            return;
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(p);
+        }
+    }
+}
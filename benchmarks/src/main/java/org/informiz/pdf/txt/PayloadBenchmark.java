@@ -0,0 +1,75 @@
+package org.informiz.pdf.txt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks building the bulk-request payload of a single page, as done when uploading text-pages to ElasticSearch,
+ * from pages of the converted text under src/test/resources/converted: from the page text (when streaming) and from
+ * a text-page file (when uploading the text_pages folder).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PayloadBenchmark {
+
+    private List<String> pages;
+    private final List<Path> pageFiles = new ArrayList<>();
+    private Path pagesFolder;
+    private BulkPayloadWriter payload;
+    private int nextPage = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        pages = Fixtures.corpusPages();
+        pagesFolder = Files.createTempDirectory("bench_pages");
+        for (int i = 0; i < pages.size(); i++) {
+            Path file = pagesFolder.resolve("bench.pdf_page" + (i + 1) + ".pdf.txt");
+            PdfDocumentService.writeText(pages.get(i), file.toFile(), i + 1);
+            pageFiles.add(file);
+        }
+        payload = new BulkPayloadWriter(ElasticSearchService.PAGES_IDX);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(pagesFolder);
+    }
+
+    @Benchmark
+    public int fromText() {
+        int i = nextPage++ % pages.size();
+        int size = payload.writePage("bench.pdf_page1.pdf.txt", "bench", i + 1, pages.get(i)).size();
+        payload.reset();
+        return size;
+    }
+
+    @Benchmark
+    public int fromFile() throws IOException {
+        int i = nextPage++ % pageFiles.size();
+        Path file = pageFiles.get(i);
+        int size = payload.writePage(file.getFileName().toString(), "bench", i + 1, file).size();
+        payload.reset();
+        return size;
+    }
+}
@@ -0,0 +1,65 @@
+package org.informiz.pdf.txt;
+
+import org.openpdf.text.Document;
+import org.openpdf.text.Paragraph;
+import org.openpdf.text.pdf.PdfWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Generates PDF documents with a given number of text pages, to be used as benchmark fixtures.
+ * The text is generated from a fixed seed, so the same number of pages always produces the same text.
+ */
+public class SyntheticPdf {
+
+    private static final long SEED = 20260101L;
+    private static final int PARAGRAPHS_PER_PAGE = 6;
+    private static final int WORDS_PER_PARAGRAPH = 60;
+
+    private static final String[] WORDS = {
+            "flight", "log", "passenger", "island", "invoice", "account", "transfer", "meeting", "schedule", "note",
+            "Palm", "Beach", "New", "York", "London", "Paris", "January", "February", "March", "April", "1997",
+            "2002", "2005", "06/07/2008", "deposition", "exhibit", "witness", "counsel", "page", "the", "of", "and",
+            "to", "in", "a", "was", "for", "on", "with", "by", "at", "from", "that", "this", "received", "sent"
+    };
+
+    /**
+     * Create a PDF file with the given number of pages in the folder, unless it already exists.
+     * @return the PDF file, named e.g. synthetic_100.pdf
+     */
+    public static File generate(File folder, int numPages) throws IOException {
+        File pdfFile = new File(folder, "synthetic_" + numPages + ".pdf");
+        if (pdfFile.exists())
+            return pdfFile;
+
+        Random random = new Random(SEED);
+        Document document = new Document();
+        try (OutputStream out = new FileOutputStream(pdfFile)) {
+            PdfWriter.getInstance(document, out);
+            document.open();
+            for (int page = 1; page <= numPages; page++) {
+                if (page > 1)
+                    document.newPage();
+                document.add(new Paragraph("Page " + page));
+                for (int i = 0; i < PARAGRAPHS_PER_PAGE; i++)
+                    document.add(new Paragraph(paragraph(random)));
+            }
+            document.close();
+        }
+        return pdfFile;
+    }
+
+    private static String paragraph(Random random) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < WORDS_PER_PARAGRAPH; i++) {
+            if (i > 0)
+                text.append(' ');
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.append('.').toString();
+    }
+}
@@ -0,0 +1,353 @@
+package org.informiz.pdf.txt;
+
+import co.elastic.clients.transport.rest5_client.low_level.Request;
+import co.elastic.clients.transport.rest5_client.low_level.RequestOptions;
+import co.elastic.clients.transport.rest5_client.low_level.Response;
+import co.elastic.clients.transport.rest5_client.low_level.ResponseException;
+import co.elastic.clients.transport.rest5_client.low_level.ResponseListener;
+import co.elastic.clients.transport.rest5_client.low_level.Rest5Client;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.ObjectMapper;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static java.lang.System.exit;
+import static org.informiz.pdf.txt.Utils.getIntOption;
+
+/**
+ * Sends documents to ElasticSearch in bulk requests. Documents are batched by size and count, and several bulk
+ * requests may be in flight concurrently; adding documents blocks when all of them are busy. The response of each
+ * bulk request is checked item by item, and only the items rejected by ElasticSearch (e.g., 429 - too many requests)
+ * are retried, with exponential backoff.
+ */
+public class BulkIndexer implements Closeable {
+
+    /**
+     * Bulk indexing settings.
+     * @param maxBytes send a bulk request once the batch reaches this size
+     * @param maxDocs send a bulk request once the batch reaches this number of documents
+     * @param concurrency max number of bulk requests in flight
+     * @param maxRetries max number of times a rejected document is re-sent
+     */
+    public record Config(long maxBytes, int maxDocs, int concurrency, int maxRetries) {
+
+        public static final Config DEFAULT = new Config(5 * 1024 * 1024, 1000, 4, 5);
+
+        public Config {
+            if (maxBytes < 1 || maxDocs < 1 || concurrency < 1)
+                throw new IllegalArgumentException("The bulk size, docs and concurrency must be at least 1");
+            if (maxRetries < 0)
+                throw new IllegalArgumentException("The bulk retries must be at least 0");
+        }
+
+        // E.g. --bulk-size-mb=10 --bulk-docs=2000 --bulk-concurrency=8 --bulk-retries=3
+        public static Config fromArgs(String[] args) {
+            try {
+                return new Config(
+                        getIntOption(args, "--bulk-size-mb", (int) (DEFAULT.maxBytes >> 20)) * 1024L * 1024L,
+                        getIntOption(args, "--bulk-docs", DEFAULT.maxDocs),
+                        getIntOption(args, "--bulk-concurrency", DEFAULT.concurrency),
+                        getIntOption(args, "--bulk-retries", DEFAULT.maxRetries));
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.out.println("Usage: --bulk-size-mb=N --bulk-docs=N --bulk-concurrency=N (N >= 1), " +
+                        "--bulk-retries=N (N >= 0)");
+                exit(1);
+                return null;
+            }
+        }
+    }
+
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+    private static final ObjectMapper MAPPER = new JsonMapper();
+    private static final long INITIAL_BACKOFF_MS = 200;
+    private static final long MAX_BACKOFF_MS = 30_000;
+    private static final int MAX_LOGGED_FAILURES = 20;
+
+    // A single document in a batch: the action line followed by the source line, at [offset, offset + length)
+    private record Item(String id, int offset, int length) { }
+
+    // A bulk request body and the documents in it
+    private record Batch(byte[] body, int size, List<Item> items) { }
+
+    private final Rest5Client client;
+    private final String index;
+    private final Config config;
+    private final RequestOptions options;
+
+    private final Semaphore inFlight;
+    private final Phaser pending = new Phaser(1);
+    private final ScheduledExecutorService retryScheduler;
+
+    // Request bodies are reused once their requests complete, so building the payload doesn't allocate per document
+    private final Queue<byte[]> bodyPool = new ConcurrentLinkedQueue<>();
+    private byte[] body;
+    private int bodySize = 0;
+    private List<Item> items = new ArrayList<>();
+
+    private Consumer<List<String>> onIndexed = ids -> { };
+
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+
+    public BulkIndexer(EsTransport transport, String index, Config config) {
+        this.client = transport.client();
+        this.index = index;
+        this.config = config;
+        this.options = transport.options();
+        this.inFlight = new Semaphore(config.concurrency());
+        this.body = newBody();
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bulk-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        PipelineMetrics.gauge("bulk-requests-in-flight", () -> config.concurrency() - inFlight.availablePermits());
+    }
+
+    /**
+     * Set a listener that is called with the ids of the documents acknowledged by ElasticSearch. The listener is
+     * called from the HTTP client threads, once per bulk response.
+     */
+    public BulkIndexer onIndexed(Consumer<List<String>> listener) {
+        this.onIndexed = listener;
+        return this;
+    }
+
+    /**
+     * Add a document to the current batch, sending the batch if it's full.
+     * @param id the document id, used for reporting failures
+     * @param ndjson the action line and the source line of the document, each terminated by a newline
+     */
+    public void add(String id, String ndjson) {
+        byte[] bytes = ndjson.getBytes(StandardCharsets.UTF_8);
+        add(id, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Add a document to the current batch, see {@link #add(String, String)}. The bytes are copied, so the caller
+     * may reuse its buffer.
+     */
+    public synchronized void add(String id, byte[] ndjson, int offset, int length) {
+        if (bodySize + length > body.length)
+            body = Arrays.copyOf(body, Math.max(body.length * 2, bodySize + length));
+        System.arraycopy(ndjson, offset, body, bodySize, length);
+        items.add(new Item(id, bodySize, length));
+        bodySize += length;
+
+        if (items.size() >= config.maxDocs() || bodySize >= config.maxBytes())
+            flush();
+    }
+
+    /**
+     * Send the current batch, blocking while the max number of bulk requests are in flight.
+     */
+    public synchronized void flush() {
+        if (items.isEmpty())
+            return;
+        Batch batch = new Batch(body, bodySize, items);
+        body = newBody();
+        bodySize = 0;
+        items = new ArrayList<>();
+        send(batch, 0);
+    }
+
+    /**
+     * Send the remaining documents and wait for all the bulk requests, including retries, to complete.
+     */
+    @Override
+    public void close() {
+        flush();
+        pending.arriveAndAwaitAdvance();
+        retryScheduler.shutdown();
+        PipelineMetrics.removeGauge("bulk-requests-in-flight");
+    }
+
+    public long getIndexed() {
+        return indexed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    public String summary() {
+        return String.format("%d documents indexed, %d failed, %d retries", indexed.get(), failed.get(),
+                retried.get());
+    }
+
+    private byte[] newBody() {
+        byte[] pooled = bodyPool.poll();
+        return pooled != null ? pooled : new byte[(int) Math.min(config.maxBytes() + (config.maxBytes() >> 2),
+                Integer.MAX_VALUE - 8)];
+    }
+
+    private void release(Batch batch) {
+        // Keep one body per request in flight (retried batches have smaller bodies, those aren't reused)
+        if (batch.body().length >= config.maxBytes() && bodyPool.size() < config.concurrency())
+            bodyPool.offer(batch.body());
+    }
+
+    private void send(Batch batch, int attempt) {
+        inFlight.acquireUninterruptibly();
+        pending.register();
+
+        Request request = new Request("POST", "/" + index + "/_bulk");
+        request.setEntity(new ByteArrayEntity(batch.body(), 0, batch.size(), NDJSON));
+        request.setOptions(options);
+
+        long start = PipelineMetrics.start();
+        client.performRequestAsync(request, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                PipelineMetrics.bulkCompleted(index, start, batch.items().size(), batch.size(),
+                        response.getStatusCode(), attempt);
+                try {
+                    handleResponse(batch, attempt, response);
+                } catch (Exception e) {
+                    handleFailure(batch, batch.items(), attempt, e);
+                } finally {
+                    done(batch);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                PipelineMetrics.bulkCompleted(index, start, batch.items().size(), batch.size(),
+                        e instanceof ResponseException re ? re.getResponse().getStatusCode() : 0, attempt);
+                try {
+                    handleFailure(batch, batch.items(), attempt, e);
+                } finally {
+                    done(batch);
+                }
+            }
+        });
+    }
+
+    private void done(Batch batch) {
+        release(batch);
+        inFlight.release();
+        pending.arriveAndDeregister();
+    }
+
+    private void handleResponse(Batch batch, int attempt, Response response) throws IOException {
+        JsonNode result;
+        try (InputStream content = response.getEntity().getContent()) {
+            result = MAPPER.readTree(content);
+        }
+
+        List<Item> items = batch.items();
+        if (! result.path("errors").asBoolean()) {
+            indexed.addAndGet(items.size());
+            onIndexed.accept(items.stream().map(Item::id).toList());
+            return;
+        }
+
+        // Response items are in the same order as the request items
+        JsonNode responseItems = result.path("items");
+        List<String> acknowledged = new ArrayList<>();
+        List<Item> rejected = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            JsonNode action = responseItems.path(i).path("index");
+            if (action.isMissingNode())
+                action = responseItems.path(i).path("create");
+            int status = action.path("status").asInt();
+
+            if (status >= 200 && status < 300) {
+                indexed.incrementAndGet();
+                acknowledged.add(items.get(i).id());
+            } else if (isRetryable(status)) {
+                rejected.add(items.get(i));
+            } else {
+                reportFailure(items.get(i).id(), status + " " + action.path("error"));
+            }
+        }
+        onIndexed.accept(acknowledged);
+        retry(batch, rejected, attempt, "rejected by ElasticSearch");
+    }
+
+    private void handleFailure(Batch batch, List<Item> items, int attempt, Exception e) {
+        int status = e instanceof ResponseException re ? re.getResponse().getStatusCode() : 0;
+        if (status == 0 || isRetryable(status)) {
+            retry(batch, items, attempt, e.getMessage());
+        } else {
+            for (Item item : items)
+                reportFailure(item.id(), e.getMessage());
+        }
+    }
+
+    // 429 when the ElasticSearch queues are full, 502-504 when nodes or shards are unavailable
+    private static boolean isRetryable(int status) {
+        return status == 429 || (status >= 502 && status <= 504);
+    }
+
+    // Copies the items into a new batch, so the body of the original batch can be reused
+    private void retry(Batch original, List<Item> items, int attempt, String reason) {
+        if (items.isEmpty())
+            return;
+
+        if (attempt >= config.maxRetries()) {
+            for (Item item : items)
+                reportFailure(item.id(), "gave up after " + attempt + " retries, " + reason);
+            return;
+        }
+
+        int size = 0;
+        for (Item item : items)
+            size += item.length();
+        byte[] retryBody = new byte[size];
+        List<Item> retryItems = new ArrayList<>(items.size());
+        int offset = 0;
+        for (Item item : items) {
+            System.arraycopy(original.body(), item.offset(), retryBody, offset, item.length());
+            retryItems.add(new Item(item.id(), offset, item.length()));
+            offset += item.length();
+        }
+        Batch batch = new Batch(retryBody, size, retryItems);
+
+        retried.addAndGet(items.size());
+        // The shift is clamped, a large number of retries would overflow it
+        long backoff = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(attempt, 20));
+        backoff += ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+
+        pending.register();
+        retryScheduler.schedule(() -> {
+            try {
+                send(batch, attempt + 1);
+            } finally {
+                pending.arriveAndDeregister();
+            }
+        }, backoff, TimeUnit.MILLISECONDS);
+    }
+
+    private void reportFailure(String id, String reason) {
+        if (failed.incrementAndGet() <= MAX_LOGGED_FAILURES)
+            System.err.println("Failed to index " + id + ": " + reason);
+        else if (failed.get() == MAX_LOGGED_FAILURES + 1)
+            System.err.println("More indexing failures, see the summary for the total count");
+    }
+}
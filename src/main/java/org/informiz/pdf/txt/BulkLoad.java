@@ -0,0 +1,233 @@
+package org.informiz.pdf.txt;
+
+import co.elastic.clients.transport.rest5_client.low_level.Request;
+import co.elastic.clients.transport.rest5_client.low_level.Response;
+import co.elastic.clients.transport.rest5_client.low_level.ResponseException;
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.ObjectMapper;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads an index from scratch without exposing a half-loaded index to searchers: the pages (or records) are indexed
+ * into a new versioned index, e.g. pages_20261017-142501, created with refresh disabled, no replicas and an
+ * asynchronous translog, which makes bulk indexing much faster. Once the load is done, the settings are restored
+ * (the replicas of the previous index, or the defaults), the index is refreshed and optionally force-merged, and the
+ * alias, e.g. pages, is moved from the previous index to the new one in a single atomic request. The previous index
+ * is then deleted, unless it should be kept (e.g. for a rollback).
+ * A load that fails, including one where some of the documents could not be indexed, deletes its index, and
+ * searchers keep using the previous one.
+ */
+public class BulkLoad {
+
+    private static final ObjectMapper MAPPER = new JsonMapper();
+    private static final DateTimeFormatter VERSION_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private static final String LOAD_SETTINGS = """
+            "settings": {
+                "index": {
+                    "refresh_interval": "-1",
+                    "number_of_replicas": 0,
+                    "translog.durability": "async"
+                }
+              },""";
+
+    private static final long MERGE_POLL_MS = 10_000;
+
+    // Sends a request to ElasticSearch, returning the response body (empty for HEAD requests), or null if the index
+    // or alias was not found. Replaced in tests.
+    @FunctionalInterface
+    interface Requests {
+        JsonNode perform(String method, String endpoint, String body, Map<String, String> parameters)
+                throws IOException;
+    }
+
+    private final String alias;
+    private final String index;
+    private final Requests requests;
+
+    private BulkLoad(String alias, String index, Requests requests) {
+        this.alias = alias;
+        this.index = index;
+        this.requests = requests;
+    }
+
+    /**
+     * Create a new versioned index for the alias, with the given mappings and with the settings for bulk loading.
+     */
+    public static BulkLoad start(String alias, String mappings) throws IOException {
+        return start(alias, mappings, BulkLoad::send);
+    }
+
+    static BulkLoad start(String alias, String mappings, Requests requests) throws IOException {
+        BulkLoad load = new BulkLoad(alias, alias + "_" + LocalDateTime.now().format(VERSION_FORMAT), requests);
+        // The mappings are a JSON object, the settings are added as its first field
+        load.perform("PUT", "/" + load.index, "{" + LOAD_SETTINGS + mappings.strip().substring(1));
+        System.out.println("Bulk-loading into a new index " + load.index + ", " + alias + " still points to " +
+                describe(load.currentIndices()));
+        return load;
+    }
+
+    /**
+     * @return the index to load the pages into
+     */
+    public String index() {
+        return index;
+    }
+
+    /**
+     * Finish the load if all the documents were indexed, otherwise abort it, so searchers never see an incomplete
+     * index.
+     * @param failed the number of documents that could not be indexed
+     * @throws IllegalStateException if some documents failed
+     */
+    public void complete(long failed, boolean forceMerge, boolean keepPrevious) throws IOException {
+        if (failed > 0) {
+            abort();
+            throw new IllegalStateException(failed + " documents could not be indexed, " + alias + " was not changed");
+        }
+        finish(forceMerge, keepPrevious);
+    }
+
+    /**
+     * Restore the settings of the loaded index, and move the alias to it. If that fails before the alias is moved,
+     * the load is aborted.
+     * @param forceMerge merge the index into a single segment before moving the alias, for faster searches
+     * @param keepPrevious keep the indices the alias pointed to, instead of deleting them
+     */
+    public void finish(boolean forceMerge, boolean keepPrevious) throws IOException {
+        List<String> previous;
+        boolean concreteIndex;
+        List<String> actions = new ArrayList<>();
+        try {
+            previous = currentIndices();
+            String replicas = previous.isEmpty() ? null : replicas(previous.get(0));
+            perform("PUT", "/" + index + "/_settings", String.format("""
+                    { "index": {
+                        "refresh_interval": null,
+                        "number_of_replicas": %s,
+                        "translog.durability": null
+                      }
+                    }""", replicas == null ? "null" : "\"" + replicas + "\""));
+            perform("POST", "/" + index + "/_refresh", null);
+            if (forceMerge)
+                forceMerge();
+
+            // Before the first bulk-load, the alias is the name of the index itself, which is replaced by the alias
+            concreteIndex = previous.isEmpty() && requests.perform("HEAD", "/" + alias, null, Map.of()) != null;
+            if (concreteIndex)
+                actions.add(String.format("{ \"remove_index\": { \"index\": \"%s\" } }", alias));
+            for (String previousIndex : previous)
+                actions.add(String.format("{ \"remove\": { \"index\": \"%s\", \"alias\": \"%s\" } }",
+                        previousIndex, alias));
+            actions.add(String.format("{ \"add\": { \"index\": \"%s\", \"alias\": \"%s\" } }", index, alias));
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+
+        perform("POST", "/_aliases", "{ \"actions\": [ " + String.join(", ", actions) + " ] }");
+        System.out.println(alias + " now points to " + index + (concreteIndex ? ", the previous " + alias +
+                " index was deleted" : ", previously " + describe(previous)));
+
+        if (keepPrevious)
+            return;
+        for (String previousIndex : previous) {
+            perform("DELETE", "/" + previousIndex, null);
+            System.out.println("Deleted the previous index " + previousIndex);
+        }
+    }
+
+    /**
+     * Delete the index of a load that failed, leaving the alias as it was.
+     */
+    public void abort() {
+        try {
+            perform("DELETE", "/" + index, null);
+            System.out.println("Bulk-load failed, deleted " + index + ", " + alias + " was not changed");
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Bulk-load failed, and " + index + " could not be deleted: " + e);
+        }
+    }
+
+    // Force-merges in the background, since it may take longer than the request timeout
+    private void forceMerge() throws IOException {
+        System.out.println("Force-merging " + index + "...");
+        String taskId = requests.perform("POST", "/" + index + "/_forcemerge", null,
+                Map.of("max_num_segments", "1", "wait_for_completion", "false")).path("task").asString();
+        while (! perform("GET", "/_tasks/" + taskId, null).path("completed").asBoolean()) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(MERGE_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while force-merging " + index, e);
+            }
+        }
+    }
+
+    // The indices the alias points to, empty if there's no such alias
+    private List<String> currentIndices() throws IOException {
+        List<String> indices = new ArrayList<>();
+        JsonNode aliases = requests.perform("GET", "/_alias/" + alias, null, Map.of());
+        if (aliases != null) {
+            for (Map.Entry<String, JsonNode> entry : aliases.properties())
+                indices.add(entry.getKey());
+        }
+        return indices;
+    }
+
+    private String replicas(String index) throws IOException {
+        JsonNode settings = perform("GET", "/" + index + "/_settings/index.number_of_replicas", null);
+        JsonNode replicas = settings.path(index).path("settings").path("index").path("number_of_replicas");
+        return replicas.isMissingNode() ? null : replicas.asString();
+    }
+
+    private static String describe(List<String> indices) {
+        return indices.isEmpty() ? "no index" : String.join(", ", indices);
+    }
+
+    // Same as the request, but a missing index or alias is an error
+    private JsonNode perform(String method, String endpoint, String body) throws IOException {
+        JsonNode response = requests.perform(method, endpoint, body, Map.of());
+        if (response == null)
+            throw new IllegalStateException(endpoint + " was not found");
+        return response;
+    }
+
+    private static JsonNode send(String method, String endpoint, String body, Map<String, String> parameters)
+            throws IOException {
+        EsTransport transport = EsTransport.shared();
+        Request request = new Request(method, endpoint);
+        parameters.forEach(request::addParameter);
+        if (body == null) {
+            request.setOptions(transport.options());
+        } else {
+            request.setJsonEntity(body);
+            request.setOptions(transport.jsonOptions());
+        }
+
+        Response response;
+        try {
+            response = transport.client().performRequest(request);
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusCode() == 404)
+                return null;
+            throw e;
+        }
+        if (response.getStatusCode() == 404)
+            return null;
+        if (response.getEntity() == null)
+            return MAPPER.createObjectNode();
+        try (InputStream content = response.getEntity().getContent()) {
+            return MAPPER.readTree(content);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package org.informiz.pdf.txt;
+
+import tools.jackson.core.JacksonException;
+import tools.jackson.core.JsonGenerator;
+import tools.jackson.core.JsonParser;
+import tools.jackson.core.JsonToken;
+import tools.jackson.databind.ObjectMapper;
+import tools.jackson.databind.ObjectWriter;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * Builds the NDJSON lines of bulk index requests. The page text is JSON-escaped and written as UTF-8 by a Jackson
+ * streaming generator into a reusable buffer, so encoding a page doesn't create intermediate strings; text-page files
+ * are decoded into a reusable char buffer as well. The text is kept verbatim, including quotes, backslashes, line
+ * breaks and control characters. Malformed UTF-8 in text-page files is replaced, so a bad page can't break the bulk
+ * request it's in.
+ * Records that are already JSON (see {@link #sendRecords(Path, BulkIndexer)}) are copied into the payload as bytes,
+ * without being decoded and encoded again.
+ * A writer is not thread-safe, each thread should use its own writer.
+ */
+public class BulkPayloadWriter {
+
+    // No separator between root-level values, each line is terminated explicitly
+    private static final ObjectMapper MAPPER = new JsonMapper();
+    private static final ObjectWriter WRITER = MAPPER.writer().withRootValueSeparator("");
+
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    // Record files are read in chunks of this size (or larger, to fit a long line)
+    private static final int RECORDS_CHUNK = 1024 * 1024;
+
+    private final String index;
+    private final int recordsChunk;
+    private final Buffer out = new Buffer(INITIAL_CAPACITY);
+    private final JsonGenerator generator;
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer bytes;
+    private CharBuffer chars = CharBuffer.allocate(INITIAL_CAPACITY);
+
+    public BulkPayloadWriter(String index) {
+        this(index, RECORDS_CHUNK);
+    }
+
+    // With another chunk size for reading record files, e.g. a tiny one to test lines that span chunks
+    BulkPayloadWriter(String index, int recordsChunk) {
+        this.index = index;
+        this.recordsChunk = recordsChunk;
+        this.bytes = ByteBuffer.allocate(Math.min(INITIAL_CAPACITY, recordsChunk));
+        this.generator = WRITER.createGenerator(out);
+    }
+
+    /**
+     * Append the action line and the source line for a text-page.
+     * @param id the document id
+     * @param origFile the original file name
+     * @param pageNum the page number in the original file
+     * @param text the page text
+     */
+    public BulkPayloadWriter writePage(String id, String origFile, int pageNum, String text) {
+        long start = PipelineMetrics.start();
+        int startSize = out.size();
+        writeAction(id);
+        writePageStart(origFile, pageNum);
+        generator.writeString(text);
+        writePageEnd(start, startSize);
+        return this;
+    }
+
+    /**
+     * Append the action line and the source line for a text-page, reading the text from a text-page file.
+     */
+    public BulkPayloadWriter writePage(String id, String origFile, int pageNum, Path txtFile) throws IOException {
+        long start = PipelineMetrics.start();
+        int startSize = out.size();
+        int length = readText(txtFile);
+        writeAction(id);
+        writePageStart(origFile, pageNum);
+        generator.writeString(chars.array(), 0, length);
+        writePageEnd(start, startSize);
+        return this;
+    }
+
+    /**
+     * Append the action line and the source line for a text-page that duplicates another page: a pointer to the other
+     * page, without the text (see {@link PageDeduplicator}).
+     * @param canonicalId the document id of the page it duplicates
+     */
+    public BulkPayloadWriter writePointer(String id, String origFile, int pageNum, String canonicalId,
+                                          PageDeduplicator.Kind kind) {
+        long start = PipelineMetrics.start();
+        int startSize = out.size();
+        writeAction(id);
+        generator.writeStartObject();
+        generator.writeStringProperty("origFile", origFile);
+        generator.writeNumberProperty("page", pageNum);
+        generator.writeStringProperty("duplicateOf", canonicalId);
+        generator.writeStringProperty("duplicate", kind.name().toLowerCase());
+        writePageEnd(start, startSize);
+        return this;
+    }
+
+    /**
+     * Append the action line and a record that is already a single line of JSON, as is.
+     * @param record the UTF-8 bytes of the record, without a line-break
+     */
+    public BulkPayloadWriter writeRecord(String id, byte[] record, int offset, int length) {
+        long start = PipelineMetrics.start();
+        int startSize = out.size();
+        writeAction(id);
+        generator.flush();
+        out.write(record, offset, length);
+        out.write('\n');
+        PipelineMetrics.record(PipelineMetrics.Stage.PAYLOAD, start, out.size() - startSize);
+        return this;
+    }
+
+    /**
+     * Send the records in a record file to the bulk indexer, reading the file in chunks and splitting it into lines as
+     * bytes. A '.record' file holds a single record on its first line, whose id is the file name. A '.ndjson' file
+     * holds a record per line, whose id is made of its origFile and page fields - the same id as the '.record' file of
+     * the page, e.g. dir_file.pdf_page12.pdf.txt.record - or of the file name and line number if it has none.
+     * @return the number of records sent
+     */
+    public int sendRecords(Path recordFile, BulkIndexer indexer) throws IOException {
+        return sendRecords(recordFile, id -> sendTo(indexer, id));
+    }
+
+    // Writes each record and calls send with its id, which passes on the lines written so far and clears the buffer
+    int sendRecords(Path recordFile, Consumer<String> send) throws IOException {
+        String fileName = recordFile.getFileName().toString();
+        boolean singleRecord = ! fileName.endsWith(".ndjson");
+        if (! singleRecord && bytes.capacity() < recordsChunk)
+            bytes = ByteBuffer.allocate(recordsChunk);
+
+        int records = 0;
+        long lineNum = 0;
+        try (FileChannel channel = FileChannel.open(recordFile)) {
+            bytes.clear();
+            int scanned = 0;
+            while (true) {
+                int read = channel.read(bytes);
+                byte[] array = bytes.array();
+                int end = bytes.position();
+                int lineStart = 0;
+                for (int i = scanned; i < end || (read < 0 && lineStart < end); i++) {
+                    if (i < end && array[i] != '\n')
+                        continue;
+                    lineNum++;
+                    int length = trimmedLength(array, lineStart, i);
+                    if (length > 0) {
+                        String id = singleRecord ? fileName : recordId(array, lineStart, length, fileName, lineNum);
+                        writeRecord(id, array, lineStart, length);
+                        send.accept(id);
+                        records++;
+                        if (singleRecord)
+                            return records;
+                    }
+                    lineStart = i + 1;
+                }
+                if (read < 0)
+                    return records;
+
+                // Keep the partial line, at the start of the buffer (or a larger one, if the line fills it)
+                int partial = end - lineStart;
+                if (partial == array.length) {
+                    bytes = ByteBuffer.allocate(2 * array.length);
+                    bytes.put(array, 0, partial);
+                } else {
+                    System.arraycopy(array, lineStart, array, 0, partial);
+                    bytes.position(partial);
+                }
+                scanned = partial;
+            }
+        }
+    }
+
+    // The length of a line without trailing whitespace (e.g. a '\r' before the line-break)
+    private static int trimmedLength(byte[] array, int start, int end) {
+        while (end > start && (array[end - 1] == '\r' || array[end - 1] == ' ' || array[end - 1] == '\t'))
+            end--;
+        return end - start;
+    }
+
+    // Reads only the origFile and page fields of a record, skipping over the other fields (e.g. the text) without
+    // decoding them
+    private static String recordId(byte[] array, int offset, int length, String fileName, long lineNum) {
+        String origFile = null;
+        int page = -1;
+        try (JsonParser parser = MAPPER.createParser(array, offset, length)) {
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                while ((origFile == null || page < 0) && parser.nextToken() == JsonToken.PROPERTY_NAME) {
+                    String name = parser.currentName();
+                    JsonToken value = parser.nextToken();
+                    if ("origFile".equals(name) && value == JsonToken.VALUE_STRING)
+                        origFile = parser.getString();
+                    else if ("page".equals(name) && value == JsonToken.VALUE_NUMBER_INT)
+                        page = parser.getIntValue();
+                    else if ("page".equals(name) && value == JsonToken.VALUE_STRING)
+                        page = Integer.parseInt(parser.getString().strip());
+                    else
+                        parser.skipChildren();
+                }
+            }
+        } catch (JacksonException | NumberFormatException e) {
+            // malformed records are reported by ElasticSearch
+        }
+        return origFile != null && page >= 0 ?
+                origFile + ".pdf_page" + page + ".pdf.txt.record" : fileName + "_line" + lineNum;
+    }
+
+    /**
+     * Pass the lines written so far to the bulk indexer as a single document, and clear the buffer.
+     */
+    public void sendTo(BulkIndexer indexer, String id) {
+        generator.flush();
+        indexer.add(id, out.array(), 0, out.size());
+        out.reset();
+    }
+
+    /**
+     * @return the lines written so far, as UTF-8 bytes
+     */
+    public byte[] toByteArray() {
+        generator.flush();
+        return out.toByteArray();
+    }
+
+    public int size() {
+        generator.flush();
+        return out.size();
+    }
+
+    public void reset() {
+        generator.flush();
+        out.reset();
+    }
+
+    private void writeAction(String id) {
+        generator.writeStartObject();
+        generator.writeName("index");
+        generator.writeStartObject();
+        generator.writeStringProperty("_index", index);
+        generator.writeStringProperty("_id", id);
+        generator.writeEndObject();
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+    }
+
+    private void writePageStart(String origFile, int pageNum) {
+        generator.writeStartObject();
+        generator.writeStringProperty("origFile", origFile);
+        generator.writeNumberProperty("page", pageNum);
+        generator.writeName("txt");
+    }
+
+    // The generator is flushed after every page, so the buffer size is up to date when the next page starts
+    private void writePageEnd(long start, int startSize) {
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+        generator.flush();
+        PipelineMetrics.record(PipelineMetrics.Stage.PAYLOAD, start, out.size() - startSize);
+    }
+
+    // Reads a text-page file into the char buffer and returns the text length, without the line-break that was
+    // added after the text when the page was written
+    private int readText(Path txtFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(txtFile)) {
+            long size = channel.size();
+            if (size > bytes.capacity())
+                bytes = ByteBuffer.allocate((int) Math.max(size, 2L * bytes.capacity()));
+            bytes.clear();
+            while (bytes.hasRemaining() && channel.read(bytes) > 0) {
+                // keep reading until the buffer is full or the end of the file
+            }
+            bytes.flip();
+        }
+
+        // UTF-8 never decodes into more chars than bytes
+        if (bytes.remaining() > chars.capacity())
+            chars = CharBuffer.allocate(Math.max(bytes.remaining(), 2 * chars.capacity()));
+        chars.clear();
+        decoder.reset();
+        decoder.decode(bytes, chars, true);
+        decoder.flush(chars);
+
+        int length = chars.position();
+        if (length > 0 && chars.get(length - 1) == '\n')
+            length--;
+        if (length > 0 && chars.get(length - 1) == '\r')
+            length--;
+        return length;
+    }
+
+    // Exposes the internal array, so the bytes can be passed on without copying
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
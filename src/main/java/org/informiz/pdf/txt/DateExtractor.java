@@ -0,0 +1,149 @@
+package org.informiz.pdf.txt;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds dates in page text and converts them to ISO dates (e.g. 2020-10-20), the same way as parse_date in
+ * nlp/process.py: a date is parsed with the first matching format of SUPPORTED_DATE_FORMATS, falling back to
+ * extracting all the m/d/y dates in it.
+ * Since there's no NER model to point at the dates, candidates are found with a single pre-compiled pattern covering
+ * the supported formats. Text without digits can't contain a supported date, so it's skipped without running the
+ * pattern. Bare years (the '%Y' format) are only parsed, not searched for, since most 4-digit numbers aren't years.
+ */
+public class DateExtractor {
+
+    // The formats of SUPPORTED_DATE_FORMATS, in the same order, e.g. '%a, %d %b %Y' is 'EEE, d MMM uuuu'
+    private static final List<DateTimeFormatter> FORMATS = List.of(
+            formatter("EEE, d MMM uuuu"),                // e.g., 'Tue, 20 Oct 2020'
+            formatter("EEE, MMM d, uuuu"),               // e.g., 'Tue, Oct 20, 2020'
+            formatter("d MMM uuuu"),                     // e.g., '20 Oct 2020'
+            formatter("EEE, d MMM uuuu HH:mm:ss Z"),     // e.g., 'Tue, 20 Oct 2020 13:44:57 +0000'
+            formatter("uuuu-M-d"),                       // e.g., '2020-10-23'
+            formatter("M/d/uuuu"),                       // e.g., '08/21/2024'
+            shortYearFormatter(),                        // e.g., '10/19/99'
+            formatter("M/d/uuuu 'at' h:mm a"),           // e.g., '08/21/2024 at 1:12 PM'
+            formatter("MMM d, uuuu, 'at' h:mm a"),       // e.g., 'Apr 19, 2023, at 3:46 PM'
+            formatter("MMM d, uuuu"),                    // e.g., 'Apr 19, 2023'
+            formatter("MMM d uuuu"),                     // e.g., 'Apr 19 2023'
+            formatter("uuuu/M/d HH:mm:ss"),              // e.g., '2020/05/01 00:00:00'
+            formatter("EEEE, MMMM d, uuuu h:mm a"),      // e.g., 'Monday, October 19, 2020 3:14 PM'
+            formatter("EEEE, MMMM d, uuuu"),             // e.g., 'Monday, October 19, 2020'
+            formatter("EEEE MMMM d, uuuu"),              // e.g., 'Monday October 19, 2020'
+            formatter("MMMM d, uuuu"),                   // e.g., 'October 15, 2019'
+            formatter("MMMM d uuuu"),                    // e.g., 'October 15 2019'
+            formatter("MMMM uuuu"),                      // e.g., 'October 2019'
+            formatter("MMM uuuu"),                       // e.g., 'Oct 2019'
+            formatter("uuuu"));                          // e.g., '2023'
+
+    private static final Pattern SLASH_DATE = Pattern.compile("(\\d{1,2})/(\\d{1,2})/(\\d{2,4})");
+
+    private static final String MONTH = "(?:jan|feb|mar|apr|may|jun|jul|aug|sep|oct|nov|dec)[a-z]*\\.?";
+    private static final String WEEKDAY = "(?:mon|tue|wed|thu|fri|sat|sun)[a-z]*";
+    private static final String TIME_12H = "\\s+\\d{1,2}:\\d{2}\\s*[ap]\\.?m\\.?";
+
+    // Longer forms come first, so e.g. 'Oct 20, 2020' isn't found as 'Oct 2020'. Candidates must not be part of a
+    // longer word or number.
+    private static final Pattern CANDIDATE = Pattern.compile("(?<![\\p{L}\\d])(?:" + String.join("|",
+            "(?:" + WEEKDAY + ",?\\s+)?" + MONTH + "\\s+\\d{1,2},?\\s+\\d{4}(?:,?\\s+at" + TIME_12H + "|" + TIME_12H + ")?",
+            "(?:" + WEEKDAY + ",\\s+)?\\d{1,2}\\s+" + MONTH + "\\s+\\d{4}(?:\\s+\\d{2}:\\d{2}:\\d{2}\\s+[+-]\\d{4})?",
+            "\\d{4}-\\d{1,2}-\\d{1,2}",
+            "\\d{4}/\\d{1,2}/\\d{1,2}\\s+\\d{2}:\\d{2}:\\d{2}",
+            "\\d{1,2}/\\d{1,2}/\\d{2,4}(?:\\s+at" + TIME_12H + ")?",
+            MONTH + "\\s+\\d{4}") + ")(?![\\p{L}\\d])", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /**
+     * Find all the supported dates in a text.
+     * @return the distinct ISO dates, in order of first appearance
+     */
+    public static Set<String> find(String text) {
+        Set<String> dates = new LinkedHashSet<>();
+        if (! hasDigit(text))
+            return dates;
+
+        Matcher matcher = CANDIDATE.matcher(text);
+        while (matcher.find())
+            dates.addAll(parse(matcher.group()));
+        return dates;
+    }
+
+    /**
+     * Parse a date, see parse_date in nlp/process.py.
+     * @return the ISO date, or all the m/d/y dates in the text if it doesn't match any of the supported formats as a
+     * whole, or an empty list if it's not a date
+     */
+    public static List<String> parse(String text) {
+        if (text == null || ! hasDigit(text))
+            return List.of();
+
+        String normalized = normalize(text);
+        for (DateTimeFormatter format : FORMATS) {
+            try {
+                return List.of(format.parse(normalized, LocalDate::from).toString());
+            } catch (DateTimeParseException e) {
+                // try the next format
+            }
+        }
+
+        List<String> dates = new ArrayList<>();
+        Matcher slashDate = SLASH_DATE.matcher(normalized);
+        while (slashDate.find()) {
+            try {
+                dates.add(FORMATS.get(slashDate.group(3).length() == 2 ? 6 : 5)
+                        .parse(slashDate.group(), LocalDate::from).toString());
+            } catch (DateTimeParseException e) {
+                // e.g. 13/45/2020 - not a date
+            }
+        }
+        return dates;
+    }
+
+    // Same as the stripping in process.py, plus upper-case 'AM'/'PM' without dots, which is what the formatters parse
+    private static String normalize(String text) {
+        String normalized = WHITESPACE.matcher(text.strip()).replaceAll(" ");
+        while (! normalized.isEmpty() && normalized.charAt(normalized.length() - 1) == ',')
+            normalized = normalized.substring(0, normalized.length() - 1);
+        return normalized.replace("a.m.", "AM").replace("p.m.", "PM");
+    }
+
+    private static boolean hasDigit(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9')
+                return true;
+        }
+        return false;
+    }
+
+    // Only the date fields are resolved, so e.g. a wrong day-of-week is ignored like in Python's strptime
+    private static DateTimeFormatter formatter(String pattern) {
+        return new DateTimeFormatterBuilder()
+                .parseCaseInsensitive()
+                .appendPattern(pattern)
+                .parseDefaulting(ChronoField.MONTH_OF_YEAR, 1)
+                .parseDefaulting(ChronoField.DAY_OF_MONTH, 1)
+                .toFormatter(Locale.US)
+                .withResolverFields(ChronoField.YEAR, ChronoField.MONTH_OF_YEAR, ChronoField.DAY_OF_MONTH);
+    }
+
+    // Two-digit years as in Python: 69-99 are 1969-1999, 00-68 are 2000-2068
+    private static DateTimeFormatter shortYearFormatter() {
+        return new DateTimeFormatterBuilder()
+                .appendPattern("M/d/")
+                .appendValueReduced(ChronoField.YEAR, 2, 2, 1969)
+                .toFormatter(Locale.US)
+                .withResolverFields(ChronoField.YEAR, ChronoField.MONTH_OF_YEAR, ChronoField.DAY_OF_MONTH);
+    }
+}
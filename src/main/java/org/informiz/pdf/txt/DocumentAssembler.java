@@ -0,0 +1,222 @@
+package org.informiz.pdf.txt;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.stream.Stream;
+
+import static java.lang.System.exit;
+
+/**
+ * Reassembles the text-pages of each PDF document into a single text file, e.g. dir_0001.pdf.txt for the pages
+ * dir_0001.pdf_page1.pdf.txt, dir_0001.pdf_page2.pdf.txt, ..., in the order of their page numbers (page 10 comes after
+ * page 9, not after page 1). Each document is written through a single buffered stream, and documents are assembled
+ * concurrently. With page markers, each page is preceded by a line with its page number and the byte offset where its
+ * text starts, e.g. "--- page 12, offset 34567 ---", so a position in the document can be traced back to its page.
+ */
+public class DocumentAssembler {
+
+    private static final int BUFFER_BYTES = 256 * 1024;
+    private static final byte[] NEW_LINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    // The text of a page of the document being assembled
+    @FunctionalInterface
+    private interface PageReader {
+        byte[] read(int pageNum) throws IOException;
+    }
+
+    private final boolean pageMarkers;
+    private final int workers;
+
+    /**
+     * @param pageMarkers whether to precede each page with a line with its page number and byte offset
+     * @param workers the number of documents assembled concurrently
+     */
+    public DocumentAssembler(boolean pageMarkers, int workers) {
+        this.pageMarkers = pageMarkers;
+        this.workers = workers;
+    }
+
+    static void main(String[] args) {
+        if (args == null || args.length == 0) {
+            System.out.println("Please provide full path to a text_pages folder");
+            System.out.println("Example usage:");
+            System.out.println("java -cp path/to/app.jar org.informiz.pdf.txt.DocumentAssembler /full/path/to/text_pages");
+            System.out.println("Add --store to assemble the pages in the page-store (text_pages.store) instead, and " +
+                    "--output=/full/path/to/folder to write the documents into another folder than text_pages.docs");
+            System.out.println("Add --page-markers to precede each page with a line with its page number and byte " +
+                    "offset, and --workers=N to set the number of concurrent workers (default: number of CPUs)");
+            exit(1);
+        }
+
+        File pagesFolder = new File(args[0]);
+        String output = Utils.getOption(args, "--output", null);
+        try {
+            assemble(args, pagesFolder, output == null ? forPagesFolder(pagesFolder) : new File(output),
+                    Utils.hasFlag(args, "--store"));
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected error while assembling documents", e);
+        }
+    }
+
+    /**
+     * Assemble the documents of a text-pages folder (or its page-store) as configured by the command-line arguments,
+     * see --page-markers and --workers.
+     */
+    public static void assemble(String[] args, File pagesFolder, File outputFolder, boolean useStore)
+            throws IOException {
+        DocumentAssembler assembler = new DocumentAssembler(Utils.hasFlag(args, "--page-markers"),
+                Utils.getWorkers(args));
+        long start = System.nanoTime();
+        long numDocuments;
+        if (useStore) {
+            try (PageStore store = PageStore.open(PageStore.forPagesFolder(pagesFolder))) {
+                numDocuments = assembler.assembleStore(store, outputFolder);
+            }
+        } else {
+            numDocuments = assembler.assembleFolder(pagesFolder, outputFolder);
+        }
+        System.out.printf("Assembled %d documents in %.1f sec, available under %s%n", numDocuments,
+                (System.nanoTime() - start) / 1e9, outputFolder.getAbsolutePath());
+    }
+
+    /**
+     * The documents folder of a text-pages folder, e.g. text_pages.docs for the text_pages folder.
+     */
+    public static File forPagesFolder(File pagesFolder) {
+        File folder = pagesFolder.getAbsoluteFile();
+        return new File(folder.getParentFile(), folder.getName() + ".docs");
+    }
+
+    /**
+     * Assemble the text-pages in a folder (and sub-folders) into documents. Sub-folders are created in the output
+     * folder as well.
+     * @return the number of documents created
+     */
+    public long assembleFolder(File pagesFolder, File outputFolder) throws IOException {
+        // The pages of each document by their number, keyed by the relative path of the document
+        Map<Path, NavigableMap<Integer, Path>> documents = new HashMap<>();
+        try (Stream<Path> files = Files.walk(pagesFolder.toPath())) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                Matcher idPattern = IngestManifest.PAGE_ID_PATTERN.matcher(path.getFileName().toString());
+                if (! idPattern.matches() || ! Files.isRegularFile(path))
+                    continue;
+                Path document = pagesFolder.toPath().relativize(path).resolveSibling(idPattern.group(1) + ".txt");
+                documents.computeIfAbsent(document, key -> new TreeMap<>())
+                        .put(Integer.parseInt(idPattern.group(2)), path);
+            }
+        }
+
+        return assemble(documents.keySet().stream().map(document -> (Runnable) () -> {
+            NavigableMap<Integer, Path> pages = documents.get(document);
+            writeDocument(outputFolder.toPath().resolve(document), pages.keySet().stream().toList(),
+                    pageNum -> Files.readAllBytes(pages.get(pageNum)));
+        }).toList());
+    }
+
+    /**
+     * Assemble the pages in a page-store into documents.
+     * @return the number of documents created
+     */
+    public long assembleStore(PageStore store, File outputFolder) {
+        return assemble(store.documents().entrySet().stream().map(document -> (Runnable) () ->
+                writeDocument(outputFolder.toPath().resolve(document.getKey() + ".txt"),
+                        document.getValue().stream().sorted().toList(),
+                        pageNum -> store.get(document.getKey(), pageNum).getBytes(StandardCharsets.UTF_8))
+        ).toList());
+    }
+
+    // Runs the tasks (one per document) with the configured number of workers, stopping on the first failure
+    private long assemble(List<Runnable> documents) {
+        AtomicLong assembled = new AtomicLong();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        AtomicInteger threadNum = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "assembler-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            for (Runnable document : documents) {
+                executor.execute(() -> {
+                    if (failure.get() != null)
+                        return;
+                    try {
+                        document.run();
+                        assembled.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (failure.get() != null)
+            throw failure.get();
+        return assembled.get();
+    }
+
+    // Writes the pages in the given order, each ending with a line separator
+    private void writeDocument(Path documentFile, List<Integer> pages, PageReader reader) {
+        try {
+            Files.createDirectories(documentFile.getParent());
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(documentFile), BUFFER_BYTES)) {
+                long offset = 0;
+                for (int pageNum : pages) {
+                    if (pageMarkers) {
+                        byte[] marker = marker(pageNum, offset);
+                        out.write(marker);
+                        offset += marker.length;
+                    }
+                    byte[] text = reader.read(pageNum);
+                    out.write(text);
+                    offset += text.length;
+                    if (text.length == 0 || text[text.length - 1] != '\n') {
+                        out.write(NEW_LINE);
+                        offset += NEW_LINE.length;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to assemble " + documentFile, e);
+        }
+    }
+
+    // The offset is where the page's text starts, right after the marker line
+    private static byte[] marker(int pageNum, long offset) {
+        String prefix = "--- page " + pageNum + ", offset ";
+        String suffix = " ---" + System.lineSeparator();
+        // The offset includes the length of the marker itself, including its own digits
+        long start = offset + prefix.length() + suffix.length();
+        int digits = Long.toString(start).length();
+        while (Long.toString(start + digits).length() > digits)
+            digits++;
+        start += digits;
+        return (prefix + start + suffix).getBytes(StandardCharsets.UTF_8);
+    }
+}
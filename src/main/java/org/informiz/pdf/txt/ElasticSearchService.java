@@ -1,17 +1,21 @@
 package org.informiz.pdf.txt;
 
 import co.elastic.clients.transport.rest5_client.low_level.Request;
-import co.elastic.clients.transport.rest5_client.low_level.RequestOptions;
 import co.elastic.clients.transport.rest5_client.low_level.Response;
 import co.elastic.clients.transport.rest5_client.low_level.Rest5Client;
-import org.apache.hc.core5.http.HttpHost;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
@@ -22,10 +26,12 @@ import static org.informiz.pdf.txt.Utils.createTxtPagesFolder;
 public class ElasticSearchService {
 
     static final String MAPPING_RAW = """
-            "{ mappings": {
+            { "mappings": {
                 "properties": {
                       "origFile": { "type": "keyword" },
                       "page": { "type": "integer" },
+                      "duplicateOf": { "type": "keyword" },
+                      "duplicate": { "type": "keyword" },
                       "txt": { "type": "text" }
                     }
                   }
@@ -33,7 +39,7 @@ public class ElasticSearchService {
 
 
     static final String MAPPING_PROCESSED_RECORDS = """
-            "{ mappings": {
+            { "mappings": {
                 "properties": {
                       "origFile": { "type": "keyword" },
                       "page": { "type": "integer" },
@@ -49,6 +55,14 @@ public class ElasticSearchService {
     public static final String PAGES_IDX = "pages";
     public static final String RECORDS_IDX = "records";
 
+    static final Pattern PAGE_TXT_PATTERN = Pattern.compile("([^.]+)\\.pdf_page(\\d+)\\.pdf\\.txt");
+
+    // Max number of extracted pages waiting to be indexed when streaming, extraction blocks when the queue is full
+    static final int STREAM_QUEUE_CAPACITY = 1000;
+
+    // Marks the end of the stream of extracted pages
+    private static final TextPage END_OF_PAGES = new TextPage("", 0, "");
+
     static void main(String[] args) {
         if (args == null || args.length == 0) {
             System.out.println("Please provide either a full path to a source-folder with PDF files or a full path " +
@@ -59,6 +73,30 @@ public class ElasticSearchService {
                     "java -cp path/to/app.jar " +
                     "org.informiz.pdf.txt.ElasticSearchService /full/path/to/pdf/folder/");
 
+            System.out.println("Add --stream to upload the pages while they are extracted, without writing text_pages first");
+            System.out.println("Add --keep-pages (with --stream) to also write the pages to the text_pages folder");
+            System.out.println("Add --full to re-upload all the pages, including the ones already uploaded");
+            System.out.println("Add --store (without --stream) to keep the pages in a packed page-store instead of " +
+                    "text_pages, and --compress to compress them");
+            System.out.println("Bulk requests can be tuned with --bulk-size-mb=5 --bulk-docs=1000 " +
+                    "--bulk-concurrency=4 --bulk-retries=5");
+            System.out.println("Add --metrics to print per-stage metrics every 10 seconds (--metrics-interval=N to " +
+                    "change, --metrics-json for JSON lines)");
+            System.out.println("Large files can be tuned with --large-file-mb=N and --doc-memory-mb=N, and " +
+                    "--engine=fast extracts simple pages faster (see PdfDocumentService)");
+            System.out.println("Failing documents are quarantined, and pages can be given up on after a timeout: " +
+                    "--quarantine=/path/to/folder, --fail-fast, --page-timeout=N, --doc-timeout=N " +
+                    "(see PdfDocumentService)");
+            System.out.println("Add --cache to reuse the text of pages extracted before (see PdfDocumentService)");
+            System.out.println("Add --dedup to skip pages that duplicate earlier pages, or --dedup=pointer to index " +
+                    "a pointer to the earlier page instead (see PageDeduplicator)");
+            System.out.println("Add --bulk-load to load everything into a new index, tuned for bulk indexing, and " +
+                    "switch the pages/records alias to it once it's complete (--force-merge to merge it first, " +
+                    "--keep-old-index to keep the previous index)");
+            System.out.println("Add --es-hosts=http://es1:9200,http://es2:9200 (or set ES_HOSTS) to use several " +
+                    "ElasticSearch nodes, --es-connections=N to set the connections per node, and --no-gzip to " +
+                    "send uncompressed requests");
+
             System.out.println("Example usage for uploading already-processed records to ElasticSearch:");
             System.out.println("ES_LOCAL_API_KEY=je0i4rfvnho....ero8p9vk4jw==  " +
                     "java -cp path/to/app.jar " +
@@ -74,19 +112,32 @@ public class ElasticSearchService {
 
         System.out.println("Processing documents under " + args[0] + " and sub-folders...");
 
-        boolean uploadRecords = args.length == 2 && "--records".equals(args[1]);
+        boolean uploadRecords = Utils.hasFlag(args, "--records");
         String mappings = uploadRecords ? MAPPING_PROCESSED_RECORDS : MAPPING_RAW;
         String idx = uploadRecords ? RECORDS_IDX : PAGES_IDX;
-
-        try {
-            createIndexIfNotExists(idx, mappings);
-            if (PAGES_IDX.equals(idx)) {
-                File outputFolder = createTxtPagesFolder();
-                Utils.processFilesInFolder(srcFolder, srcFolder.getName(), outputFolder);
-                uploadToES(outputFolder, idx);
-            } else {
-                uploadToES(srcFolder, idx);
+        BulkIndexer.Config bulkConfig = BulkIndexer.Config.fromArgs(args);
+        PageDeduplicator dedup = PageDeduplicator.fromArgs(args);
+
+        try (EsTransport transport = EsTransport.configure(args);
+             PipelineMetrics.Reporter metrics = PipelineMetrics.reporterFromArgs(args)) {
+            BulkLoad bulkLoad = Utils.hasFlag(args, "--bulk-load") ? BulkLoad.start(idx, mappings) : null;
+            if (bulkLoad == null)
+                createIndexIfNotExists(idx, mappings);
+            long failed;
+            try {
+                failed = upload(args, srcFolder, bulkLoad == null ? idx : bulkLoad.index(), bulkConfig, dedup,
+                        bulkLoad != null);
+            } catch (IOException | RuntimeException e) {
+                if (bulkLoad != null)
+                    bulkLoad.abort();
+                throw e;
             }
+            // The alias is only moved to a complete index
+            if (bulkLoad != null)
+                bulkLoad.complete(failed, Utils.hasFlag(args, "--force-merge"),
+                        Utils.hasFlag(args, "--keep-old-index"));
+            if (dedup != null)
+                System.out.println(dedup.report());
 
             System.out.println("Done uploading to ElasticSearch");
 
@@ -95,69 +146,289 @@ public class ElasticSearchService {
         }
     }
 
+    // Extracts and uploads the pages, or uploads the records, to the index. A bulk-load uploads all the pages into a
+    // new index, so the manifest is only used to skip extracting unchanged documents (except when streaming, which
+    // extracts all the documents again). Returns the number of documents that could not be indexed.
+    private static long upload(String[] args, File srcFolder, String idx, BulkIndexer.Config bulkConfig,
+                               PageDeduplicator dedup, boolean bulkLoad) throws IOException {
+        if (Utils.hasFlag(args, "--records"))
+            return uploadToES(srcFolder, idx, bulkConfig);
+
+        Utils.ExtractionMode mode = Utils.getExtractionMode(args);
+        int workers = Utils.getWorkers(args);
+        if (dedup != null)
+            dedup.withFolders(srcFolder);
+        PdfDocumentService.configureLargeFiles(args);
+        PdfDocumentService.configureEngine(args);
+        boolean stream = Utils.hasFlag(args, "--stream");
+        boolean useStore = ! stream && Utils.hasFlag(args, "--store");
+        boolean keepPages = stream ? Utils.hasFlag(args, "--keep-pages") : ! useStore;
+        File pagesFolder = keepPages ? createTxtPagesFolder() : new File("text_pages");
+
+        try (IngestManifest manifest = IngestManifest.forPagesFolder(pagesFolder, Utils.hasFlag(args, "--full"));
+             ExtractionCache cache = ExtractionCache.fromArgs(args, new File("text_pages"));
+             Watchdog watchdog = Watchdog.fromArgs(args);
+             Quarantine quarantine = Quarantine.fromArgs(args, new File("text_pages"))) {
+            // The pages already indexed in the previous index are uploaded again
+            IngestManifest uploaded = bulkLoad ? null : manifest;
+            long failed;
+            if (stream) {
+                failed = streamToES(srcFolder, idx, mode, workers, keepPages ? pagesFolder : null,
+                        bulkConfig, uploaded, dedup, quarantine);
+            } else if (useStore) {
+                File storeFolder = PageStore.forPagesFolder(pagesFolder);
+                ExtractionEngine engine = new ExtractionEngine(workers, mode).withManifest(manifest, false)
+                        .withQuarantine(quarantine);
+                try (PageStore.Writer store = PageStore.openForWriting(storeFolder,
+                        Utils.hasFlag(args, "--compress"))) {
+                    engine.process(srcFolder, srcFolder.getName(), store);
+                }
+                System.out.println("Skipped " + engine.getSkipped() + " unchanged documents");
+                failed = uploadStoreToES(storeFolder, idx, bulkConfig, uploaded, dedup);
+            } else {
+                ExtractionEngine engine = new ExtractionEngine(workers, mode).withManifest(manifest, false)
+                        .withQuarantine(quarantine);
+                engine.process(srcFolder, srcFolder.getName(), pagesFolder);
+                System.out.println("Skipped " + engine.getSkipped() + " unchanged documents");
+                failed = uploadToES(pagesFolder, idx, bulkConfig, uploaded, dedup);
+            }
+            if (cache != null)
+                System.out.println(cache.stats());
+            if (quarantine != null)
+                System.out.println(quarantine.summary());
+            return failed;
+        }
+    }
+
 
     public static void createIndexIfNotExists(String index, String mappings) throws IOException {
-        try (Rest5Client client = getLocalClient()) {
-            Request indexExistsRequest = new Request(
-                    "HEAD",
-                    "/" + index + "?ignore_unavailable=false");
-            indexExistsRequest.setOptions(getReqOptions(null));
-            Response response = client.performRequest(indexExistsRequest);
-            if (response.getStatusCode() == 200)
-                return; // index already exists, nothing to do
-
-            Request createIndexRequest = new Request(
-                    "PUT",
-                    "/" + index);
-            createIndexRequest.setJsonEntity(mappings);
-            createIndexRequest.setOptions(getReqOptions("application/json"));
-
-            client.performRequest(createIndexRequest);
-        }
+        EsTransport transport = EsTransport.shared();
+        Rest5Client client = transport.client();
+        Request indexExistsRequest = new Request(
+                "HEAD",
+                "/" + index + "?ignore_unavailable=false");
+        indexExistsRequest.setOptions(transport.options());
+        Response response = client.performRequest(indexExistsRequest);
+        if (response.getStatusCode() == 200)
+            return; // index already exists, nothing to do
+
+        Request createIndexRequest = new Request(
+                "PUT",
+                "/" + index);
+        createIndexRequest.setJsonEntity(mappings);
+        createIndexRequest.setOptions(transport.jsonOptions());
+
+        client.performRequest(createIndexRequest);
+    }
+
+
+
+    public static long uploadToES(File srcFolder, String index) {
+        return uploadToES(srcFolder, index, BulkIndexer.Config.DEFAULT);
+    }
+
+    public static long uploadToES(File srcFolder, String index, BulkIndexer.Config config) {
+        return uploadToES(srcFolder, index, config, null);
     }
 
+    public static long uploadToES(File srcFolder, String index, BulkIndexer.Config config, IngestManifest manifest) {
+        return uploadToES(srcFolder, index, config, manifest, null);
+    }
 
+    /**
+     * Upload the text-pages or records in the source-folder to ElasticSearch.
+     * @param manifest if not null, pages already acknowledged by ElasticSearch are skipped, and the newly indexed
+     *                 pages are recorded
+     * @param dedup if not null, text-pages that duplicate earlier pages are skipped or indexed as pointers
+     * @return the number of documents that could not be indexed
+     */
+    public static long uploadToES(File srcFolder, String index, BulkIndexer.Config config, IngestManifest manifest,
+                                  PageDeduplicator dedup) {
+        BulkIndexer indexer = new BulkIndexer(EsTransport.shared(), index, config);
+        if (manifest != null)
+            indexer.onIndexed(recordIndexed(manifest, dedup));
+        try (indexer) {
+            indexFilesInFolder(index, srcFolder, indexer, manifest, dedup);
+        }
+        System.out.println(indexer.summary());
+        return indexer.getFailed();
+    }
 
-    public static void uploadToES(File srcFolder, String index) {
-        try (Rest5Client client = getLocalClient()) {
-            
-            indexFilesInFolder(index, srcFolder, client);
+    /**
+     * Upload the text-pages in a page-store to ElasticSearch, see {@link PageStore}.
+     * @param manifest if not null, pages already acknowledged by ElasticSearch are skipped, and the newly indexed
+     *                 pages are recorded
+     * @param dedup if not null, pages that duplicate earlier pages are skipped or indexed as pointers
+     * @return the number of documents that could not be indexed
+     */
+    public static long uploadStoreToES(File storeFolder, String index, BulkIndexer.Config config,
+                                       IngestManifest manifest, PageDeduplicator dedup) {
+        try (PageStore store = PageStore.open(storeFolder)) {
+            BulkIndexer indexer = new BulkIndexer(EsTransport.shared(), index, config);
+            if (manifest != null)
+                indexer.onIndexed(recordIndexed(manifest, dedup));
+            try (indexer) {
+                BulkPayloadWriter payload = new BulkPayloadWriter(index);
+                store.forEach(page -> {
+                    if (manifest != null && manifest.isIndexed(page.filenamePrefix(), page.pageNum()))
+                        return;
+                    Matcher namePattern = PAGE_TXT_PATTERN.matcher(page.fileName());
+                    if (! namePattern.find())
+                        return;
+                    sendPage(payload, indexer, page, namePattern.group(1), manifest, dedup);
+                });
+            }
+            System.out.println(indexer.summary());
+            return indexer.getFailed();
 
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static void indexFilesInFolder(String index, File srcFolder, Rest5Client client) {
-        StringBuffer leftoverPayload = new StringBuffer();
+    /**
+     * Extract the text from all the PDF files under the source-folder and upload the pages to ElasticSearch while
+     * they are being extracted. Extracted pages are passed to the indexer through a bounded queue, so extraction
+     * slows down when indexing falls behind.
+     * @param pagesFolder if not null, the pages are also written to this folder
+     * @param manifest if not null, documents whose pages were all indexed and haven't changed since are skipped,
+     *                 as well as pages already acknowledged by ElasticSearch
+     * @param dedup if not null, pages that duplicate earlier pages are skipped or indexed as pointers
+     * @return the number of documents that could not be indexed
+     */
+    public static long streamToES(File srcFolder, String index, Utils.ExtractionMode mode, int workers,
+                                  File pagesFolder, BulkIndexer.Config config, IngestManifest manifest,
+                                  PageDeduplicator dedup) throws IOException {
+        return streamToES(srcFolder, index, mode, workers, pagesFolder, config, manifest, dedup, null);
+    }
+
+    /**
+     * Same as {@link #streamToES(File, String, Utils.ExtractionMode, int, File, BulkIndexer.Config, IngestManifest,
+     * PageDeduplicator)}, carrying on past the documents that fail.
+     * @param quarantine if not null, documents that fail are quarantined, otherwise the first failure stops the upload
+     */
+    public static long streamToES(File srcFolder, String index, Utils.ExtractionMode mode, int workers,
+                                  File pagesFolder, BulkIndexer.Config config, IngestManifest manifest,
+                                  PageDeduplicator dedup, Quarantine quarantine) throws IOException {
+        BlockingQueue<TextPage> queue = new ArrayBlockingQueue<>(STREAM_QUEUE_CAPACITY);
+        PipelineMetrics.gauge("pages-to-index", queue::size);
+        AtomicReference<Throwable> indexingFailure = new AtomicReference<>();
+        AtomicLong failed = new AtomicLong();
+
+        Thread indexer = new Thread(() -> {
+            try {
+                BulkIndexer bulkIndexer = new BulkIndexer(EsTransport.shared(), index, config);
+                if (manifest != null)
+                    bulkIndexer.onIndexed(recordIndexed(manifest, dedup));
+                try (bulkIndexer) {
+                    indexPages(index, queue, bulkIndexer, manifest, dedup);
+                }
+                System.out.println(bulkIndexer.summary());
+                failed.set(bulkIndexer.getFailed());
+            } catch (Throwable e) {
+                indexingFailure.set(e);
+                queue.clear(); // unblock the extraction workers
+            }
+        }, "es-indexer");
+        indexer.start();
+
+        PageSink sink = page -> {
+            if (manifest == null || ! manifest.isIndexed(page.filenamePrefix(), page.pageNum()))
+                enqueue(queue, page, indexingFailure);
+        };
+        if (pagesFolder != null)
+            sink = PageSink.toFolder(pagesFolder).andThen(sink);
+
+        try {
+            ExtractionEngine engine = new ExtractionEngine(workers, mode).withQuarantine(quarantine);
+            if (manifest != null)
+                engine.withManifest(manifest, true);
+            engine.process(srcFolder, srcFolder.getName(), sink);
+            System.out.println("Skipped " + engine.getSkipped() + " unchanged documents");
+        } finally {
+            if (indexingFailure.get() == null)
+                enqueue(queue, END_OF_PAGES, indexingFailure);
+            try {
+                indexer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            PipelineMetrics.removeGauge("pages-to-index");
+        }
+
+        if (indexingFailure.get() != null)
+            throw new RuntimeException("Failed to upload pages to ElasticSearch", indexingFailure.get());
+        return failed.get();
+    }
+
+    private static void enqueue(BlockingQueue<TextPage> queue, TextPage page, AtomicReference<Throwable> failure) {
+        try {
+            while (! queue.offer(page, 1, TimeUnit.SECONDS)) {
+                if (failure.get() != null)
+                    throw new IllegalStateException("Indexing failed, stopping extraction", failure.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the indexer", e);
+        }
+    }
+
+    private static void indexPages(String index, BlockingQueue<TextPage> queue, BulkIndexer indexer,
+                                   IngestManifest manifest, PageDeduplicator dedup) throws InterruptedException {
+        BulkPayloadWriter payload = new BulkPayloadWriter(index);
+        for (TextPage page = queue.take(); page != END_OF_PAGES; page = queue.take()) {
+            Matcher namePattern = PAGE_TXT_PATTERN.matcher(page.fileName());
+            if (! namePattern.find())
+                continue;
 
-        indexFilesInFolder(index, srcFolder, leftoverPayload, client);
+            sendPage(payload, indexer, page, namePattern.group(1), manifest, dedup);
+        }
+    }
 
-        if (!leftoverPayload.isEmpty()) {
-            sendIndexRequest(index, leftoverPayload.toString(), client);
+    // Adds a text-page to the bulk request. A page that duplicates an earlier page is either skipped (and recorded as
+    // indexed, so it's not checked again on the next run) or replaced by a pointer to the earlier page.
+    static void sendPage(BulkPayloadWriter payload, BulkIndexer indexer, TextPage page, String origFile,
+                                 IngestManifest manifest, PageDeduplicator dedup) {
+        String id = page.fileName();
+        PageDeduplicator.Result duplicate = dedup == null ? null : dedup.check(id, page.filenamePrefix(), page.text());
+        if (duplicate == null || ! duplicate.isDuplicate()) {
+            payload.writePage(id, origFile, page.pageNum(), page.text()).sendTo(indexer, id);
+        } else if (dedup.mode() == PageDeduplicator.Mode.POINTER) {
+            if (manifest != null)
+                dedup.pointerSent(id, duplicate);
+            payload.writePointer(id, origFile, page.pageNum(), duplicate.canonicalId(), duplicate.kind())
+                    .sendTo(indexer, id);
+        } else if (manifest != null) {
+            manifest.pagesIndexed(dedup.skipped(id, duplicate));
         }
     }
 
-    private static void indexFilesInFolder(String index, File srcFolder, StringBuffer leftoverPayload, Rest5Client client) {
+    // Records the pages acknowledged by ElasticSearch in the manifest. Duplicates are recorded once their canonical
+    // page was acknowledged, so they aren't skipped in the next run if their canonical page failed.
+    static Consumer<List<String>> recordIndexed(IngestManifest manifest, PageDeduplicator dedup) {
+        if (dedup == null)
+            return manifest::pagesIndexed;
+        dedup.trackAcknowledgements();
+        return ids -> manifest.pagesIndexed(dedup.indexed(ids));
+    }
 
-        StringBuffer jsonCommands;
+    private static void indexFilesInFolder(String index, File srcFolder, BulkIndexer indexer,
+                                           IngestManifest manifest, PageDeduplicator dedup) {
         try (Stream<Path> filePaths = Files.list(srcFolder.toPath())) {
-            if (PAGES_IDX.equals(index))
-                jsonCommands = indexPages(index, filePaths, client);
+            // A bulk-load indexes the pages into a versioned index, e.g. pages_20261017-142501
+            if (PAGES_IDX.equals(index) || index.startsWith(PAGES_IDX + "_"))
+                indexPages(index, filePaths, indexer, manifest, dedup);
             else
-                jsonCommands = indexRecords(index, filePaths, client);
+                indexRecords(index, filePaths, indexer);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
 
-        leftoverPayload.append(jsonCommands);
-        sendIfSufficientPayload(index, client, leftoverPayload);
-
         // TODO: sub-folders required for text-pages..?
         try (Stream<Path> filePaths = Files.list(srcFolder.toPath())) {
             filePaths.forEach(path -> {
                 if (path.toFile().isDirectory()) {
-                    indexFilesInFolder(index, path.toFile(), leftoverPayload, client);
+                    indexFilesInFolder(index, path.toFile(), indexer, manifest, dedup);
                 }
             });
         } catch (Exception e) {
@@ -165,119 +436,56 @@ public class ElasticSearchService {
         }
     }
 
-    private static int sendIndexRequest(String index, String jsonPayload, Rest5Client client) {
-        Request request = new Request(
-                "POST",
-                "/" + index + "/_bulk");
-        request.setJsonEntity(jsonPayload.toString());
-        request.setOptions(getReqOptions("application/x-ndjson"));
-
-        Response response;
-        try {
-            response = client.performRequest(request);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        return response.getStatusCode();
-    }
-
-    private static Rest5Client getLocalClient() {
-        return Rest5Client
-                .builder(new HttpHost("http", "localhost", 9200)).build();
-    }
-
-    private static RequestOptions.Builder getReqOptions(String contentType) {
-        RequestOptions.Builder builder = RequestOptions.DEFAULT.toBuilder();
-        if (contentType != null)
-            builder.addHeader("Content-Type", contentType);
-
-        String esLocalApiKey = System.getenv("ES_LOCAL_API_KEY");
-        if (esLocalApiKey == null || esLocalApiKey.isBlank())
-            throw new IllegalStateException("Could not retrieve ElasticSearch API key, " +
-                    "make sure the ES_LOCAL_API_KEY environment-variable is set to the value in the .env file " +
-                    "under the elastic-start-local folder, and re-run the code.");
-
-        return builder.addHeader("Authorization", "ApiKey " + esLocalApiKey);
-    }
-
-    private static StringBuffer indexPages(String index, Stream<Path> filePaths, Rest5Client client) {
-        Pattern filenamePattern = Pattern.compile("([^.]+)\\.pdf_page(\\d+)\\.pdf\\.txt");
-        StringBuffer jsonPayload = new StringBuffer();
-
+    private static void indexPages(String index, Stream<Path> filePaths, BulkIndexer indexer,
+                                   IngestManifest manifest, PageDeduplicator dedup) {
+        BulkPayloadWriter payload = new BulkPayloadWriter(index);
         filePaths.forEach(path ->  {
 
             File file = path.toFile();
             if (file.isDirectory())
                 return;
-            Matcher namePattern = filenamePattern.matcher(file.getName());
+            Matcher namePattern = PAGE_TXT_PATTERN.matcher(file.getName());
             if (! namePattern.find())
                 return;
 
+            if (manifest != null) {
+                Matcher idPattern = IngestManifest.PAGE_ID_PATTERN.matcher(file.getName());
+                if (idPattern.matches() && manifest.isIndexed(idPattern.group(1), Integer.parseInt(idPattern.group(2))))
+                    return;
+            }
+
             String origFileName = namePattern.group(1);
             int pageNum = Integer.parseInt(namePattern.group(2));
 
-            appendIndexCommand(index, file, jsonPayload, origFileName, pageNum);
-
-            sendIfSufficientPayload(index, client, jsonPayload);
-
+            try {
+                if (dedup == null) {
+                    payload.writePage(file.getName(), origFileName, pageNum, path).sendTo(indexer, file.getName());
+                } else {
+                    // Same as the text read by the payload writer, without the line-break added after the text
+                    String text = new String(Files.readAllBytes(path), StandardCharsets.UTF_8)
+                            .replaceFirst("\\r?\\n$", "");
+                    String prefix = file.getName().substring(0, file.getName().lastIndexOf("_page"));
+                    sendPage(payload, indexer, new TextPage(prefix, pageNum, text), origFileName, manifest, dedup);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         });
-        return jsonPayload;
     }
 
-    private static void sendIfSufficientPayload(String index, Rest5Client client, StringBuffer jsonPayload) {
-        if (jsonPayload.length() >= 10000) {
-            sendIndexRequest(index, jsonPayload.toString(), client);
-            jsonPayload.setLength(0);
-        }
-    }
-
-    private static StringBuffer indexRecords(String index, Stream<Path> filePaths, Rest5Client client) {
-        StringBuffer jsonPayload = new StringBuffer();
-
+    // Record files are either a '.record' file per page, or '.ndjson' files with a record per line
+    private static void indexRecords(String index, Stream<Path> filePaths, BulkIndexer indexer) {
+        BulkPayloadWriter payload = new BulkPayloadWriter(index);
         filePaths.forEach(path ->  {
 
             File file = path.toFile();
-            if (file.getName().endsWith(".record")){
-                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                    appendIdxLine(jsonPayload, index, file.getName())
-                            .append(reader.readLine())
-                            .append(String.format("%n"));
+            if ((file.getName().endsWith(".record") || file.getName().endsWith(".ndjson")) && file.isFile()) {
+                try {
+                    payload.sendRecords(path, indexer);
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
             }
-            sendIfSufficientPayload(index, client, jsonPayload);
-
         });
-
-        return jsonPayload;
-    }
-
-    private static void appendIndexCommand(String index, File txtFile, StringBuffer jsonPayload, String origFileName, int pageNum) {
-        String txt;
-        try (BufferedReader reader = new BufferedReader(new FileReader(txtFile))) {
-            txt = reader.lines()
-                    .reduce((s, s2) -> s + "    " + s2)
-                    .orElseGet(System::lineSeparator)
-                    .replace('"', '\'');
-            String fileName = txtFile.getName();
-
-            appendIdxLine(jsonPayload, index, fileName)
-                    .append("{ \"origFile\" : \"").append(origFileName)
-                    .append("\",  \"page\" : \"").append(pageNum)
-                    .append("\", \"txt\" : \"").append(txt).append("\"}")
-                    .append(String.format("%n"));
-
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static StringBuffer appendIdxLine(StringBuffer jsonPayload, String index, String fileName) {
-        return jsonPayload.append("{ \"index\" : { \"_index\" : \"")
-                .append(index).append("\", \"_id\" : \"")
-                .append(fileName)
-                .append("\" } }")
-                .append(String.format("%n"));
     }
 }
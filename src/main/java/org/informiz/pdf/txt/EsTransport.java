@@ -0,0 +1,166 @@
+package org.informiz.pdf.txt;
+
+import co.elastic.clients.transport.rest5_client.low_level.Node;
+import co.elastic.clients.transport.rest5_client.low_level.RequestOptions;
+import co.elastic.clients.transport.rest5_client.low_level.Rest5Client;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.System.exit;
+
+/**
+ * The connection to ElasticSearch, shared by all the requests of the application: a client with a pool of
+ * persistent connections to one or more nodes, and the request options (API key), built once.
+ * Requests are sent to the nodes in round-robin; a node that fails to respond is marked as dead and retried later,
+ * while the request is sent to the next node. Request bodies are gzip-compressed (add --no-gzip to disable), which
+ * cuts the bytes sent for bulk requests of page text by a large factor.
+ * Nodes are listed with --es-hosts, or the ES_HOSTS environment-variable, e.g. http://es1:9200,http://es2:9200
+ * (default: http://localhost:9200).
+ */
+public class EsTransport implements Closeable {
+
+    public static final String DEFAULT_HOSTS = "http://localhost:9200";
+    public static final int DEFAULT_CONNECTIONS = 16;
+
+    /**
+     * Transport settings.
+     * @param hosts comma-separated node URLs
+     * @param connections max number of connections to each node
+     * @param gzip compress request bodies
+     */
+    public record Config(String hosts, int connections, boolean gzip) {
+
+        public static final Config DEFAULT = new Config(DEFAULT_HOSTS, DEFAULT_CONNECTIONS, true);
+
+        public Config {
+            if (connections < 1)
+                throw new IllegalArgumentException("The connections to each node must be at least 1");
+        }
+
+        // E.g. --es-hosts=http://es1:9200,http://es2:9200 --es-connections=32 --no-gzip
+        public static Config fromArgs(String[] args) {
+            String envHosts = System.getenv("ES_HOSTS");
+            String hosts = Utils.getOption(args, "--es-hosts",
+                    envHosts == null || envHosts.isBlank() ? DEFAULT.hosts : envHosts);
+            try {
+                return new Config(hosts, Utils.getIntOption(args, "--es-connections", DEFAULT.connections),
+                        ! Utils.hasFlag(args, "--no-gzip"));
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.out.println("Usage: --es-connections=N (N >= 1)");
+                exit(1);
+                return null;
+            }
+        }
+    }
+
+    private static EsTransport shared;
+
+    private final Rest5Client client;
+    private final RequestOptions options;
+    private final RequestOptions jsonOptions;
+
+    private EsTransport(Config config) {
+        List<HttpHost> hosts = parseHosts(config.hosts());
+        String apiKey = System.getenv("ES_LOCAL_API_KEY");
+        if (apiKey == null || apiKey.isBlank())
+            throw new IllegalStateException("Could not retrieve ElasticSearch API key, " +
+                    "make sure the ES_LOCAL_API_KEY environment-variable is set to the value in the .env file " +
+                    "under the elastic-start-local folder, and re-run the code.");
+
+        RequestOptions.Builder builder = RequestOptions.DEFAULT.toBuilder()
+                .addHeader("Authorization", "ApiKey " + apiKey);
+        options = builder.build();
+        jsonOptions = builder.addHeader("Content-Type", "application/json").build();
+
+        // Idle connections are kept open for reuse, and checked before reuse if they've been idle for a while
+        ConnectionConfig connectionConfig = ConnectionConfig.custom()
+                .setConnectTimeout(Timeout.ofSeconds(5))
+                .setSocketTimeout(Timeout.ofMinutes(2))
+                .setTimeToLive(TimeValue.ofMinutes(10))
+                .setValidateAfterInactivity(TimeValue.ofSeconds(10))
+                .build();
+        client = Rest5Client.builder(hosts.toArray(new HttpHost[0]))
+                .setConnectionManager(PoolingAsyncClientConnectionManagerBuilder.create()
+                        .setMaxConnPerRoute(config.connections())
+                        .setMaxConnTotal(config.connections() * hosts.size())
+                        .setDefaultConnectionConfig(connectionConfig)
+                        .build())
+                .setCompressionEnabled(config.gzip())
+                .setFailureListener(new Rest5Client.FailureListener() {
+                    @Override
+                    public void onFailure(Node node) {
+                        System.out.println("ElasticSearch node " + node.getHost() + " failed, using the other nodes");
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Create the shared transport from the command-line arguments, see {@link Config#fromArgs(String[])}. Should be
+     * called (and the transport closed) by the main method, before any requests are sent.
+     */
+    public static synchronized EsTransport configure(String[] args) {
+        if (shared != null)
+            throw new IllegalStateException("The ElasticSearch transport is already configured");
+        shared = new EsTransport(Config.fromArgs(args));
+        return shared;
+    }
+
+    /**
+     * @return the shared transport, created with the default settings (and ES_HOSTS) if it wasn't configured
+     */
+    public static synchronized EsTransport shared() {
+        if (shared == null)
+            shared = new EsTransport(Config.fromArgs(new String[0]));
+        return shared;
+    }
+
+    public Rest5Client client() {
+        return client;
+    }
+
+    // Authorization only, for requests without a body or with a body that sets its own content-type
+    public RequestOptions options() {
+        return options;
+    }
+
+    public RequestOptions jsonOptions() {
+        return jsonOptions;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (EsTransport.class) {
+            if (shared == this)
+                shared = null;
+        }
+        client.close();
+    }
+
+    static List<HttpHost> parseHosts(String hosts) {
+        List<HttpHost> parsed = new ArrayList<>();
+        for (String host : hosts.split(",")) {
+            host = host.strip();
+            if (host.isEmpty())
+                continue;
+            try {
+                parsed.add(HttpHost.create(host.contains("://") ? host : "http://" + host));
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException("Invalid ElasticSearch host: " + host, e);
+            }
+        }
+        if (parsed.isEmpty())
+            throw new IllegalArgumentException("No ElasticSearch hosts in '" + hosts + "'");
+        return parsed;
+    }
+}
@@ -0,0 +1,273 @@
+package org.informiz.pdf.txt;
+
+import org.openpdf.text.pdf.PRStream;
+import org.openpdf.text.pdf.PdfArray;
+import org.openpdf.text.pdf.PdfDictionary;
+import org.openpdf.text.pdf.PdfName;
+import org.openpdf.text.pdf.PdfObject;
+import org.openpdf.text.pdf.PdfReader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * A persistent cache of extracted page text, keyed by the content of the page: a hash of its (decoded) content streams
+ * and of the resources that affect the extracted text, i.e. fonts (without the embedded font programs) and form
+ * XObjects. The same page in another document, e.g. when a corpus is re-released with a different bundling, is taken
+ * from the cache instead of being extracted again.
+ * Each entry is a file in the cache folder, e.g. text_pages.cache/ab/ab12...ef.txt. The cache size is bounded, and the
+ * least recently used entries are evicted first; the last use of an entry is its file's modification time, so the
+ * order survives restarts. A cache may be shared between threads.
+ */
+public class ExtractionCache implements Closeable {
+
+    public static final int DEFAULT_MAX_MB = 1024;
+
+    // Part of every key, change it when the extracted text of the same page may change (e.g. a new OpenPDF version)
+    private static final String KEY_VERSION = "openpdf-3";
+    private static final String FAST_ENGINE = "fast-1";
+    private static final int MAX_RESOURCE_DEPTH = 8;
+
+    private static volatile ExtractionCache active;
+
+    private final Path folder;
+    private final long maxBytes;
+
+    // Entry sizes, least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private long totalBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private ExtractionCache(Path folder, long maxBytes) throws IOException {
+        this.folder = folder;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(folder);
+
+        record Entry(String key, long size, long lastUsed) { }
+        List<Entry> existing = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(folder, 2)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".txt") && Files.isRegularFile(file))
+                    existing.add(new Entry(name.substring(0, name.length() - ".txt".length()), Files.size(file),
+                            Files.getLastModifiedTime(file).toMillis()));
+            }
+        }
+        existing.sort(Comparator.comparingLong(Entry::lastUsed));
+        for (Entry entry : existing) {
+            entries.put(entry.key(), entry.size());
+            totalBytes += entry.size();
+        }
+        evict();
+    }
+
+    /**
+     * The cache folder of a text-pages folder, e.g. text_pages.cache for the text_pages folder.
+     */
+    public static File forPagesFolder(File pagesFolder) {
+        File folder = pagesFolder.getAbsoluteFile();
+        return new File(folder.getParentFile(), folder.getName() + ".cache");
+    }
+
+    /**
+     * Open the cache given with --cache (beside the text-pages folder) or --cache=/path/to/folder, with a max size of
+     * --cache-mb, and make it the active cache used when extracting text.
+     * @return the cache, or null if no cache was requested
+     */
+    public static ExtractionCache fromArgs(String[] args, File pagesFolder) throws IOException {
+        String folder = Utils.getOption(args, "--cache", null);
+        if (folder == null && ! Utils.hasFlag(args, "--cache"))
+            return null;
+        ExtractionCache cache = new ExtractionCache(
+                (folder == null ? forPagesFolder(pagesFolder) : new File(folder)).toPath(),
+                Utils.getIntOption(args, "--cache-mb", DEFAULT_MAX_MB) * 1024L * 1024L);
+        active = cache;
+        return cache;
+    }
+
+    public static ExtractionCache open(File folder, long maxBytes) throws IOException {
+        return new ExtractionCache(folder.toPath(), maxBytes);
+    }
+
+    /**
+     * @return the cache used when extracting text, or null if there's none
+     */
+    static ExtractionCache active() {
+        return active;
+    }
+
+    /**
+     * The cache key of a page: a SHA-256 hash of its content and resources, as hex.
+     */
+    public static String key(PdfReader reader, int pageNum) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        digest.update(KEY_VERSION.getBytes(StandardCharsets.UTF_8));
+        if (PdfDocumentService.usesFastEngine())
+            digest.update(FAST_ENGINE.getBytes(StandardCharsets.UTF_8)); // its text differs from the full extractor's
+        digest.update(reader.getPageContent(pageNum));
+        PdfDictionary resources = reader.getPageN(pageNum).getAsDict(PdfName.RESOURCES);
+        if (resources != null) {
+            digestObject(digest, resources.getAsDict(PdfName.FONT), Collections.newSetFromMap(new IdentityHashMap<>()),
+                    0);
+            digestObject(digest, resources.getAsDict(PdfName.XOBJECT),
+                    Collections.newSetFromMap(new IdentityHashMap<>()), 0);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Digests an object graph in a canonical order (sorted dictionary keys). Skips embedded font programs and images,
+    // which don't change the extracted text but would make the key expensive to compute.
+    private static void digestObject(MessageDigest digest, PdfObject object, Set<PdfObject> visited, int depth)
+            throws IOException {
+        object = PdfReader.getPdfObject(object);
+        if (object == null || depth > MAX_RESOURCE_DEPTH || ! visited.add(object))
+            return;
+
+        digest.update((byte) object.type());
+        if (object.isDictionary() || object.isStream()) {
+            PdfDictionary dictionary = (PdfDictionary) object;
+            if (PdfName.IMAGE.equals(dictionary.getAsName(PdfName.SUBTYPE)))
+                return;
+            Map<PdfName, PdfObject> sorted = new TreeMap<>();
+            for (PdfName name : dictionary.getKeys()) {
+                if (! PdfName.FONTDESCRIPTOR.equals(name) && ! PdfName.PARENT.equals(name))
+                    sorted.put(name, dictionary.get(name));
+            }
+            for (Map.Entry<PdfName, PdfObject> entry : sorted.entrySet()) {
+                digestBytes(digest, entry.getKey().getBytes());
+                digestObject(digest, entry.getValue(), visited, depth + 1);
+            }
+            if (object instanceof PRStream stream)
+                digestBytes(digest, PdfReader.getStreamBytes(stream));
+        } else if (object.isArray()) {
+            for (PdfObject element : ((PdfArray) object).getElements())
+                digestObject(digest, element, visited, depth + 1);
+        } else {
+            digestBytes(digest, object.getBytes());
+        }
+    }
+
+    // Length-prefixed, so adjacent values can't be confused
+    private static void digestBytes(MessageDigest digest, byte[] bytes) {
+        int length = bytes == null ? -1 : bytes.length;
+        digest.update(new byte[] {(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+        if (bytes != null)
+            digest.update(bytes);
+    }
+
+    /**
+     * @return the cached text of the page with the given key, or null
+     */
+    public String get(String key) {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        Path file = file(key);
+        try {
+            String text = Files.readString(file, StandardCharsets.UTF_8);
+            file.toFile().setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return text;
+        } catch (IOException e) {
+            // evicted by another worker in the meantime
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Add the text of a page, evicting the least recently used entries if the cache is full.
+     */
+    public void put(String key, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        Path file = file(key);
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), key, ".tmp");
+            Files.write(tmp, bytes);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // caching is best-effort, the text was extracted anyway
+            return;
+        }
+
+        synchronized (this) {
+            Long previous = entries.put(key, (long) bytes.length);
+            totalBytes += bytes.length - (previous == null ? 0 : previous);
+            evict();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public String stats() {
+        long lookups = hits.get() + misses.get();
+        synchronized (this) {
+            return String.format("Extraction cache: %d hits, %d misses (%.1f%% hits), %d evictions, %d pages / %.1f MB",
+                    hits.get(), misses.get(), 100.0 * hits.get() / Math.max(1, lookups), evictions.get(),
+                    entries.size(), totalBytes / (1024.0 * 1024.0));
+        }
+    }
+
+    @Override
+    public void close() {
+        if (active == this)
+            active = null;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            try {
+                Files.deleteIfExists(file(entry.getKey()));
+            } catch (IOException e) {
+                // deleted on the next run
+            }
+            totalBytes -= entry.getValue();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private Path file(String key) {
+        return folder.resolve(key.substring(0, 2)).resolve(key + ".txt");
+    }
+}
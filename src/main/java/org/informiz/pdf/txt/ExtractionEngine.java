@@ -0,0 +1,433 @@
+package org.informiz.pdf.txt;
+
+import org.informiz.pdf.txt.Utils.ExtractionMode;
+import org.openpdf.text.pdf.PdfReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Extracts the text from PDF documents concurrently, across documents and across page-ranges of large documents.
+ * The number of queued tasks is bounded, so walking the source-folder is throttled by the workers and memory use
+ * stays flat regardless of the number of documents. The text-pages are the same as when processing the documents
+ * one at a time.
+ * With a {@link Quarantine}, a document that fails is quarantined and the run carries on with the other documents;
+ * without one, the first failure stops the run. A worker that's stuck on a document (see {@link Watchdog}) is
+ * replaced by a new worker, so a pathological page delays the run by the timeout at most.
+ * With a {@link ShardCoordinator}, the documents are shared with other processes: each page-range is extracted by the
+ * process that claims it, and the run ends once all the page-ranges are done, including the ones of processes that
+ * died in the middle.
+ */
+public class ExtractionEngine {
+
+    // Documents with more pages than this are split into page-ranges, processed by different workers
+    public static final int DEFAULT_PAGES_PER_TASK = 200;
+
+    private final int workers;
+    private final ExtractionMode mode;
+    private final int pagesPerTask;
+
+    private IngestManifest manifest;
+    private boolean requireIndexed;
+    private Quarantine quarantine;
+    private ShardCoordinator coordinator;
+
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicInteger documents = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+    private ThreadPoolExecutor executor;
+    private Semaphore slots;
+    private Phaser pending;
+    // Releases the slot of the task each worker is running, when the worker is given up on
+    private final Map<Thread, Runnable> running = new ConcurrentHashMap<>();
+    // Workers that were given up on and replaced by another worker, until they're done
+    private final Set<Thread> replaced = ConcurrentHashMap.newKeySet();
+
+    // Thrown when the sink fails (e.g. indexing failed), which stops the run even with a quarantine
+    private static class SinkFailure extends RuntimeException {
+        SinkFailure(RuntimeException cause) {
+            super(cause);
+        }
+    }
+
+    public ExtractionEngine(int workers, ExtractionMode mode) {
+        this(workers, mode, DEFAULT_PAGES_PER_TASK);
+    }
+
+    public ExtractionEngine(int workers, ExtractionMode mode, int pagesPerTask) {
+        if (workers < 1 || pagesPerTask < 1)
+            throw new IllegalArgumentException("Workers and pages-per-task must be positive");
+        this.workers = workers;
+        this.mode = mode;
+        this.pagesPerTask = pagesPerTask;
+    }
+
+    /**
+     * Skip documents that were already processed and haven't changed since, according to the manifest, and record
+     * the documents processed in this run.
+     * @param requireIndexed skip a document only if all its pages were also indexed
+     */
+    public ExtractionEngine withManifest(IngestManifest manifest, boolean requireIndexed) {
+        this.manifest = manifest;
+        this.requireIndexed = requireIndexed;
+        return this;
+    }
+
+    /**
+     * Quarantine the documents that fail, and carry on with the other documents. Documents quarantined in earlier runs
+     * are skipped.
+     */
+    public ExtractionEngine withQuarantine(Quarantine quarantine) {
+        this.quarantine = quarantine;
+        return this;
+    }
+
+    /**
+     * Share the documents with other processes through the coordinator. The manifest isn't used, since it can't be
+     * shared between processes.
+     */
+    public ExtractionEngine withCoordinator(ShardCoordinator coordinator) {
+        if (coordinator != null && mode == ExtractionMode.SPLIT)
+            throw new IllegalArgumentException("Documents can't be shared with other processes in split mode");
+        this.coordinator = coordinator;
+        return this;
+    }
+
+    /**
+     * Extract the text from all the PDF files under the folder (and sub-folders) into text-pages in the output folder.
+     * @param folder the source-folder
+     * @param srcDir the name of the source-folder, used for the text-page file names
+     * @param outputFolder where to save the text-pages
+     * @return the number of pages extracted
+     */
+    public long process(File folder, String srcDir, File outputFolder) throws IOException {
+        return process(folder, srcDir, PageSink.toFolder(outputFolder));
+    }
+
+    /**
+     * Extract the text from all the PDF files under the folder (and sub-folders), passing the text-pages to the sink.
+     * The sink is called concurrently by the workers, and may block them to apply backpressure.
+     * @return the number of pages extracted
+     */
+    public long process(File folder, String srcDir, PageSink sink) throws IOException {
+        pages.set(0);
+        documents.set(0);
+        skipped.set(0);
+        failure.set(null);
+
+        AtomicInteger threadNum = new AtomicInteger();
+        executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "extract-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Each worker may have up to two tasks waiting for it, the folder-walk blocks until there's room
+        slots = new Semaphore(workers * 3);
+        pending = new Phaser(1);
+        Semaphore taskSlots = slots;
+        PipelineMetrics.gauge("extraction-tasks", () -> workers * 3 - taskSlots.availablePermits());
+        Watchdog watchdog = Watchdog.active();
+        BiConsumer<Thread, Watchdog.Task> onTimeout = this::timedOut;
+        if (watchdog != null)
+            watchdog.onTimeout(onTimeout);
+
+        try {
+            if (coordinator == null) {
+                Utils.walkPdfFiles(folder, srcDir, (file, prefix) -> {
+                    if (failure.get() != null)
+                        return;
+                    if (manifest != null && manifest.isUpToDate(file, prefix, requireIndexed))
+                        skipped.incrementAndGet();
+                    else if (quarantine == null || ! quarantine.isQuarantined(file, prefix))
+                        submit(() -> isolated(file, prefix, () -> processDocument(file, prefix, sink)), true);
+                });
+                pending.arriveAndAwaitAdvance();
+            } else {
+                processShared(folder, srcDir, sink);
+            }
+        } finally {
+            if (watchdog != null)
+                watchdog.removeListener(onTimeout);
+            executor.shutdownNow();
+            running.clear();
+            PipelineMetrics.removeGauge("extraction-tasks");
+        }
+
+        if (failure.get() != null)
+            throw failure.get();
+        return pages.get();
+    }
+
+    // Passes over the documents, until none of their page-ranges are left, or held by other processes. A process that
+    // died leaves its page-ranges held until their leases expire, and they're claimed in a later pass.
+    private void processShared(File folder, String srcDir, PageSink sink) throws IOException {
+        for (int pass = 1; ; pass++) {
+            boolean firstPass = pass == 1;
+            coordinator.newPass();
+            Utils.walkPdfFiles(folder, srcDir, (file, prefix) -> {
+                if (failure.get() != null)
+                    return;
+                if (coordinator.isDone(file, prefix)) {
+                    if (firstPass)
+                        skipped.incrementAndGet();
+                } else if (quarantine == null || ! quarantine.isQuarantined(file, prefix)) {
+                    submit(() -> isolated(file, prefix, () -> processSharedDocument(file, prefix, sink)), true);
+                }
+            });
+            pending.arriveAndAwaitAdvance();
+
+            int busy = coordinator.busyElsewhere();
+            if (failure.get() != null || busy == 0)
+                return;
+            System.out.println("Waiting for " + busy + " page-ranges held by other processes...");
+            try {
+                Thread.sleep(coordinator.passIntervalMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for other processes", e);
+            }
+        }
+    }
+
+    private void processSharedDocument(File pdfFile, String prefix, PageSink pageSink) {
+        PageSink sink = failingRun(pageSink);
+        ShardCoordinator.Plan plan = coordinator.plan(pdfFile, prefix, pagesPerTask);
+        documents.incrementAndGet();
+        for (int range = 1; range < plan.ranges(); range++) {
+            int rangeNum = range;
+            submit(() -> isolated(pdfFile, prefix, () -> extractShared(pdfFile, prefix, sink, plan, rangeNum)), false);
+        }
+        extractShared(pdfFile, prefix, sink, plan, 0);
+    }
+
+    // Extracts a page-range, unless it's done or another process is working on it
+    private void extractShared(File pdfFile, String prefix, PageSink sink, ShardCoordinator.Plan plan, int range) {
+        ShardCoordinator.Lease lease = coordinator.claim(pdfFile, prefix, plan, range);
+        if (lease == null)
+            return;
+        boolean extracted = false;
+        try {
+            pages.addAndGet(PdfDocumentService.extractPages(pdfFile, prefix, sink, lease.fromPage(), lease.toPage()));
+            extracted = true;
+        } finally {
+            if (extracted)
+                coordinator.done(lease, plan);
+            else
+                coordinator.release(lease);
+        }
+    }
+
+    public long getPages() {
+        return pages.get();
+    }
+
+    public int getDocuments() {
+        return documents.get();
+    }
+
+    // Documents skipped because they haven't changed since they were processed
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    // Tasks submitted by the workers themselves (page-ranges) never block - when the queue is full, they run in the
+    // submitting worker instead
+    private void submit(Runnable task, boolean mayBlock) {
+        if (mayBlock) {
+            slots.acquireUninterruptibly();
+        } else if (! slots.tryAcquire()) {
+            runTask(task);
+            return;
+        }
+
+        pending.register();
+        // Called once, when the task is done or when its worker is given up on
+        AtomicBoolean settled = new AtomicBoolean();
+        Runnable settle = () -> {
+            if (settled.compareAndSet(false, true)) {
+                slots.release();
+                pending.arriveAndDeregister();
+            }
+        };
+        ThreadPoolExecutor pool = executor;
+        executor.execute(() -> {
+            running.put(Thread.currentThread(), settle);
+            try {
+                runTask(task);
+            } finally {
+                synchronized (this) {
+                    running.remove(Thread.currentThread());
+                    // A worker that was given up on and replaced is done, the pool shrinks back
+                    if (replaced.remove(Thread.currentThread()))
+                        resizePool(pool, -1);
+                }
+                settle.run();
+            }
+        });
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (Watchdog.TimedOut e) {
+            // the worker was already given up on
+        } catch (RuntimeException e) {
+            fail(e instanceof SinkFailure ? (RuntimeException) e.getCause() : e);
+        }
+    }
+
+    private void fail(RuntimeException e) {
+        if (! failure.compareAndSet(null, e))
+            failure.get().addSuppressed(e);
+    }
+
+    // Runs a task of a document, quarantining the document if the task fails
+    private void isolated(File pdfFile, String prefix, Runnable task) {
+        if (quarantine != null && quarantine.hasFailed(prefix))
+            return; // e.g. a page-range of a document that failed
+        Watchdog.Task previous = Watchdog.taskStarted(pdfFile, prefix);
+        Watchdog.Task current = Watchdog.currentTask();
+        try {
+            task.run();
+        } catch (SinkFailure e) {
+            throw e;
+        } catch (Watchdog.TimedOut e) {
+            // The task timed out, and the watchdog's listener didn't get to give up on it yet
+            if (current.decide())
+                gaveUp(current);
+        } catch (RuntimeException | StackOverflowError e) {
+            if (quarantine == null)
+                throw e instanceof RuntimeException runtime ? runtime :
+                        new RuntimeException("Failed to process " + pdfFile.getName(), e);
+            quarantine.add(pdfFile, prefix, e);
+        } finally {
+            // Done with the task, too late for the watchdog to give up on it
+            if (current != null)
+                current.decide();
+            Watchdog.taskDone(previous);
+        }
+    }
+
+    // Gives up on a worker that's stuck, and starts another worker instead (up to as many replacement workers as
+    // workers, after that the run waits for the stuck workers). The stuck worker's pages are discarded once it's done
+    // (see Watchdog.pageDone).
+    private void timedOut(Thread thread, Watchdog.Task task) {
+        if (! running.containsKey(thread) || ! task.decide())
+            return; // not one of this engine's workers, or the worker finished the task in the meantime
+
+        gaveUp(task);
+        ThreadPoolExecutor pool = executor;
+        Runnable settle;
+        synchronized (this) {
+            if (pool.getMaximumPoolSize() >= 2 * workers) {
+                System.out.println("Not replacing the worker of " + task.prefix() + ", " + workers +
+                        " workers are already stuck");
+                return;
+            }
+            settle = running.remove(thread);
+            if (settle == null)
+                return; // the worker is done with the task
+            replaced.add(thread);
+            resizePool(pool, 1);
+        }
+        settle.run();
+    }
+
+    private void gaveUp(Watchdog.Task task) {
+        if (quarantine != null)
+            quarantine.add(task.pdfFile(), task.prefix(), "Timed out: " + task.timedOut());
+        else
+            fail(new RuntimeException("Timed out: " + task.timedOut() + " in " + task.prefix()));
+    }
+
+    // The core size is never above the maximum size
+    private void resizePool(ThreadPoolExecutor pool, int delta) {
+        if (delta > 0) {
+            pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+            pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+        } else {
+            pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+            pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+        }
+    }
+
+    private void processDocument(File pdfFile, String prefix, PageSink pageSink) {
+        PageSink sink = failingRun(pageSink);
+        documents.incrementAndGet();
+        if (manifest != null)
+            manifest.startDocument(pdfFile, prefix);
+
+        if (mode == ExtractionMode.SPLIT) {
+            try {
+                int numPages = Utils.pdfToTxt(pdfFile, prefix, sink, mode);
+                pages.addAndGet(numPages);
+                if (manifest != null)
+                    manifest.documentExtracted(prefix, numPages);
+            } catch (IOException e) {
+                throw new RuntimeException("Unexpected state: failed to process " + pdfFile.getName(), e);
+            }
+            return;
+        }
+
+        try (PdfReader reader = PdfDocumentService.openReader(pdfFile)) {
+            int numPages = reader.getNumberOfPages();
+            DocumentProgress progress = new DocumentProgress(prefix, numPages);
+            for (int fromPage = pagesPerTask + 1; fromPage <= numPages; fromPage += pagesPerTask) {
+                int from = fromPage;
+                int to = fromPage + pagesPerTask - 1;
+                submit(() -> isolated(pdfFile, prefix, () -> progress.rangeDone(
+                        PdfDocumentService.extractPages(pdfFile, prefix, sink, from, to, progress.budget))), false);
+            }
+            progress.rangeDone(PdfDocumentService.extractPages(reader, prefix, sink, 1, pagesPerTask,
+                    progress.budget));
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected state: failed to process " + pdfFile.getName(), e);
+        }
+    }
+
+    // Sink errors aren't errors of the document, they stop the run even with a quarantine
+    private static PageSink failingRun(PageSink sink) {
+        return page -> {
+            try {
+                sink.accept(page);
+            } catch (RuntimeException e) {
+                throw new SinkFailure(e);
+            }
+        };
+    }
+
+    // Keeps track of the page-ranges of a document, so it's recorded as extracted once all its pages are done (pages
+    // skipped for the memory budget aren't, see PdfDocumentService.extractPages)
+    private class DocumentProgress {
+        private final String prefix;
+        private final int numPages;
+        private final AtomicInteger pagesLeft;
+        private final PdfDocumentService.MemoryBudget budget = new PdfDocumentService.MemoryBudget();
+
+        DocumentProgress(String prefix, int numPages) {
+            this.prefix = prefix;
+            this.numPages = numPages;
+            this.pagesLeft = new AtomicInteger(numPages);
+        }
+
+        void rangeDone(int rangePages) {
+            pages.addAndGet(rangePages);
+            if (pagesLeft.addAndGet(-rangePages) == 0 && manifest != null)
+                manifest.documentExtracted(prefix, numPages);
+        }
+    }
+}
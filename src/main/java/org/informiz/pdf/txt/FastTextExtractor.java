@@ -0,0 +1,387 @@
+package org.informiz.pdf.txt;
+
+import org.openpdf.text.pdf.CMapAwareDocumentFont;
+import org.openpdf.text.pdf.PRIndirectReference;
+import org.openpdf.text.pdf.PRTokeniser;
+import org.openpdf.text.pdf.PdfArray;
+import org.openpdf.text.pdf.PdfContentParser;
+import org.openpdf.text.pdf.PdfDictionary;
+import org.openpdf.text.pdf.PdfName;
+import org.openpdf.text.pdf.PdfNumber;
+import org.openpdf.text.pdf.PdfObject;
+import org.openpdf.text.pdf.PdfReader;
+import org.openpdf.text.pdf.PdfString;
+import org.openpdf.text.pdf.parser.PdfTextExtractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A text extractor for simple pages, e.g. text-layer or OCR-layer pages: it reads only the text-showing operators of
+ * the page's content stream, in their order, and decodes the strings with the page's fonts. The fonts are decoded
+ * once per document. Lines are broken where the text moves to another line, and words are separated where the text
+ * moves along the line.
+ * Pages that need the layout work of the full extractor ({@link PdfTextExtractor}) are passed to it instead: rotated
+ * or skewed text, form XObjects, inline images, marked content with replacement text, Type3 fonts, composite fonts
+ * without a ToUnicode map, strings that don't decode into readable text, and text positioned glyph by glyph.
+ * Like PdfTextExtractor, an extractor must not be shared between threads.
+ */
+public class FastTextExtractor extends PdfTextExtractor {
+
+    // Gaps in a TJ array wider than this (in thousandths of a text space unit) separate words
+    private static final float WORD_GAP = 200;
+    // Pages whose strings are shorter than this on average are positioned glyph by glyph
+    private static final int MIN_CHARS_PER_STRING = 2;
+    private static final int MIN_STRINGS_FOR_GLYPH_CHECK = 20;
+
+    private final PdfReader reader;
+    // Decoded fonts, by object number
+    private final Map<Integer, CMapAwareDocumentFont> fonts = new HashMap<>();
+    private final Set<Integer> complexFonts = new HashSet<>();
+
+    // The parts of the graphics state used by the extractor, saved by 'q' and restored by 'Q'
+    private record TextState(CMapAwareDocumentFont font, float leading) { }
+
+    private int fastPages = 0;
+    private int fullPages = 0;
+
+    public FastTextExtractor(PdfReader reader) {
+        super(reader);
+        this.reader = reader;
+    }
+
+    @Override
+    public String getTextFromPage(int page) throws IOException {
+        String text;
+        try {
+            text = fastText(page);
+        } catch (IOException | RuntimeException e) {
+            text = null; // let the full extractor deal with it
+        }
+        if (text != null) {
+            fastPages++;
+            return text;
+        }
+        fullPages++;
+        return super.getTextFromPage(page);
+    }
+
+    // Pages extracted by this extractor
+    public int getFastPages() {
+        return fastPages;
+    }
+
+    // Pages passed to the full extractor
+    public int getFullPages() {
+        return fullPages;
+    }
+
+    /**
+     * @return the text of the page, or null if the page needs the full extractor
+     */
+    String fastText(int page) throws IOException {
+        PdfDictionary resources = reader.getPageN(page).getAsDict(PdfName.RESOURCES);
+        PdfContentParser parser = new PdfContentParser(new PRTokeniser(reader.getPageContent(page)));
+        TextLines text = new TextLines();
+        CMapAwareDocumentFont font = null;
+        float leading = 0;
+        Deque<TextState> savedStates = new ArrayDeque<>();
+
+        ArrayList<PdfObject> operands = new ArrayList<>();
+        while (! parser.parse(operands).isEmpty()) {
+            String operator = operands.get(operands.size() - 1).toString();
+            switch (operator) {
+                case "q" -> savedStates.push(new TextState(font, leading));
+                case "Q" -> {
+                    if (savedStates.isEmpty())
+                        return null; // unbalanced
+                    TextState state = savedStates.pop();
+                    font = state.font();
+                    leading = state.leading();
+                }
+                case "BT" -> text.startText();
+                case "Tf" -> {
+                    font = font(resources, operands.get(0));
+                    if (font == null)
+                        return null;
+                }
+                case "TL" -> leading = number(operands.get(0));
+                case "Td" -> text.moveBy(number(operands.get(0)), number(operands.get(1)));
+                case "TD" -> {
+                    leading = -number(operands.get(1));
+                    text.moveBy(number(operands.get(0)), number(operands.get(1)));
+                }
+                case "T*" -> text.moveBy(0, -leading);
+                case "Tm" -> {
+                    if (number(operands.get(1)) != 0 || number(operands.get(2)) != 0)
+                        return null; // rotated or skewed
+                    text.moveTo(number(operands.get(4)), number(operands.get(5)), number(operands.get(3)));
+                }
+                case "cm" -> {
+                    if (number(operands.get(1)) != 0 || number(operands.get(2)) != 0)
+                        return null;
+                }
+                case "Tj", "'", "\"" -> {
+                    if (! operator.equals("Tj"))
+                        text.moveBy(0, -leading);
+                    if (! text.show(decode(font, operands.get(operands.size() - 2))))
+                        return null;
+                }
+                case "TJ" -> {
+                    for (PdfObject element : ((PdfArray) operands.get(0)).getElements()) {
+                        if (element instanceof PdfNumber gap) {
+                            if (-gap.floatValue() > WORD_GAP)
+                                text.space();
+                        } else if (! text.show(decode(font, element))) {
+                            return null;
+                        }
+                    }
+                }
+                case "Do" -> {
+                    if (isForm(resources, operands.get(0)))
+                        return null;
+                }
+                case "BDC" -> {
+                    if (PdfReader.getPdfObject(operands.get(1)) instanceof PdfDictionary properties &&
+                            properties.get(PdfName.ACTUALTEXT) != null)
+                        return null;
+                }
+                case "BI" -> {
+                    return null; // the image data can't be tokenised
+                }
+                default -> { }
+            }
+        }
+        return text.isPositionedByGlyph() ? null : text.toString();
+    }
+
+    private CMapAwareDocumentFont font(PdfDictionary resources, PdfObject name) {
+        PdfDictionary fontResources = resources == null ? null : resources.getAsDict(PdfName.FONT);
+        if (fontResources == null || ! (name instanceof PdfName fontName) ||
+                ! (fontResources.get(fontName) instanceof PRIndirectReference reference))
+            return null;
+
+        int number = reference.getNumber();
+        if (complexFonts.contains(number))
+            return null;
+        CMapAwareDocumentFont font = fonts.get(number);
+        if (font != null)
+            return font;
+
+        PdfObject fontObject = PdfReader.getPdfObject(reference);
+        if (! (fontObject instanceof PdfDictionary fontDict) || isComplex(fontDict)) {
+            complexFonts.add(number);
+            return null;
+        }
+        font = new CMapAwareDocumentFont(reference);
+        fonts.put(number, font);
+        return font;
+    }
+
+    private static boolean isComplex(PdfDictionary font) {
+        PdfName subtype = font.getAsName(PdfName.SUBTYPE);
+        return PdfName.TYPE3.equals(subtype) ||
+                (PdfName.TYPE0.equals(subtype) && font.get(PdfName.TOUNICODE) == null);
+    }
+
+    private static boolean isForm(PdfDictionary resources, PdfObject name) {
+        PdfDictionary xObjects = resources == null ? null : resources.getAsDict(PdfName.XOBJECT);
+        if (xObjects == null || ! (name instanceof PdfName xObjectName))
+            return true;
+        return ! (PdfReader.getPdfObject(xObjects.get(xObjectName)) instanceof PdfDictionary xObject) ||
+                ! PdfName.IMAGE.equals(xObject.getAsName(PdfName.SUBTYPE));
+    }
+
+    // The decoded string, or null if it doesn't decode into readable text
+    private static String decode(CMapAwareDocumentFont font, PdfObject string) {
+        if (font == null || ! (string instanceof PdfString pdfString))
+            return null;
+        byte[] bytes = pdfString.getOriginalBytes();
+        String decoded = font.decode(bytes, 0, bytes.length);
+        for (int i = 0; i < decoded.length(); i++) {
+            char c = decoded.charAt(i);
+            if (c == '\uFFFD' || (Character.isISOControl(c) && ! Character.isWhitespace(c)) ||
+                    Character.getType(c) == Character.PRIVATE_USE)
+                return null;
+        }
+        return decoded;
+    }
+
+    private static float number(PdfObject operand) {
+        return ((PdfNumber) operand).floatValue();
+    }
+
+    // The text of a page, with a line break where the text moves to another line, and a space where it moves along
+    // the line
+    private static class TextLines {
+        private final StringBuilder text = new StringBuilder();
+        private float lineY = 0;
+        private float scale = 1;
+        private boolean moved = false;
+        private Float shownY = null;
+        private int strings = 0;
+
+        void startText() {
+            lineY = 0;
+            scale = 1;
+            moved = true;
+        }
+
+        void moveBy(float tx, float ty) {
+            lineY += ty * scale;
+            moved = true;
+        }
+
+        void moveTo(float x, float y, float scale) {
+            this.lineY = y;
+            this.scale = scale == 0 ? 1 : Math.abs(scale);
+            moved = true;
+        }
+
+        void space() {
+            if (! text.isEmpty() && ! Character.isWhitespace(text.charAt(text.length() - 1)))
+                text.append(' ');
+        }
+
+        boolean show(String string) {
+            if (string == null)
+                return false;
+            if (string.isEmpty())
+                return true;
+            if (shownY != null && Math.abs(lineY - shownY) > 0.5f) {
+                while (! text.isEmpty() && text.charAt(text.length() - 1) == ' ')
+                    text.setLength(text.length() - 1);
+                text.append('\n');
+            } else if (moved) {
+                space();
+            }
+            text.append(string);
+            shownY = lineY;
+            moved = false;
+            strings++;
+            return true;
+        }
+
+        boolean isPositionedByGlyph() {
+            return strings >= MIN_STRINGS_FOR_GLYPH_CHECK && text.length() < strings * MIN_CHARS_PER_STRING;
+        }
+
+        @Override
+        public String toString() {
+            return text.toString().strip();
+        }
+    }
+
+    /**
+     * The results of extracting the same pages with both extractors, see {@link #compare(File, String, int)}.
+     */
+    public record Comparison(int pages, long fullNanos, long fastNanos, int fastPages, int samePages,
+                             int sameWordsPages, double wordSimilarity) {
+        public String summary() {
+            return String.format("%d pages: full extractor %.1f pages/sec, fast extractor %.1f pages/sec " +
+                            "(%.2fx speedup), %d pages (%.1f%%) extracted by the fast extractor, the rest by the " +
+                            "full extractor%n%d pages with the same text, %d more with the same words (different " +
+                            "spacing), %.1f%% of the words match overall", pages, perSecond(pages, fullNanos),
+                    perSecond(pages, fastNanos), fullNanos / (double) Math.max(1, fastNanos), fastPages,
+                    100.0 * fastPages / Math.max(1, pages), samePages, sameWordsPages - samePages,
+                    100 * wordSimilarity);
+        }
+
+        private static double perSecond(int pages, long nanos) {
+            return pages * 1_000_000_000.0 / Math.max(1, nanos);
+        }
+    }
+
+    /**
+     * Extract the text of all the pages of the PDF files under the folder (and sub-folders) with both extractors, and
+     * print the pages whose text differs.
+     * @param maxDiffs the number of differing pages to print
+     */
+    public static Comparison compare(File folder, String srcDir, int maxDiffs) throws IOException {
+        long[] nanos = new long[2];
+        int[] counts = new int[4]; // pages, fast pages, same pages, same words pages
+        long[] words = new long[2]; // matching words, total words
+        Utils.walkPdfFiles(folder, srcDir, (file, prefix) -> {
+            try (PdfReader reader = PdfDocumentService.openReader(file)) {
+                PdfTextExtractor full = new PdfTextExtractor(reader);
+                FastTextExtractor fast = new FastTextExtractor(reader);
+                for (int page = 1; page <= reader.getNumberOfPages(); page++) {
+                    // Alternately first, so neither extractor gains from the page being read by the other
+                    boolean fastFirst = page % 2 == 0;
+                    long start = System.nanoTime();
+                    String firstText = fastFirst ? fast.getTextFromPage(page) : full.getTextFromPage(page);
+                    long middle = System.nanoTime();
+                    String secondText = fastFirst ? full.getTextFromPage(page) : fast.getTextFromPage(page);
+                    long end = System.nanoTime();
+                    nanos[fastFirst ? 1 : 0] += middle - start;
+                    nanos[fastFirst ? 0 : 1] += end - middle;
+                    String fullText = fastFirst ? secondText : firstText;
+                    String fastText = fastFirst ? firstText : secondText;
+                    reader.releasePage(page);
+
+                    counts[0]++;
+                    String[] fullWords = words(fullText);
+                    String[] fastWords = words(fastText);
+                    int common = commonWords(fullWords, fastWords);
+                    words[0] += 2L * common;
+                    words[1] += fullWords.length + fastWords.length;
+                    if (fullText.equals(fastText)) {
+                        counts[2]++;
+                        counts[3]++;
+                    } else if (Arrays.equals(fullWords, fastWords)) {
+                        counts[3]++;
+                    } else if (counts[0] - counts[3] <= maxDiffs) {
+                        System.out.println(prefix + " page " + page + ": " + firstDifference(fullWords, fastWords));
+                    }
+                }
+                counts[1] += fast.getFastPages();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Failed to compare " + prefix + ": " + e);
+            }
+        });
+        return new Comparison(counts[0], nanos[0], nanos[1], counts[1], counts[2], counts[3],
+                words[1] == 0 ? 1 : words[0] / (double) words[1]);
+    }
+
+    private static String[] words(String text) {
+        String stripped = text == null ? "" : text.strip();
+        return stripped.isEmpty() ? new String[0] : stripped.split("\\s+");
+    }
+
+    // The length of the longest common sequence of words, for pages of up to a few thousand words
+    private static int commonWords(String[] a, String[] b) {
+        String[] x = a.length > 5000 ? Arrays.copyOf(a, 5000) : a;
+        String[] y = b.length > 5000 ? Arrays.copyOf(b, 5000) : b;
+        int[] previous = new int[y.length + 1];
+        int[] current = new int[y.length + 1];
+        for (String word : x) {
+            for (int j = 1; j <= y.length; j++)
+                current[j] = word.equals(y[j - 1]) ? previous[j - 1] + 1 : Math.max(previous[j], current[j - 1]);
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[y.length];
+    }
+
+    private static String firstDifference(String[] full, String[] fast) {
+        int i = 0;
+        while (i < full.length && i < fast.length && full[i].equals(fast[i]))
+            i++;
+        return "word " + (i + 1) + ", full: '" + context(full, i) + "', fast: '" + context(fast, i) + "'";
+    }
+
+    private static String context(String[] words, int index) {
+        List<String> context = Arrays.asList(words).subList(Math.max(0, index - 3), Math.min(words.length, index + 4));
+        return String.join(" ", context);
+    }
+}
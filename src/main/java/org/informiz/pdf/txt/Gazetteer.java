@@ -0,0 +1,208 @@
+package org.informiz.pdf.txt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Finds known names (people, places, organizations and groups) in page text, using dictionaries of names supplied by
+ * the user. All the names are matched in a single pass over the text with an Aho-Corasick automaton, so the cost
+ * doesn't depend on the number of names. Matching is case-insensitive, and only whole words are matched.
+ * Dictionaries are text files named after the entity type (people.txt, places.txt, orgs.txt, groups.txt), with a name
+ * per line. A line may list alternative spellings separated by '|', e.g. "New York|NYC|New York City"; matches are
+ * reported with the first spelling. Empty lines and lines starting with '#' are ignored.
+ * A gazetteer is immutable once built, and may be shared between threads.
+ */
+public class Gazetteer {
+
+    public enum EntityType { PEOPLE, PLACES, ORGS, GROUPS }
+
+    private record Entry(EntityType type, String name, int length) { }
+
+    private record Match(int start, int end, Entry entry) { }
+
+    // The automaton: the sorted transition chars and target states of each state, its failure state, and the entries
+    // ending at it (including the entries of its failure states)
+    private final char[][] transitionChars;
+    private final int[][] transitionStates;
+    private final int[] failure;
+    private final Entry[][] outputs;
+
+    private Gazetteer(List<Map<Character, Integer>> trie, List<List<Entry>> entries) {
+        int numStates = trie.size();
+        transitionChars = new char[numStates][];
+        transitionStates = new int[numStates][];
+        for (int state = 0; state < numStates; state++) {
+            Map<Character, Integer> transitions = trie.get(state);
+            transitionChars[state] = new char[transitions.size()];
+            transitionStates[state] = new int[transitions.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> transition : transitions.entrySet()) {
+                transitionChars[state][i] = transition.getKey();
+                transitionStates[state][i++] = transition.getValue();
+            }
+        }
+
+        // Breadth-first, so the failure state of a state is computed before the states below it
+        failure = new int[numStates];
+        outputs = new Entry[numStates][];
+        outputs[0] = new Entry[0];
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int child : transitionStates[0]) {
+            outputs[child] = entries.get(child).toArray(new Entry[0]);
+            queue.add(child);
+        }
+        while (! queue.isEmpty()) {
+            int state = queue.poll();
+            for (int i = 0; i < transitionChars[state].length; i++) {
+                char c = transitionChars[state][i];
+                int child = transitionStates[state][i];
+                int fail = failure[state];
+                while (fail > 0 && next(fail, c) < 0)
+                    fail = failure[fail];
+                int target = next(fail, c);
+                failure[child] = target >= 0 && target != child ? target : 0;
+
+                List<Entry> childOutputs = new ArrayList<>(entries.get(child));
+                childOutputs.addAll(Arrays.asList(outputs[failure[child]]));
+                outputs[child] = childOutputs.toArray(new Entry[0]);
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Load the dictionaries in a folder, see {@link Gazetteer}. Missing dictionaries are skipped.
+     */
+    public static Gazetteer load(File dictionariesFolder) throws IOException {
+        Builder builder = new Builder();
+        for (EntityType type : EntityType.values()) {
+            File dictionary = new File(dictionariesFolder, type.name().toLowerCase() + ".txt");
+            if (! dictionary.isFile())
+                continue;
+            for (String line : Files.readAllLines(dictionary.toPath(), StandardCharsets.UTF_8)) {
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] spellings = line.split("\\|");
+                for (String spelling : spellings)
+                    builder.add(type, spelling.strip(), spellings[0].strip());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return a gazetteer without any names
+     */
+    public static Gazetteer empty() {
+        return new Builder().build();
+    }
+
+    /**
+     * Find the names in a text. A name that's part of a longer name (e.g. 'York' in 'New York') is not reported for
+     * that occurrence.
+     * @return the distinct names of each type, in order of first appearance
+     */
+    public Map<EntityType, Set<String>> find(String text) {
+        List<Match> matches = new ArrayList<>();
+        int state = 0;
+        for (int end = 0; end < text.length(); end++) {
+            char c = Character.toLowerCase(text.charAt(end));
+            int target;
+            while ((target = next(state, c)) < 0 && state > 0)
+                state = failure[state];
+            state = Math.max(target, 0);
+
+            for (Entry entry : outputs[state]) {
+                int start = end - entry.length() + 1;
+                if (isBoundary(text, start - 1) && isBoundary(text, end + 1))
+                    matches.add(new Match(start, end + 1, entry));
+            }
+        }
+
+        Map<EntityType, Set<String>> found = new EnumMap<>(EntityType.class);
+        for (EntityType type : EntityType.values())
+            found.put(type, new LinkedHashSet<>());
+
+        // By start, longest first, so a match is dropped if an earlier (or longer) one reaches its end. Names with the
+        // same spelling (e.g. a place and an organization) are all kept.
+        matches.sort(Comparator.comparingInt(Match::start).thenComparing(Match::end, Comparator.reverseOrder()));
+        Match last = null;
+        for (Match match : matches) {
+            boolean sameSpan = last != null && last.start() == match.start() && last.end() == match.end();
+            if (last != null && match.end() <= last.end() && ! sameSpan)
+                continue;
+            found.get(match.entry().type()).add(match.entry().name());
+            last = match;
+        }
+        return found;
+    }
+
+    private int next(int state, char c) {
+        int i = Arrays.binarySearch(transitionChars[state], c);
+        return i >= 0 ? transitionStates[state][i] : -1;
+    }
+
+    private static boolean isBoundary(String text, int index) {
+        return index < 0 || index >= text.length() || ! Character.isLetterOrDigit(text.charAt(index));
+    }
+
+    /**
+     * Collects names into a trie, to be compiled into a gazetteer.
+     */
+    public static class Builder {
+        private final List<Map<Character, Integer>> trie = new ArrayList<>();
+        private final List<List<Entry>> entries = new ArrayList<>();
+
+        public Builder() {
+            newState();
+        }
+
+        /**
+         * Add a spelling of a name.
+         * @param spelling the text to match
+         * @param name the name reported when the spelling is found
+         */
+        public Builder add(EntityType type, String spelling, String name) {
+            if (spelling.isEmpty())
+                return this;
+            int state = 0;
+            for (int i = 0; i < spelling.length(); i++) {
+                char c = Character.toLowerCase(spelling.charAt(i));
+                Integer next = trie.get(state).get(c);
+                if (next == null) {
+                    next = newState();
+                    trie.get(state).put(c, next);
+                }
+                state = next;
+            }
+            Entry entry = new Entry(type, name, spelling.length());
+            if (! entries.get(state).contains(entry))
+                entries.get(state).add(entry);
+            return this;
+        }
+
+        public Gazetteer build() {
+            return new Gazetteer(trie, entries);
+        }
+
+        private int newState() {
+            trie.add(new TreeMap<>());
+            entries.add(new ArrayList<>());
+            return trie.size() - 1;
+        }
+    }
+}
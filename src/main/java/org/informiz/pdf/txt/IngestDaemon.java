@@ -0,0 +1,571 @@
+package org.informiz.pdf.txt;
+
+import org.openpdf.text.pdf.PdfReader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+
+import static java.lang.System.exit;
+
+/**
+ * Keeps watching source-folders for new or changed PDF files, and extracts and indexes them as soon as they land,
+ * without restarting the JVM (and re-scanning the whole tree) for every batch.
+ * A file is processed once it hasn't changed for a while (--quiet-ms, default 2 seconds), so files that are still
+ * being copied aren't read half-way. Small files (up to --urgent-mb, default 5MB) are processed first, then larger
+ * files, and only then the documents found by the initial scan of the folders (the backfill). The bulk requests are
+ * sent whenever the workers are idle, so a new document is searchable within seconds.
+ * On shutdown (e.g. Ctrl-C) the daemon stops watching, finishes the queued documents (up to --drain-seconds) and waits
+ * for the pending bulk requests. Documents that were not processed are picked up by the backfill on the next start,
+ * through the manifest.
+ * Documents that fail, or whose extraction times out (see {@link Watchdog}), are quarantined and the daemon carries on;
+ * a worker that's stuck on a page is replaced by a new worker, up to as many stuck workers as --workers (then the
+ * daemon carries on with fewer workers, until the stuck ones are done).
+ */
+public class IngestDaemon implements Closeable {
+
+    public static final int DEFAULT_QUIET_MS = 2000;
+    public static final int DEFAULT_URGENT_MB = 5;
+    public static final int DEFAULT_DRAIN_SECONDS = 60;
+
+    // How often the watcher checks for files that became quiet
+    private static final long POLL_MS = 200;
+
+    /**
+     * The order in which documents are processed: small new documents first, then large new documents, then the
+     * documents found by the initial scan.
+     */
+    public enum Priority { URGENT, LARGE, BACKFILL }
+
+    /**
+     * Daemon settings.
+     * @param quietMs how long a file must stay unchanged before it's processed
+     * @param urgentBytes new files up to this size are processed first
+     * @param drainSeconds how long to keep processing the queued documents on shutdown
+     * @param workers number of concurrent extraction workers
+     * @param backfill whether to process the documents that are already in the folders when the daemon starts
+     */
+    public record Config(long quietMs, long urgentBytes, int drainSeconds, int workers, boolean backfill) {
+
+        // E.g. --quiet-ms=5000 --urgent-mb=10 --drain-seconds=120 --workers=4 --no-backfill
+        public static Config fromArgs(String[] args) {
+            return new Config(Utils.getIntOption(args, "--quiet-ms", DEFAULT_QUIET_MS),
+                    Utils.getIntOption(args, "--urgent-mb", DEFAULT_URGENT_MB) * 1024L * 1024,
+                    Utils.getIntOption(args, "--drain-seconds", DEFAULT_DRAIN_SECONDS), Utils.getWorkers(args),
+                    ! Utils.hasFlag(args, "--no-backfill"));
+        }
+    }
+
+    private record Job(File file, String prefix, Priority priority, long seq, long landed)
+            implements Comparable<Job> {
+        @Override
+        public int compareTo(Job other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(seq, other.seq);
+        }
+    }
+
+    // A file that changed recently, and is processed once it stays the same for quietMs
+    private static final class Change {
+        final Path root;
+        final long landed = System.currentTimeMillis();
+        long size;
+        long mtime;
+        long lastChange;
+
+        Change(Path root) {
+            this.root = root;
+        }
+    }
+
+    private final List<Path> roots;
+    private final Config config;
+    private final IngestManifest manifest;
+    private final PageSink sink;
+    private Runnable onIdle = () -> { };
+    private Quarantine quarantine;
+
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+    private final Map<Path, Change> changes = new HashMap<>();
+
+    private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>();
+    private final Set<Path> queued = ConcurrentHashMap.newKeySet();
+    private final AtomicLong seq = new AtomicLong();
+    private final AtomicInteger busy = new AtomicInteger();
+    private final Set<Thread> workers = ConcurrentHashMap.newKeySet();
+    // Workers that timed out and were given up on, until they're done
+    private final Set<Thread> stuck = ConcurrentHashMap.newKeySet();
+    // The job of each busy worker
+    private final Map<Thread, Job> running = new ConcurrentHashMap<>();
+    private final AtomicInteger workerNum = new AtomicInteger();
+
+    private final AtomicInteger documents = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong pages = new AtomicLong();
+
+    private volatile boolean stopping = false;
+    private volatile boolean abandoned = false;
+
+    /**
+     * @param roots the source-folders to watch
+     * @param manifest skips documents that were already processed and haven't changed since
+     * @param sink receives the text-pages, called concurrently by the workers
+     */
+    public IngestDaemon(List<File> roots, Config config, IngestManifest manifest, PageSink sink) throws IOException {
+        this.roots = roots.stream().map(root -> root.getAbsoluteFile().toPath()).toList();
+        this.config = config;
+        this.manifest = manifest;
+        this.sink = sink;
+        this.watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Set an action to run whenever the workers run out of documents, e.g. sending the pages collected so far.
+     */
+    public IngestDaemon onIdle(Runnable action) {
+        this.onIdle = action;
+        return this;
+    }
+
+    /**
+     * Quarantine the documents that fail (the failures are only reported otherwise), and skip the documents
+     * quarantined earlier.
+     */
+    public IngestDaemon withQuarantine(Quarantine quarantine) {
+        this.quarantine = quarantine;
+        return this;
+    }
+
+    static void main(String[] args) {
+        if (args == null || args.length == 0) {
+            System.out.println("Please provide full paths to the source-folders to watch, separated by '" +
+                    File.pathSeparator + "'");
+            System.out.println("Example usage:");
+            System.out.println("ES_LOCAL_API_KEY=je0i4rfvnho....ero8p9vk4jw==  " +
+                    "java -cp path/to/app.jar org.informiz.pdf.txt.IngestDaemon /full/path/to/pdf/folder/");
+            System.out.println("Add --quiet-ms=N to set how long a file must stay unchanged before it's processed " +
+                    "(default: " + DEFAULT_QUIET_MS + ")");
+            System.out.println("Add --urgent-mb=N to set the size up to which new files are processed first " +
+                    "(default: " + DEFAULT_URGENT_MB + ")");
+            System.out.println("Add --drain-seconds=N to set how long to keep processing queued files on shutdown " +
+                    "(default: " + DEFAULT_DRAIN_SECONDS + ")");
+            System.out.println("Add --no-backfill to skip the files that are already in the folders on start-up");
+            System.out.println("Add --keep-pages to also write the pages to the text_pages folder");
+            System.out.println("--workers, --full, --cache, --dedup, --engine, --metrics, --page-timeout, " +
+                    "--doc-timeout, --quarantine, the bulk and ElasticSearch options are the same as in " +
+                    "ElasticSearchService");
+            exit(1);
+        }
+
+        List<File> roots = new ArrayList<>();
+        for (String folder : args[0].split(File.pathSeparator)) {
+            File root = new File(folder);
+            if (! root.isDirectory()) {
+                System.out.println("Source-folder " + folder + " does not exist");
+                exit(2);
+            }
+            roots.add(root);
+        }
+
+        Config config = Config.fromArgs(args);
+        BulkIndexer.Config bulkConfig = BulkIndexer.Config.fromArgs(args);
+        PageDeduplicator dedup = PageDeduplicator.fromArgs(args);
+        if (dedup != null)
+            roots.forEach(dedup::withFolders);
+        PdfDocumentService.configureLargeFiles(args);
+        PdfDocumentService.configureEngine(args);
+        File pagesFolder = Utils.hasFlag(args, "--keep-pages") ? Utils.createTxtPagesFolder() : new File("text_pages");
+
+        try (EsTransport transport = EsTransport.configure(args);
+             PipelineMetrics.Reporter metrics = PipelineMetrics.reporterFromArgs(args);
+             ExtractionCache cache = ExtractionCache.fromArgs(args, new File("text_pages"));
+             Watchdog watchdog = Watchdog.fromArgs(args);
+             Quarantine quarantine = Quarantine.fromArgs(args, new File("text_pages"));
+             IngestManifest manifest = IngestManifest.forPagesFolder(pagesFolder, Utils.hasFlag(args, "--full"))) {
+            String index = ElasticSearchService.PAGES_IDX;
+            ElasticSearchService.createIndexIfNotExists(index, ElasticSearchService.MAPPING_RAW);
+
+            BulkIndexer indexer = new BulkIndexer(transport, index, bulkConfig);
+            indexer.onIndexed(ElasticSearchService.recordIndexed(manifest, dedup));
+            // Payload writers aren't thread-safe, each worker has its own
+            ThreadLocal<BulkPayloadWriter> payloads = ThreadLocal.withInitial(() -> new BulkPayloadWriter(index));
+            PageSink sink = page -> {
+                Matcher namePattern = ElasticSearchService.PAGE_TXT_PATTERN.matcher(page.fileName());
+                if (namePattern.find() && ! manifest.isIndexed(page.filenamePrefix(), page.pageNum()))
+                    ElasticSearchService.sendPage(payloads.get(), indexer, page, namePattern.group(1), manifest,
+                            dedup);
+            };
+            if (Utils.hasFlag(args, "--keep-pages"))
+                sink = PageSink.toFolder(pagesFolder).andThen(sink);
+
+            try (indexer; IngestDaemon daemon = new IngestDaemon(roots, config, manifest, sink)) {
+                daemon.onIdle(indexer::flush).withQuarantine(quarantine);
+                Thread mainThread = Thread.currentThread();
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    daemon.stop();
+                    try {
+                        mainThread.join(TimeUnit.SECONDS.toMillis(config.drainSeconds() + 60L));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, "ingest-shutdown"));
+                daemon.run();
+            }
+            System.out.println(indexer.summary());
+            if (dedup != null)
+                System.out.println(dedup.report());
+            if (cache != null)
+                System.out.println(cache.stats());
+            if (quarantine != null)
+                System.out.println(quarantine.summary());
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected error while watching files", e);
+        }
+    }
+
+    /**
+     * Watch the source-folders and process the documents until {@link #stop()} is called, then finish the queued
+     * documents (up to the drain time).
+     */
+    public void run() throws IOException {
+        System.out.println("Watching " + roots + " for PDF files, press Ctrl-C to stop");
+        // The files that are already there are processed by the backfill
+        for (Path root : roots)
+            register(root, root, false);
+
+        for (int i = 1; i <= config.workers(); i++)
+            startWorker();
+        PipelineMetrics.gauge("documents-to-ingest", queue::size);
+        Watchdog watchdog = Watchdog.active();
+        BiConsumer<Thread, Watchdog.Task> onTimeout = this::timedOut;
+        if (watchdog != null)
+            watchdog.onTimeout(onTimeout);
+
+        try {
+            if (config.backfill()) {
+                long before = seq.get();
+                for (Path root : roots) {
+                    Utils.walkPdfFiles(root.toFile(), root.toFile().getName(), (file, prefix) ->
+                            submit(file, prefix, Priority.BACKFILL, System.currentTimeMillis()));
+                }
+                System.out.println((seq.get() - before) + " documents found in the source-folders");
+            }
+            watch();
+        } finally {
+            drain();
+            if (watchdog != null)
+                watchdog.removeListener(onTimeout);
+            PipelineMetrics.removeGauge("documents-to-ingest");
+        }
+    }
+
+    /**
+     * Stop watching, and finish the queued documents. May be called from any thread, e.g. a shutdown hook.
+     */
+    public void stop() {
+        stopping = true;
+    }
+
+    public int getDocuments() {
+        return documents.get();
+    }
+
+    public long getPages() {
+        return pages.get();
+    }
+
+    // Documents skipped because they haven't changed since they were processed
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopping = true;
+        watcher.close();
+    }
+
+    private void watch() throws IOException {
+        while (! stopping) {
+            WatchKey key;
+            try {
+                key = watcher.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+
+            for (; key != null; key = watcher.poll()) {
+                Path dir = watchedDirs.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, look for changes in all the folders (unchanged documents are skipped)
+                        for (Path root : roots)
+                            register(root, root, true);
+                    } else if (dir != null) {
+                        changed(dir.resolve((Path) event.context()));
+                    }
+                }
+                if (! key.reset())
+                    watchedDirs.remove(key);
+            }
+            submitQuietFiles();
+        }
+    }
+
+    private void changed(Path path) throws IOException {
+        Path root = rootOf(path);
+        if (root == null)
+            return;
+        if (Files.isDirectory(path)) {
+            // Files may have been added to a new folder before it's watched
+            register(path, root, true);
+        } else if (path.getFileName().toString().endsWith(".pdf")) {
+            Change change = changes.computeIfAbsent(path, p -> new Change(root));
+            change.lastChange = System.currentTimeMillis();
+        }
+    }
+
+    // Watches a folder and its sub-folders
+    // @param addFiles whether to treat the PDF files in them as changed
+    private void register(Path folder, Path root, boolean addFiles) throws IOException {
+        Files.walkFileTree(folder, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                if (! watchedDirs.containsValue(dir))
+                    watchedDirs.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (addFiles && file.getFileName().toString().endsWith(".pdf"))
+                    changes.computeIfAbsent(file, p -> new Change(root)).lastChange = System.currentTimeMillis();
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Submits the changed files that haven't changed for quietMs, and are not still being written
+    private void submitQuietFiles() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<Path, Change>> it = changes.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Change> entry = it.next();
+            Change change = entry.getValue();
+            if (now - change.lastChange < config.quietMs())
+                continue;
+
+            File file = entry.getKey().toFile();
+            if (! file.isFile() || ! file.getName().endsWith(".pdf")) {
+                it.remove();
+                continue;
+            }
+            long size = file.length();
+            long mtime = file.lastModified();
+            if (size != change.size || mtime != change.mtime) {
+                // Still growing, wait another quiet period
+                change.size = size;
+                change.mtime = mtime;
+                change.lastChange = now;
+                continue;
+            }
+            it.remove();
+            submit(file, prefixOf(change.root, entry.getKey()),
+                    size <= config.urgentBytes() ? Priority.URGENT : Priority.LARGE, change.landed);
+        }
+    }
+
+    private void submit(File file, String prefix, Priority priority, long landed) {
+        // A document that's already queued is processed with its latest content anyway
+        if (queued.add(file.toPath()))
+            queue.add(new Job(file, prefix, priority, seq.incrementAndGet(), landed));
+    }
+
+    private void work() {
+        try {
+            processJobs();
+        } finally {
+            stuckWorkerDone();
+        }
+    }
+
+    // Until the daemon stops, or the worker is given up on
+    private void processJobs() {
+        while (! abandoned && workers.contains(Thread.currentThread())) {
+            Job job;
+            try {
+                job = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == null) {
+                if (stopping)
+                    return;
+                continue;
+            }
+
+            busy.incrementAndGet();
+            running.put(Thread.currentThread(), job);
+            queued.remove(job.file().toPath());
+            Watchdog.Task previous = Watchdog.taskStarted(job.file(), job.prefix());
+            try {
+                process(job);
+            } catch (Watchdog.TimedOut e) {
+                // This worker was replaced when it timed out
+                return;
+            } catch (RuntimeException | StackOverflowError e) {
+                // A bad document mustn't stop the daemon
+                failed(job.file(), job.prefix(), e);
+            } finally {
+                Watchdog.taskDone(previous);
+                if (running.remove(Thread.currentThread()) != null && busy.decrementAndGet() == 0 && queue.isEmpty())
+                    onIdle.run();
+            }
+        }
+    }
+
+    // Daemon threads, so workers stuck on a page don't keep the JVM from exiting
+    private void startWorker() {
+        Thread worker = new Thread(this::work, "ingest-" + workerNum.incrementAndGet());
+        worker.setDaemon(true);
+        workers.add(worker);
+        worker.start();
+    }
+
+    // Gives up on a worker that's stuck on a document, and starts another worker instead, unless there are already as
+    // many stuck workers as workers (a page that never finishes keeps its thread busy for good)
+    private void timedOut(Thread thread, Watchdog.Task task) {
+        if (! workers.remove(thread))
+            return;
+        if (running.remove(thread) != null)
+            busy.decrementAndGet();
+        failed(task.pdfFile(), task.prefix(), new RuntimeException("Timed out: " + task.timedOut()));
+        synchronized (stuck) {
+            stuck.add(thread);
+            if (abandoned)
+                return;
+            if (workers.size() + stuck.size() >= 2 * config.workers()) {
+                System.out.println("Not replacing the worker of " + task.prefix() + ", " + stuck.size() +
+                        " workers are already stuck");
+                return;
+            }
+            startWorker();
+        }
+    }
+
+    // A worker that was given up on is done after all, it's replaced if it wasn't when it timed out
+    private void stuckWorkerDone() {
+        synchronized (stuck) {
+            if (stuck.remove(Thread.currentThread()) && ! stopping && workers.size() < config.workers())
+                startWorker();
+        }
+    }
+
+    private void failed(File pdfFile, String prefix, Throwable error) {
+        failed.incrementAndGet();
+        if (quarantine == null)
+            System.out.println("Failed to process " + prefix + ": " + error);
+        else
+            quarantine.add(pdfFile, prefix, error);
+    }
+
+    private void process(Job job) {
+        if (manifest != null && manifest.isUpToDate(job.file(), job.prefix(), true)) {
+            skipped.incrementAndGet();
+            return;
+        }
+        if (quarantine != null && quarantine.isQuarantined(job.file(), job.prefix()))
+            return;
+        if (manifest != null)
+            manifest.startDocument(job.file(), job.prefix());
+        int numPages;
+        try (PdfReader reader = PdfDocumentService.openReader(job.file())) {
+            numPages = PdfDocumentService.extractPages(reader, job.prefix(), sink, 1, Integer.MAX_VALUE);
+            // A document with pages skipped for the memory budget is extracted again when it's scanned again
+            if (manifest != null && numPages == reader.getNumberOfPages())
+                manifest.documentExtracted(job.prefix(), numPages);
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected state: failed to process " + job.file().getName(), e);
+        }
+        documents.incrementAndGet();
+        pages.addAndGet(numPages);
+        if (job.priority() != Priority.BACKFILL)
+            System.out.println("Extracted " + numPages + " pages of " + job.prefix() + ", " +
+                    (System.currentTimeMillis() - job.landed()) + " ms after it changed");
+    }
+
+    // Lets the workers finish the queued documents, up to the drain time
+    private void drain() {
+        stopping = true;
+        if (! queue.isEmpty() || busy.get() > 0)
+            System.out.println("Stopping: finishing " + (queue.size() + busy.get()) + " documents...");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.drainSeconds());
+        for (Thread worker : List.copyOf(workers)) {
+            try {
+                worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        abandoned = true;
+        if (! queue.isEmpty())
+            System.out.println(queue.size() + " documents were not processed, they will be on the next start");
+        System.out.println("Ingested " + documents.get() + " documents (" + pages.get() + " pages), skipped " +
+                skipped.get() + " unchanged documents, " + failed.get() + " failed");
+    }
+
+    private Path rootOf(Path path) {
+        for (Path root : roots) {
+            if (path.startsWith(root))
+                return root;
+        }
+        return null;
+    }
+
+    // Same as the prefix given by Utils.walkPdfFiles: the file name, including the sub-folders under the root
+    static String prefixOf(Path root, Path file) {
+        StringBuilder prefix = new StringBuilder();
+        for (Path part : root.relativize(file))
+            prefix.append(prefix.isEmpty() ? "" : "_").append(part);
+        return prefix.toString();
+    }
+}
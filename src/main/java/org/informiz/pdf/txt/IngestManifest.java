@@ -0,0 +1,277 @@
+package org.informiz.pdf.txt;
+
+import tools.jackson.core.JacksonException;
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.ObjectMapper;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps track of the source PDF files that were processed: their size, modification time and content hash, the number
+ * of pages extracted from them, and the pages acknowledged by ElasticSearch. Reruns use it to skip unchanged documents
+ * and to re-send only the pages that were not indexed.
+ * The manifest is an append-only journal (one JSON object per line) stored beside the text_pages folder, so progress
+ * survives a crash; it is compacted into one line per document when closed.
+ */
+public class IngestManifest implements Closeable {
+
+    static final Pattern PAGE_ID_PATTERN = Pattern.compile("(.+)_page(\\d+)\\.pdf\\.txt");
+
+    private static final ObjectMapper MAPPER = new JsonMapper();
+
+    private static final class DocState {
+        long size;
+        long mtime;
+        String sha256;
+        int numPages = -1;
+        boolean extracted;
+        final BitSet indexed = new BitSet();
+    }
+
+    // The content hash of a file as of its size and modification time
+    private record Digest(long size, long mtime, String sha256) { }
+
+    private final Path journal;
+    private final Map<String, DocState> docs = new HashMap<>();
+    // Hashes computed by isUpToDate for documents that changed, reused when the documents are started
+    private final Map<String, Digest> digests = new HashMap<>();
+    private BufferedWriter writer;
+
+    private IngestManifest(Path journal, boolean fresh) throws IOException {
+        this.journal = journal;
+        if (fresh)
+            Files.deleteIfExists(journal);
+        else if (Files.exists(journal))
+            replay();
+        writer = Files.newBufferedWriter(journal, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Open the manifest of a text-pages folder, e.g. text_pages.manifest for the text_pages folder.
+     * The folder itself doesn't need to exist (e.g., when the pages are streamed to ElasticSearch).
+     * @param fresh discard the previous runs, so all the documents are processed again
+     */
+    public static IngestManifest forPagesFolder(File pagesFolder, boolean fresh) throws IOException {
+        File folder = pagesFolder.getAbsoluteFile();
+        return new IngestManifest(new File(folder.getParentFile(), folder.getName() + ".manifest").toPath(), fresh);
+    }
+
+    /**
+     * Check whether a document was already processed and hasn't changed since. The content hash is computed only
+     * when the size or modification time of the file have changed.
+     * @param requireIndexed whether all the pages of the document must also have been indexed
+     */
+    public boolean isUpToDate(File pdfFile, String prefix, boolean requireIndexed) {
+        DocState state;
+        synchronized (this) {
+            state = docs.get(prefix);
+            if (state == null || ! state.extracted)
+                return false;
+            if (requireIndexed && state.indexed.cardinality() < state.numPages)
+                return false;
+            if (state.size == pdfFile.length() && state.mtime == pdfFile.lastModified())
+                return true;
+        }
+
+        // Touched, but possibly with the same content
+        long size = pdfFile.length();
+        long mtime = pdfFile.lastModified();
+        String sha256 = sha256(pdfFile);
+        synchronized (this) {
+            if (! sha256.equals(state.sha256)) {
+                digests.put(prefix, new Digest(size, mtime, sha256));
+                return false;
+            }
+            Map<String, Object> entry = fingerprint(prefix, pdfFile, sha256);
+            entry.put("pages", state.numPages);
+            append(entry);
+            return true;
+        }
+    }
+
+    /**
+     * Record that a document is being processed. If its content has changed since it was last processed, its
+     * previously indexed pages are forgotten. The content hash computed by {@link #isUpToDate} is reused, as long as
+     * the file hasn't changed since.
+     */
+    public void startDocument(File pdfFile, String prefix) {
+        Digest digest;
+        synchronized (this) {
+            digest = digests.remove(prefix);
+        }
+        boolean unchanged = digest != null && digest.size() == pdfFile.length() &&
+                digest.mtime() == pdfFile.lastModified();
+        append(fingerprint(prefix, pdfFile, unchanged ? digest.sha256() : sha256(pdfFile)));
+    }
+
+    /**
+     * Record that the text was extracted from all the pages of a document.
+     */
+    public void documentExtracted(String prefix, int numPages) {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("doc", prefix);
+        entry.put("pages", numPages);
+        append(entry);
+    }
+
+    /**
+     * Record the text-pages acknowledged by ElasticSearch.
+     * @param ids text-page file names, e.g. filenamePrefix_page123.pdf.txt
+     */
+    public void pagesIndexed(List<String> ids) {
+        Map<String, List<Integer>> pagesByDoc = new LinkedHashMap<>();
+        for (String id : ids) {
+            Matcher matcher = PAGE_ID_PATTERN.matcher(id);
+            if (matcher.matches())
+                pagesByDoc.computeIfAbsent(matcher.group(1), doc -> new ArrayList<>())
+                        .add(Integer.parseInt(matcher.group(2)));
+        }
+
+        synchronized (this) {
+            pagesByDoc.forEach((doc, pages) -> {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("doc", doc);
+                entry.put("indexed", pages);
+                append(entry);
+            });
+        }
+    }
+
+    /**
+     * @return true if the page of the document was acknowledged by ElasticSearch since the document last changed
+     */
+    public synchronized boolean isIndexed(String prefix, int pageNum) {
+        DocState state = docs.get(prefix);
+        return state != null && state.indexed.get(pageNum);
+    }
+
+    /**
+     * Compact the journal into a single line per document.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+
+        Path compacted = journal.resolveSibling(journal.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, DocState> doc : docs.entrySet()) {
+                DocState state = doc.getValue();
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("doc", doc.getKey());
+                entry.put("size", state.size);
+                entry.put("mtime", state.mtime);
+                entry.put("sha256", state.sha256);
+                if (state.extracted)
+                    entry.put("pages", state.numPages);
+                entry.put("indexed", state.indexed.stream().boxed().toList());
+                out.write(MAPPER.writeValueAsString(entry));
+                out.newLine();
+            }
+        }
+        Files.move(compacted, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Map<String, Object> fingerprint(String prefix, File pdfFile, String sha256) {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("doc", prefix);
+        entry.put("size", pdfFile.length());
+        entry.put("mtime", pdfFile.lastModified());
+        entry.put("sha256", sha256);
+        return entry;
+    }
+
+    private synchronized void append(Map<String, Object> entry) {
+        apply(MAPPER.valueToTree(entry));
+        try {
+            writer.write(MAPPER.writeValueAsString(entry));
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to update the manifest " + journal, e);
+        }
+    }
+
+    // A partially written last line (e.g. after a crash) is removed, so the next entry starts on a new line
+    private void replay() throws IOException {
+        byte[] content = Files.readAllBytes(journal);
+        int length = content.length;
+        while (length > 0 && content[length - 1] != '\n')
+            length--;
+        if (length < content.length) {
+            try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+                channel.truncate(length);
+            }
+        }
+
+        for (String line : new String(content, 0, length, StandardCharsets.UTF_8).split("\n")) {
+            if (line.isBlank())
+                continue;
+            try {
+                apply(MAPPER.readTree(line));
+            } catch (JacksonException e) {
+                // a corrupt line - skip it
+            }
+        }
+    }
+
+    private void apply(JsonNode entry) {
+        DocState state = docs.computeIfAbsent(entry.path("doc").asString(), doc -> new DocState());
+
+        if (entry.has("sha256")) {
+            String sha256 = entry.path("sha256").asString();
+            if (! sha256.equals(state.sha256)) {
+                state.indexed.clear();
+                state.numPages = -1;
+            }
+            state.size = entry.path("size").asLong();
+            state.mtime = entry.path("mtime").asLong();
+            state.sha256 = sha256;
+            state.extracted = false;
+        }
+        if (entry.has("pages")) {
+            state.numPages = entry.path("pages").asInt();
+            state.extracted = true;
+        }
+        JsonNode indexed = entry.path("indexed");
+        for (int i = 0; i < indexed.size(); i++)
+            state.indexed.set(indexed.get(i).asInt());
+    }
+
+    private static String sha256(File file) {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+                digest.update(buffer, 0, read);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + file, e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
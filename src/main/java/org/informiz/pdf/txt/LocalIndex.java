@@ -0,0 +1,767 @@
+package org.informiz.pdf.txt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static java.lang.System.exit;
+
+/**
+ * An on-disk full-text index of text-pages, for searching without ElasticSearch (e.g., offline or in CI).
+ * The index is made of immutable segments, each with a sorted term dictionary and the postings of every term: the
+ * pages containing the term and the positions of the term in each page, delta-encoded as variable-length integers.
+ * Segments are read through memory-mapped files. Queries match pages containing all the words and "quoted phrases",
+ * optionally filtered by origFile and page, and the pages are ranked with BM25.
+ * The index is built incrementally: each build adds a new generation of segments with the new text-pages, and the
+ * pages of a document in the latest generation replace the pages of the same document in earlier generations, so a
+ * document is always indexed with all its pages. A generation is committed at once, when its build is complete.
+ */
+public class LocalIndex implements Closeable {
+
+    public static final int DEFAULT_TOP = 10;
+
+    static final int MAX_TOKEN_LENGTH = 64;
+
+    // BM25 parameters, same as the ElasticSearch defaults
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    // A segment is written once its postings reach this size, or it has this many pages
+    private static final int FLUSH_BYTES = 64 * 1024 * 1024;
+    private static final int FLUSH_PAGES = 100_000;
+
+    private static final String SEGMENTS_FILE = "segments.properties";
+    private static final Pattern QUERY_PART = Pattern.compile(
+            "origFile:(\\S+)|page:(\\d+)(?:-(\\d+))?|\"([^\"]*)\"|(\\S+)");
+
+    /**
+     * A page matching a query.
+     * @param filenamePrefix the prefix of the text-page file names, e.g. dir_0001.pdf
+     */
+    public record Hit(String filenamePrefix, int pageNum, double score) {
+        public String fileName() {
+            return new TextPage(filenamePrefix, pageNum, "").fileName();
+        }
+
+        // Same as the origFile field in ElasticSearch, e.g. dir_0001
+        public String origFile() {
+            return origFileOf(filenamePrefix);
+        }
+    }
+
+    /**
+     * A parsed query: phrases (a single word is a phrase of one word) and filters.
+     */
+    public record Query(List<List<String>> phrases, String origFile, int fromPage, int toPage) {
+
+        /**
+         * Parse a query, e.g. 'flight "palm beach" origFile:dir_0001 page:10-20'.
+         */
+        public static Query parse(String query) {
+            List<List<String>> phrases = new ArrayList<>();
+            String origFile = null;
+            int fromPage = 0;
+            int toPage = Integer.MAX_VALUE;
+            Matcher part = QUERY_PART.matcher(query);
+            while (part.find()) {
+                if (part.group(1) != null) {
+                    origFile = part.group(1);
+                } else if (part.group(2) != null) {
+                    fromPage = Integer.parseInt(part.group(2));
+                    toPage = part.group(3) != null ? Integer.parseInt(part.group(3)) : fromPage;
+                } else if (part.group(4) != null) {
+                    List<String> phrase = tokenize(part.group(4));
+                    if (! phrase.isEmpty())
+                        phrases.add(phrase);
+                } else {
+                    for (String term : tokenize(part.group(5)))
+                        phrases.add(List.of(term));
+                }
+            }
+            return new Query(phrases, origFile, fromPage, toPage);
+        }
+
+        boolean accepts(String filenamePrefix, int pageNum) {
+            return pageNum >= fromPage && pageNum <= toPage &&
+                    (origFile == null || origFile.equals(origFileOf(filenamePrefix)));
+        }
+    }
+
+    // The statistics of a term across all the segments
+    private record TermStats(byte[] bytes, double idf) { }
+
+    private final List<Segment> segments = new ArrayList<>();
+    // The latest generation of each document, earlier generations of the document are ignored
+    private final Map<String, Integer> latestGeneration = new HashMap<>();
+    private final long totalPages;
+    private final double avgLength;
+
+    private LocalIndex(File indexFolder) throws IOException {
+        long pages = 0;
+        long length = 0;
+        for (SegmentInfo info : readSegments(indexFolder).segments()) {
+            Segment segment = new Segment(indexFolder, info);
+            segments.add(segment);
+            for (int doc = 0; doc < segment.prefixes.length; doc++) {
+                latestGeneration.merge(segment.prefixes[doc], info.generation(), Math::max);
+                pages++;
+                length += segment.lengths[doc];
+            }
+        }
+        totalPages = pages;
+        avgLength = pages == 0 ? 1 : (double) length / pages;
+    }
+
+    static void main(String[] args) {
+        if (args == null || args.length == 0) {
+            System.out.println("Please provide full path to a text_pages folder");
+            System.out.println("Example usage for building (or updating) the index of the text-pages:");
+            System.out.println("java -cp path/to/app.jar org.informiz.pdf.txt.LocalIndex /full/path/to/text_pages");
+            System.out.println("Add --store to index the pages in the page-store (text_pages.store) instead, " +
+                    "and --full to rebuild the index from scratch");
+            System.out.println("Example usage for searching the index:");
+            System.out.println("java -cp path/to/app.jar org.informiz.pdf.txt.LocalIndex /full/path/to/text_pages " +
+                    "'--query=flight \"palm beach\" origFile:dir_0001 page:1-20' --top=10");
+            exit(1);
+        }
+
+        File pagesFolder = new File(args[0]);
+        File indexFolder = forPagesFolder(pagesFolder);
+        String query = Utils.getOption(args, "--query", null);
+
+        try {
+            if (query != null) {
+                try (LocalIndex index = LocalIndex.open(indexFolder)) {
+                    long start = System.nanoTime();
+                    List<Hit> hits = index.search(query, Utils.getIntOption(args, "--top", DEFAULT_TOP));
+                    System.out.printf("%d pages found in %.1f ms%n", hits.size(), (System.nanoTime() - start) / 1e6);
+                    for (Hit hit : hits)
+                        System.out.printf("%.3f  %s  page %d  (%s)%n", hit.score(), hit.origFile(), hit.pageNum(),
+                                hit.fileName());
+                }
+                return;
+            }
+
+            long start = System.nanoTime();
+            long numPages = Utils.hasFlag(args, "--store") ?
+                    buildFromStore(PageStore.forPagesFolder(pagesFolder), indexFolder) :
+                    buildFromFolder(pagesFolder, indexFolder, Utils.hasFlag(args, "--full"));
+            System.out.printf("Indexed %d pages in %.1f sec, the index is available under %s%n", numPages,
+                    (System.nanoTime() - start) / 1e9, indexFolder.getAbsolutePath());
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected error while processing files", e);
+        }
+    }
+
+    /**
+     * The index folder of a text-pages folder, e.g. text_pages.index for the text_pages folder.
+     */
+    public static File forPagesFolder(File pagesFolder) {
+        File folder = pagesFolder.getAbsoluteFile();
+        return new File(folder.getParentFile(), folder.getName() + ".index");
+    }
+
+    public static LocalIndex open(File indexFolder) throws IOException {
+        return new LocalIndex(indexFolder);
+    }
+
+    /**
+     * Open an index for adding pages, as a new generation.
+     */
+    public static Writer openForWriting(File indexFolder) throws IOException {
+        return new Writer(indexFolder);
+    }
+
+    /**
+     * Index the documents in a folder (and sub-folders) with text-pages that were created or modified since the last
+     * build. All the pages of these documents are indexed again, since they replace the earlier pages of the document.
+     * @param full rebuild the index from all the text-pages
+     * @return the number of pages indexed
+     */
+    public static long buildFromFolder(File pagesFolder, File indexFolder, boolean full) throws IOException {
+        if (full)
+            deleteIndex(indexFolder);
+        long lastBuild = readSegments(indexFolder).lastBuild();
+
+        Set<String> changed = new HashSet<>();
+        try (Stream<Path> files = Files.walk(pagesFolder.toPath())) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                Matcher idPattern = IngestManifest.PAGE_ID_PATTERN.matcher(path.getFileName().toString());
+                if (idPattern.matches() && Files.isRegularFile(path) &&
+                        Files.getLastModifiedTime(path).toMillis() >= lastBuild)
+                    changed.add(idPattern.group(1));
+            }
+        }
+
+        long numPages = 0;
+        try (Writer writer = openForWriting(indexFolder);
+             Stream<Path> files = Files.walk(pagesFolder.toPath())) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                Matcher idPattern = IngestManifest.PAGE_ID_PATTERN.matcher(path.getFileName().toString());
+                if (! idPattern.matches() || ! changed.contains(idPattern.group(1)) || ! Files.isRegularFile(path))
+                    continue;
+                String text = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+                writer.accept(new TextPage(idPattern.group(1), Integer.parseInt(idPattern.group(2)), text));
+                numPages++;
+            }
+        }
+        return numPages;
+    }
+
+    /**
+     * Rebuild the index from all the pages in a page-store.
+     * @return the number of pages indexed
+     */
+    public static long buildFromStore(File storeFolder, File indexFolder) throws IOException {
+        deleteIndex(indexFolder);
+        try (PageStore store = PageStore.open(storeFolder); Writer writer = openForWriting(indexFolder)) {
+            store.forEach(writer::accept);
+            return store.size();
+        }
+    }
+
+    /**
+     * Search the index, see {@link Query#parse(String)}.
+     * @return the best matching pages, best first
+     */
+    public List<Hit> search(String query, int top) {
+        return search(Query.parse(query), top);
+    }
+
+    public List<Hit> search(Query query, int top) {
+        if (query.phrases().isEmpty() || top < 1)
+            return List.of();
+
+        Map<String, TermStats> terms = new LinkedHashMap<>();
+        for (List<String> phrase : query.phrases()) {
+            for (String term : phrase) {
+                byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+                long docFreq = 0;
+                for (Segment segment : segments)
+                    docFreq += segment.docFreq(bytes);
+                double idf = Math.log(1 + (totalPages - docFreq + 0.5) / (docFreq + 0.5));
+                terms.put(term, new TermStats(bytes, idf));
+            }
+        }
+
+        PriorityQueue<Hit> best = new PriorityQueue<>(Comparator.comparingDouble(Hit::score));
+        for (Segment segment : segments)
+            segment.search(query, terms, latestGeneration, avgLength, top, best);
+
+        List<Hit> hits = new ArrayList<>(best);
+        hits.sort(Comparator.comparingDouble(Hit::score).reversed());
+        return hits;
+    }
+
+    /**
+     * @return the number of pages in the index, including pages replaced by later generations
+     */
+    public long size() {
+        return totalPages;
+    }
+
+    @Override
+    public void close() {
+        // Mapped buffers are released by the garbage collector
+        segments.clear();
+    }
+
+    /**
+     * Split a text into lower-case words (letters and digits), the same way when indexing and querying.
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (! wordChar && start >= 0) {
+                if (i - start <= MAX_TOKEN_LENGTH)
+                    tokens.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static String origFileOf(String filenamePrefix) {
+        return filenamePrefix.endsWith(".pdf") ?
+                filenamePrefix.substring(0, filenamePrefix.length() - ".pdf".length()) : filenamePrefix;
+    }
+
+    private static void deleteIndex(File indexFolder) throws IOException {
+        if (! indexFolder.isDirectory())
+            return;
+        try (Stream<Path> files = Files.list(indexFolder.toPath())) {
+            for (Path file : files.toList())
+                Files.delete(file);
+        }
+    }
+
+    // The committed segments, and the time the last build started (pages modified before it are already indexed)
+    private record SegmentInfo(String name, int generation) { }
+
+    private record Segments(List<SegmentInfo> segments, int generation, long lastBuild) { }
+
+    private static Segments readSegments(File indexFolder) throws IOException {
+        File file = new File(indexFolder, SEGMENTS_FILE);
+        if (! file.isFile())
+            return new Segments(List.of(), 0, 0);
+
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            properties.load(in);
+        }
+        int generation = Integer.parseInt(properties.getProperty("generation", "0"));
+        List<SegmentInfo> segments = new ArrayList<>();
+        for (String segment : properties.getProperty("segments", "").split(",")) {
+            if (! segment.isBlank()) {
+                String[] nameAndGeneration = segment.split(":");
+                SegmentInfo info = new SegmentInfo(nameAndGeneration[0], Integer.parseInt(nameAndGeneration[1]));
+                // Segments of a build that didn't complete (written by earlier versions) would duplicate pages
+                if (info.generation() <= generation)
+                    segments.add(info);
+            }
+        }
+        return new Segments(segments, generation, Long.parseLong(properties.getProperty("lastBuild", "0")));
+    }
+
+    // Replaces the segments file atomically, so readers never see a partially written index
+    private static void writeSegments(File indexFolder, Segments segments) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("segments", String.join(",", segments.segments().stream()
+                .map(segment -> segment.name() + ":" + segment.generation()).toList()));
+        properties.setProperty("generation", String.valueOf(segments.generation()));
+        properties.setProperty("lastBuild", String.valueOf(segments.lastBuild()));
+
+        Path tmp = new File(indexFolder, SEGMENTS_FILE + ".tmp").toPath();
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            properties.store(out, "Local index segments");
+        }
+        Files.move(tmp, new File(indexFolder, SEGMENTS_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Segment files:
+    // .docs - number of pages, then per page: prefix (modified UTF-8), page number (int), number of words (int)
+    // .terms - per term, sorted by the UTF-8 bytes: length (short), UTF-8 bytes, doc-freq (int), postings offset
+    //          (long), postings length (int)
+    // .tidx - the offset of each term in the .terms file (int)
+    // .post - per term, per page: page delta, term frequency, then the position deltas (all varints)
+    private static final class Segment {
+        final int generation;
+        final String[] prefixes;
+        final int[] pages;
+        final int[] lengths;
+        final MappedByteBuffer terms;
+        final MappedByteBuffer termIndex;
+        final MappedByteBuffer postings;
+        final int numTerms;
+
+        Segment(File indexFolder, SegmentInfo info) throws IOException {
+            generation = info.generation();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(new File(indexFolder, info.name() + ".docs").toPath())))) {
+                int numPages = in.readInt();
+                prefixes = new String[numPages];
+                pages = new int[numPages];
+                lengths = new int[numPages];
+                Map<String, String> distinct = new HashMap<>();
+                for (int doc = 0; doc < numPages; doc++) {
+                    String prefix = in.readUTF();
+                    prefixes[doc] = distinct.computeIfAbsent(prefix, p -> p);
+                    pages[doc] = in.readInt();
+                    lengths[doc] = in.readInt();
+                }
+            }
+            terms = map(new File(indexFolder, info.name() + ".terms"));
+            termIndex = map(new File(indexFolder, info.name() + ".tidx"));
+            postings = map(new File(indexFolder, info.name() + ".post"));
+            numTerms = termIndex.limit() / Integer.BYTES;
+        }
+
+        private static MappedByteBuffer map(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath())) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        // Binary search in the term dictionary, returns the offset of the term's entry or -1
+        int find(byte[] term) {
+            int low = 0;
+            int high = numTerms - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int offset = termIndex.getInt(mid * Integer.BYTES);
+                int cmp = compare(offset, term);
+                if (cmp < 0)
+                    low = mid + 1;
+                else if (cmp > 0)
+                    high = mid - 1;
+                else
+                    return offset;
+            }
+            return -1;
+        }
+
+        private int compare(int offset, byte[] term) {
+            int length = Short.toUnsignedInt(terms.getShort(offset));
+            for (int i = 0; i < Math.min(length, term.length); i++) {
+                int cmp = Integer.compare(Byte.toUnsignedInt(terms.get(offset + 2 + i)), Byte.toUnsignedInt(term[i]));
+                if (cmp != 0)
+                    return cmp;
+            }
+            return Integer.compare(length, term.length);
+        }
+
+        int docFreq(byte[] term) {
+            int offset = find(term);
+            return offset < 0 ? 0 : terms.getInt(offset + 2 + term.length);
+        }
+
+        PostingList postings(byte[] term) {
+            int offset = find(term);
+            if (offset < 0)
+                return null;
+            int entry = offset + 2 + term.length;
+            int docFreq = terms.getInt(entry);
+            long postingsOffset = terms.getLong(entry + 4);
+            int postingsLength = terms.getInt(entry + 12);
+            return PostingList.decode(postings.slice((int) postingsOffset, postingsLength), docFreq);
+        }
+
+        void search(Query query, Map<String, TermStats> stats, Map<String, Integer> latestGeneration, double avgLength,
+                    int top, PriorityQueue<Hit> best) {
+            Map<String, PostingList> lists = new HashMap<>();
+            for (Map.Entry<String, TermStats> term : stats.entrySet()) {
+                PostingList list = postings(term.getValue().bytes());
+                if (list == null)
+                    return; // all the words are required
+                lists.put(term.getKey(), list);
+            }
+
+            // Candidates come from the rarest word, the other lists are advanced to each candidate
+            PostingList rarest = lists.values().stream().min(Comparator.comparingInt(list -> list.docs.length))
+                    .orElseThrow();
+            Map<String, Integer> cursors = new HashMap<>();
+            candidates:
+            for (int i = 0; i < rarest.docs.length; i++) {
+                int doc = rarest.docs[i];
+                if (! query.accepts(prefixes[doc], pages[doc]) ||
+                        latestGeneration.getOrDefault(prefixes[doc], generation) > generation)
+                    continue;
+
+                for (Map.Entry<String, PostingList> list : lists.entrySet()) {
+                    int index = list.getValue().advance(cursors.getOrDefault(list.getKey(), 0), doc);
+                    if (index < 0)
+                        continue candidates;
+                    cursors.put(list.getKey(), index);
+                }
+                for (List<String> phrase : query.phrases()) {
+                    if (phrase.size() > 1 && ! containsPhrase(phrase, lists, cursors))
+                        continue candidates;
+                }
+
+                double score = 0;
+                for (Map.Entry<String, TermStats> term : stats.entrySet()) {
+                    PostingList list = lists.get(term.getKey());
+                    int tf = list.freqs[cursors.get(term.getKey())];
+                    score += term.getValue().idf() * tf * (K1 + 1) /
+                            (tf + K1 * (1 - B + B * lengths[doc] / avgLength));
+                }
+                if (best.size() < top) {
+                    best.add(new Hit(prefixes[doc], pages[doc], score));
+                } else if (best.peek().score() < score) {
+                    best.poll();
+                    best.add(new Hit(prefixes[doc], pages[doc], score));
+                }
+            }
+        }
+
+        private boolean containsPhrase(List<String> phrase, Map<String, PostingList> lists,
+                                       Map<String, Integer> cursors) {
+            PostingList first = lists.get(phrase.get(0));
+            int[] firstPositions = first.positions(cursors.get(phrase.get(0)));
+            for (int position : firstPositions) {
+                boolean matches = true;
+                for (int i = 1; i < phrase.size() && matches; i++) {
+                    int[] positions = lists.get(phrase.get(i)).positions(cursors.get(phrase.get(i)));
+                    matches = Arrays.binarySearch(positions, position + i) >= 0;
+                }
+                if (matches)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    // The decoded postings of a term in a segment
+    private static final class PostingList {
+        final int[] docs;
+        final int[] freqs;
+        final int[] positionStarts;
+        final int[] positions;
+
+        private PostingList(int[] docs, int[] freqs, int[] positionStarts, int[] positions) {
+            this.docs = docs;
+            this.freqs = freqs;
+            this.positionStarts = positionStarts;
+            this.positions = positions;
+        }
+
+        static PostingList decode(ByteBuffer buffer, int docFreq) {
+            int[] docs = new int[docFreq];
+            int[] freqs = new int[docFreq];
+            int[] positionStarts = new int[docFreq + 1];
+            int[] positions = new int[16];
+            int numPositions = 0;
+            int doc = 0;
+            for (int i = 0; i < docFreq; i++) {
+                doc += readVarInt(buffer);
+                docs[i] = doc;
+                freqs[i] = readVarInt(buffer);
+                positionStarts[i] = numPositions;
+                if (numPositions + freqs[i] > positions.length)
+                    positions = Arrays.copyOf(positions, Math.max(positions.length * 2, numPositions + freqs[i]));
+                int position = 0;
+                for (int j = 0; j < freqs[i]; j++) {
+                    position += readVarInt(buffer);
+                    positions[numPositions++] = position;
+                }
+            }
+            positionStarts[docFreq] = numPositions;
+            return new PostingList(docs, freqs, positionStarts, positions);
+        }
+
+        // Returns the index of the doc in the list, starting the search from the given index, or -1
+        int advance(int from, int doc) {
+            int index = Arrays.binarySearch(docs, Math.max(0, from), docs.length, doc);
+            return index >= 0 ? index : -1;
+        }
+
+        int[] positions(int index) {
+            return Arrays.copyOfRange(positions, positionStarts[index], positionStarts[index + 1]);
+        }
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+
+    /**
+     * Adds text-pages to an index, as a new generation of segments. Pages may be added concurrently by multiple
+     * extraction workers. The pages become searchable once the writer is closed: full segments are written before
+     * that, but only committed together with the generation, so a build that didn't complete leaves the index as it
+     * was (its segment files are deleted by the next build).
+     */
+    public static class Writer implements PageSink, Closeable {
+        private final File indexFolder;
+        private final long buildStart = System.currentTimeMillis();
+        private final int generation;
+        private Segments committed;
+
+        private final Map<String, PostingsBuffer> terms = new HashMap<>();
+        private final List<String> prefixes = new ArrayList<>();
+        private final List<int[]> pagesAndLengths = new ArrayList<>();
+        private long bufferedBytes = 0;
+
+        private Writer(File indexFolder) throws IOException {
+            if (! indexFolder.exists() && ! indexFolder.mkdirs())
+                throw new IllegalStateException("Failed to create index folder " + indexFolder.getAbsolutePath());
+            this.indexFolder = indexFolder;
+            this.committed = readSegments(indexFolder);
+            this.generation = committed.generation() + 1;
+            deleteUncommitted();
+        }
+
+        @Override
+        public void accept(TextPage page) {
+            // Tokenized outside the lock, so concurrent workers only wait for adding the postings
+            Map<String, IntList> positions = new HashMap<>();
+            List<String> tokens = tokenize(page.text());
+            for (int i = 0; i < tokens.size(); i++)
+                positions.computeIfAbsent(tokens.get(i), token -> new IntList()).add(i);
+
+            synchronized (this) {
+                int doc = prefixes.size();
+                prefixes.add(page.filenamePrefix());
+                pagesAndLengths.add(new int[] {page.pageNum(), tokens.size()});
+                for (Map.Entry<String, IntList> term : positions.entrySet()) {
+                    PostingsBuffer postings = terms.computeIfAbsent(term.getKey(), t -> new PostingsBuffer());
+                    bufferedBytes += postings.add(doc, term.getValue());
+                }
+                if (bufferedBytes >= FLUSH_BYTES || prefixes.size() >= FLUSH_PAGES) {
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Failed to write index segment", e);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            flush();
+            committed = new Segments(committed.segments(), generation, buildStart);
+            writeSegments(indexFolder, committed);
+        }
+
+        // Segment files of a build that didn't complete
+        private void deleteUncommitted() throws IOException {
+            Set<String> names = new HashSet<>();
+            for (SegmentInfo segment : committed.segments())
+                names.add(segment.name());
+            try (Stream<Path> files = Files.list(indexFolder.toPath())) {
+                for (Path file : files.toList()) {
+                    String fileName = file.getFileName().toString();
+                    if (fileName.startsWith("segment-") &&
+                            ! names.contains(fileName.substring(0, fileName.lastIndexOf('.'))))
+                        Files.delete(file);
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            if (prefixes.isEmpty())
+                return;
+
+            String name = String.format("segment-%06d", nextSegmentNumber());
+            try (DataOutputStream docs = output(name + ".docs")) {
+                docs.writeInt(prefixes.size());
+                for (int doc = 0; doc < prefixes.size(); doc++) {
+                    docs.writeUTF(prefixes.get(doc));
+                    docs.writeInt(pagesAndLengths.get(doc)[0]);
+                    docs.writeInt(pagesAndLengths.get(doc)[1]);
+                }
+            }
+
+            List<byte[]> sortedTerms = new ArrayList<>(terms.size());
+            Map<byte[], PostingsBuffer> postingsByBytes = new HashMap<>();
+            for (Map.Entry<String, PostingsBuffer> term : terms.entrySet()) {
+                byte[] bytes = term.getKey().getBytes(StandardCharsets.UTF_8);
+                sortedTerms.add(bytes);
+                postingsByBytes.put(bytes, term.getValue());
+            }
+            sortedTerms.sort(Arrays::compareUnsigned);
+
+            try (DataOutputStream termsOut = output(name + ".terms");
+                 DataOutputStream termIndex = output(name + ".tidx");
+                 DataOutputStream postingsOut = output(name + ".post")) {
+                long postingsOffset = 0;
+                for (byte[] term : sortedTerms) {
+                    PostingsBuffer postings = postingsByBytes.get(term);
+                    termIndex.writeInt(termsOut.size());
+                    termsOut.writeShort(term.length);
+                    termsOut.write(term);
+                    termsOut.writeInt(postings.docFreq);
+                    termsOut.writeLong(postingsOffset);
+                    termsOut.writeInt(postings.size);
+                    postingsOut.write(postings.bytes, 0, postings.size);
+                    postingsOffset += postings.size;
+                }
+            }
+
+            // The segment becomes part of the index with the generation, when the writer is closed
+            List<SegmentInfo> segments = new ArrayList<>(committed.segments());
+            segments.add(new SegmentInfo(name, generation));
+            committed = new Segments(segments, committed.generation(), committed.lastBuild());
+
+            terms.clear();
+            prefixes.clear();
+            pagesAndLengths.clear();
+            bufferedBytes = 0;
+        }
+
+        private int nextSegmentNumber() {
+            int next = 0;
+            for (SegmentInfo segment : committed.segments())
+                next = Math.max(next, Integer.parseInt(segment.name().substring("segment-".length())) + 1);
+            return next;
+        }
+
+        private DataOutputStream output(String fileName) throws IOException {
+            return new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(new File(indexFolder, fileName).toPath()), 64 * 1024));
+        }
+    }
+
+    // The postings of a term in the segment being written, varint-encoded as the pages are added
+    private static final class PostingsBuffer {
+        byte[] bytes = new byte[16];
+        int size = 0;
+        int docFreq = 0;
+        int lastDoc = 0;
+
+        // Returns the number of bytes added
+        int add(int doc, IntList positions) {
+            int start = size;
+            writeVarInt(doc - lastDoc);
+            writeVarInt(positions.size);
+            int last = 0;
+            for (int i = 0; i < positions.size; i++) {
+                writeVarInt(positions.values[i] - last);
+                last = positions.values[i];
+            }
+            lastDoc = doc;
+            docFreq++;
+            return size - start;
+        }
+
+        private void writeVarInt(int value) {
+            if (size + 5 > bytes.length)
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            while ((value & ~0x7f) != 0) {
+                bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+    }
+
+    private static final class IntList {
+        int[] values = new int[4];
+        int size = 0;
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package org.informiz.pdf.txt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.lang.System.exit;
+
+/**
+ * Finds pages that repeat pages seen earlier in the run, e.g. fax covers, Bates-stamped blank pages or the same email
+ * printed many times, so they don't have to be indexed again.
+ * A page is an exact duplicate if it has the same words as an earlier page (ignoring case, whitespace and
+ * punctuation). Otherwise, a page is a near duplicate if at least {@value #MIN_SIMILARITY} of its 3-word shingles are
+ * shared with an earlier page (Jaccard similarity), as estimated by MinHash signatures of {@value #NUM_HASHES} hashes.
+ * Near duplicates are found through an LSH table: each signature is split into bands of 4 hashes, pages with an
+ * identical band are candidates, and only the candidates' signatures are compared. Only the lowest byte of each hash is
+ * kept for the comparison.
+ * Pages with too few words for a meaningful signature are near duplicates only if they're the same after masking the
+ * numbers (e.g. Bates numbers).
+ * Each duplicate points at the first page with the same content - its canonical page. A duplicate is recorded as
+ * indexed only once its canonical page was acknowledged by ElasticSearch (and its own pointer document, if any), see
+ * {@link #indexed(List)}. A deduplicator may be shared between threads.
+ * The canonical pages are kept in arrays, by their index: a canonical page takes about 200 bytes of memory (its
+ * signature, its LSH chains and its slots in the hash tables, with room to grow) plus its id. They are never dropped,
+ * so the memory grows with the number of unique pages checked, e.g. over the lifetime of an {@link IngestDaemon}.
+ */
+public class PageDeduplicator {
+
+    public enum Kind { UNIQUE, EXACT, NEAR }
+
+    /**
+     * What to do with duplicate pages: skip them, or index a small pointer document (without the text) instead.
+     */
+    public enum Mode { SKIP, POINTER }
+
+    /**
+     * @param canonical the index of the canonical page, -1 for unique pages
+     * @param canonicalId the id of the canonical page, null for unique pages
+     * @param similarity the estimated similarity to the canonical page, 1 for exact duplicates
+     */
+    public record Result(Kind kind, int canonical, String canonicalId, double similarity) {
+        public boolean isDuplicate() {
+            return kind != Kind.UNIQUE;
+        }
+    }
+
+    static final double MIN_SIMILARITY = 0.8;
+    static final int MIN_SHINGLE_WORDS = 8;
+    static final int NUM_HASHES = 64;
+
+    private static final int BANDS = 16;
+    private static final int ROWS = NUM_HASHES / BANDS;
+    private static final int BUCKET_BITS = 16;
+    private static final Result UNIQUE = new Result(Kind.UNIQUE, -1, null, 0);
+
+    // The seeds of the MinHash functions
+    private static final long[] SEEDS = new long[NUM_HASHES];
+    static {
+        long seed = 0x5DEECE66DL;
+        for (int i = 0; i < NUM_HASHES; i++)
+            SEEDS[i] = seed = mix(seed + i);
+    }
+
+    // The ids of the canonical pages, by index, and the indexes of the canonical pages by exact and masked-numbers hash
+    private String[] ids = new String[1024];
+    private int size = 0;
+    private final LongIntTable exact = new LongIntTable();
+    private final LongIntTable masked = new LongIntTable();
+
+    // The LSH table: the signatures of the canonical pages (lowest byte of each hash), and a chained bucket per band.
+    // Short pages have no signature, their slots are left out of the buckets.
+    private byte[] signatures = new byte[1024 * NUM_HASHES];
+    private final int[][] bucketHeads = new int[BANDS][1 << BUCKET_BITS];
+    private final int[][] bucketNext = new int[BANDS][1024];
+
+    // Per source-folder counts of unique, exact and near duplicate pages, and the source sub-folders as they appear in
+    // the page prefixes (joined with '_')
+    private final Map<String, long[]> counts = new TreeMap<>();
+    private final Set<String> folders = new HashSet<>();
+
+    // The acknowledged canonical pages (by index), the canonical pages not acknowledged yet (by id), the duplicates
+    // waiting for their canonical page to be acknowledged, and the pointer documents sent (by id, with their canonical
+    // page) that weren't acknowledged yet. Only the canonical pages are kept once acknowledged, as a bit each.
+    private boolean trackAcknowledgements = false;
+    private final BitSet acknowledged = new BitSet();
+    private final Map<String, Integer> unacknowledged = new HashMap<>();
+    private final Map<Integer, List<String>> waiting = new HashMap<>();
+    private final Map<String, Integer> pointers = new HashMap<>();
+
+    private final Mode mode;
+
+    public PageDeduplicator(Mode mode) {
+        this.mode = mode;
+        for (int[] heads : bucketHeads)
+            Arrays.fill(heads, -1);
+    }
+
+    /**
+     * @return a deduplicator with the mode given with --dedup (skip) or --dedup=pointer, or null if duplicates
+     * shouldn't be detected
+     */
+    public static PageDeduplicator fromArgs(String[] args) {
+        if (Utils.hasFlag(args, "--dedup"))
+            return new PageDeduplicator(Mode.SKIP);
+        String mode = Utils.getOption(args, "--dedup", null);
+        if (mode == null)
+            return null;
+        try {
+            return new PageDeduplicator(Mode.valueOf(mode.toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown --dedup mode '" + mode + "', expected one of: " +
+                    Arrays.stream(Mode.values()).map(value -> value.name().toLowerCase())
+                            .collect(Collectors.joining(", ")));
+            exit(1);
+            return null;
+        }
+    }
+
+    /**
+     * Learn the sub-folders of a source-folder, so the pages are counted per folder in the {@link #report()} even
+     * when folder or file names contain '_'. Pages of other folders are counted under '.'.
+     */
+    public synchronized PageDeduplicator withFolders(File srcFolder) {
+        try (Stream<Path> paths = Files.walk(srcFolder.toPath())) {
+            for (Path path : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+                StringJoiner folder = new StringJoiner("_");
+                for (Path name : srcFolder.toPath().relativize(path))
+                    folder.add(name.toString());
+                if (! folder.toString().isEmpty())
+                    folders.add(folder.toString());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list the folders under " + srcFolder, e);
+        }
+        return this;
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    /**
+     * Record which canonical pages are acknowledged by ElasticSearch, see {@link #indexed(List)}. Call it before the
+     * pages are checked; otherwise duplicates are never returned as indexed.
+     */
+    public synchronized PageDeduplicator trackAcknowledgements() {
+        trackAcknowledgements = true;
+        return this;
+    }
+
+    /**
+     * Check whether a page duplicates an earlier page. A page that doesn't becomes a canonical page, for the
+     * pages checked after it.
+     * @param id the page id, e.g. the text-page file name
+     * @param filenamePrefix the prefix of the page's file name, for the per-folder report
+     */
+    public Result check(String id, String filenamePrefix, String text) {
+        List<String> words = LocalIndex.tokenize(text);
+        boolean shortPage = words.size() < MIN_SHINGLE_WORDS;
+        long exactHash = hash(words, false);
+        long maskedHash = shortPage ? hash(words, true) : 0;
+        long[] minHashes = shortPage ? null : minHash(words);
+
+        synchronized (this) {
+            Result result = find(exactHash, maskedHash, minHashes);
+            long[] folderCounts = counts.computeIfAbsent(folderOf(filenamePrefix), folder -> new long[3]);
+            folderCounts[result.kind().ordinal()]++;
+            if (result.isDuplicate())
+                return result;
+
+            int canonical = add(id, minHashes);
+            exact.put(exactHash, canonical);
+            if (shortPage && masked.get(maskedHash) < 0)
+                masked.put(maskedHash, canonical);
+            if (trackAcknowledgements)
+                unacknowledged.put(id, canonical);
+            return result;
+        }
+    }
+
+    /**
+     * A duplicate page is skipped. It can be recorded as indexed once its canonical page was acknowledged.
+     * @return the duplicate's id if its canonical page was already acknowledged, otherwise an empty list and the
+     * duplicate is returned by {@link #indexed(List)} with its canonical page
+     */
+    public synchronized List<String> skipped(String id, Result duplicate) {
+        if (acknowledged.get(duplicate.canonical()))
+            return List.of(id);
+        waiting.computeIfAbsent(duplicate.canonical(), canonical -> new ArrayList<>()).add(id);
+        return List.of();
+    }
+
+    /**
+     * A pointer document is about to be sent for a duplicate page, see {@link #indexed(List)}.
+     */
+    public synchronized void pointerSent(String id, Result duplicate) {
+        pointers.put(id, duplicate.canonical());
+    }
+
+    /**
+     * Pages were acknowledged by ElasticSearch.
+     * @return the pages that can be recorded as indexed: the acknowledged pages, except for pointers whose canonical
+     * page wasn't acknowledged yet, and the duplicates that were waiting for the acknowledged pages
+     */
+    public synchronized List<String> indexed(List<String> ids) {
+        List<String> indexed = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Integer canonical = pointers.remove(id);
+            if (canonical == null) {
+                indexed.add(id);
+                Integer index = unacknowledged.remove(id);
+                if (index == null)
+                    continue;
+                acknowledged.set(index);
+                List<String> duplicates = waiting.remove(index);
+                if (duplicates != null)
+                    indexed.addAll(duplicates);
+            } else if (acknowledged.get(canonical)) {
+                indexed.add(id);
+            } else {
+                waiting.computeIfAbsent(canonical, key -> new ArrayList<>()).add(id);
+            }
+        }
+        return indexed;
+    }
+
+    /**
+     * @return the number of pages checked, unique pages and duplicates, and the dedup ratio of each source folder
+     */
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder("Duplicate pages per folder:");
+        long[] total = new long[3];
+        for (Map.Entry<String, long[]> folder : counts.entrySet()) {
+            appendCounts(report.append(System.lineSeparator()).append("  ").append(folder.getKey()).append(": "),
+                    folder.getValue());
+            for (int i = 0; i < total.length; i++)
+                total[i] += folder.getValue()[i];
+        }
+        return appendCounts(report.append(System.lineSeparator()).append("  total: "), total).toString();
+    }
+
+    private static StringBuilder appendCounts(StringBuilder report, long[] counts) {
+        long pages = counts[0] + counts[1] + counts[2];
+        return report.append(String.format("%d pages, %d unique, %d exact and %d near duplicates (%.1f%% duplicates)",
+                pages, counts[0], counts[1], counts[2], 100.0 * (counts[1] + counts[2]) / Math.max(1, pages)));
+    }
+
+    private Result find(long exactHash, long maskedHash, long[] minHashes) {
+        int canonical = exact.get(exactHash);
+        if (canonical >= 0)
+            return new Result(Kind.EXACT, canonical, ids[canonical], 1);
+
+        if (minHashes == null) {
+            canonical = masked.get(maskedHash);
+            return canonical < 0 ? UNIQUE : new Result(Kind.NEAR, canonical, ids[canonical], 1);
+        }
+
+        int best = -1;
+        double bestSimilarity = MIN_SIMILARITY;
+        for (int band = 0; band < BANDS; band++) {
+            for (int i = bucketHeads[band][bucket(minHashes, band)]; i >= 0; i = bucketNext[band][i]) {
+                double similarity = similarity(minHashes, i);
+                if (similarity > bestSimilarity || (similarity == bestSimilarity && (best < 0 || i < best))) {
+                    best = i;
+                    bestSimilarity = similarity;
+                }
+            }
+        }
+        return best < 0 ? UNIQUE : new Result(Kind.NEAR, best, ids[best], bestSimilarity);
+    }
+
+    // The share of equal hashes estimates the Jaccard similarity. Comparing only the lowest byte of each hash adds
+    // chance matches (1 in 256), which are discounted.
+    private double similarity(long[] minHashes, int canonical) {
+        int matches = 0;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            if ((byte) minHashes[i] == signatures[canonical * NUM_HASHES + i])
+                matches++;
+        }
+        return ((double) matches / NUM_HASHES - 1.0 / 256) / (1 - 1.0 / 256);
+    }
+
+    // Adds a canonical page, with its signature in the LSH table unless it's a short page, and returns its index
+    private int add(String id, long[] minHashes) {
+        if (size == ids.length) {
+            signatures = Arrays.copyOf(signatures, size * 2 * NUM_HASHES);
+            ids = Arrays.copyOf(ids, size * 2);
+            for (int band = 0; band < BANDS; band++)
+                bucketNext[band] = Arrays.copyOf(bucketNext[band], size * 2);
+        }
+        ids[size] = id;
+        if (minHashes != null) {
+            for (int i = 0; i < NUM_HASHES; i++)
+                signatures[size * NUM_HASHES + i] = (byte) minHashes[i];
+            for (int band = 0; band < BANDS; band++) {
+                int bucket = bucket(minHashes, band);
+                bucketNext[band][size] = bucketHeads[band][bucket];
+                bucketHeads[band][bucket] = size;
+            }
+        }
+        return size++;
+    }
+
+    private static int bucket(long[] minHashes, int band) {
+        long hash = band;
+        for (int row = band * ROWS; row < (band + 1) * ROWS; row++)
+            hash = mix(hash ^ minHashes[row]);
+        return (int) (hash >>> (Long.SIZE - BUCKET_BITS));
+    }
+
+    // The min value of each hash function over the shingles, so two pages have the same min for a hash function with
+    // a probability equal to the share of their common shingles
+    static long[] minHash(List<String> words) {
+        long[] minHashes = new long[NUM_HASHES];
+        Arrays.fill(minHashes, Long.MAX_VALUE);
+        for (int i = 0; i + 2 < words.size(); i++) {
+            long shingle = fnv(fnv(fnv(FNV_OFFSET, words.get(i)), words.get(i + 1)), words.get(i + 2));
+            for (int j = 0; j < NUM_HASHES; j++)
+                minHashes[j] = Math.min(minHashes[j], mix(shingle ^ SEEDS[j]));
+        }
+        return minHashes;
+    }
+
+    private static long hash(List<String> words, boolean maskNumbers) {
+        long hash = FNV_OFFSET;
+        for (String word : words)
+            hash = fnv(hash, maskNumbers ? word.replaceAll("\\d+", "0") : word);
+        return mix(hash);
+    }
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // FNV-1a over the chars of a word, followed by a separator
+    private static long fnv(long hash, String word) {
+        for (int i = 0; i < word.length(); i++)
+            hash = (hash ^ word.charAt(i)) * FNV_PRIME;
+        return (hash ^ ' ') * FNV_PRIME;
+    }
+
+    // The SplitMix64 finalizer, spreads the bits of a hash
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+
+    // Sub-folders are joined with '_' in the prefix, e.g. the folder of 'VOL001_EFTA_0001.pdf' is 'VOL001'. Names may
+    // contain '_' as well, so the longest known folder the prefix starts with is taken.
+    private String folderOf(String filenamePrefix) {
+        for (int separator = filenamePrefix.lastIndexOf('_'); separator > 0;
+             separator = filenamePrefix.lastIndexOf('_', separator - 1)) {
+            String folder = filenamePrefix.substring(0, separator);
+            if (folders.contains(folder))
+                return folder;
+        }
+        return ".";
+    }
+
+    /**
+     * An open-addressing hash table from a (well-mixed) 64-bit hash to a canonical page index, without boxing.
+     */
+    private static final class LongIntTable {
+        private long[] keys = new long[1024];
+        private int[] values = newValues(1024);
+        private int size = 0;
+
+        // The index of the key, or -1 if it's not in the table
+        int get(long key) {
+            for (int slot = slot(key, keys.length); values[slot] >= 0; slot = (slot + 1) & (keys.length - 1)) {
+                if (keys[slot] == key)
+                    return values[slot];
+            }
+            return -1;
+        }
+
+        void put(long key, int value) {
+            if (2 * (size + 1) > keys.length)
+                grow();
+            int slot = slot(key, keys.length);
+            while (values[slot] >= 0 && keys[slot] != key)
+                slot = (slot + 1) & (keys.length - 1);
+            if (values[slot] < 0)
+                size++;
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = newValues(oldKeys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] < 0)
+                    continue;
+                int slot = slot(oldKeys[i], keys.length);
+                while (values[slot] >= 0)
+                    slot = (slot + 1) & (keys.length - 1);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+
+        private static int slot(long key, int capacity) {
+            return (int) (key >>> (Long.SIZE - Integer.numberOfTrailingZeros(capacity)));
+        }
+
+        private static int[] newValues(int capacity) {
+            int[] values = new int[capacity];
+            Arrays.fill(values, -1);
+            return values;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.informiz.pdf.txt;
+
+import java.io.File;
+
+/**
+ * Receives the text-pages extracted from PDF documents, e.g. writes them to the text_pages folder or passes them on
+ * for indexing. Sinks may be called concurrently by multiple extraction workers.
+ */
+@FunctionalInterface
+public interface PageSink {
+
+    void accept(TextPage page);
+
+    /**
+     * @return a sink that passes each page to this sink and then to the other sink
+     */
+    default PageSink andThen(PageSink other) {
+        return page -> {
+            accept(page);
+            other.accept(page);
+        };
+    }
+
+    /**
+     * @return a sink that writes each page into its own text file in the output folder
+     */
+    static PageSink toFolder(File outputFolder) {
+        return page -> PdfDocumentService.writeText(page.text(), new File(outputFolder, page.fileName()),
+                page.pageNum());
+    }
+}
@@ -0,0 +1,436 @@
+package org.informiz.pdf.txt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.lang.System.exit;
+
+/**
+ * A packed store of text-pages, as an alternative to writing every page into its own file in the text_pages folder.
+ * Pages are appended to segment files, each with an index file holding the (origFile, page) key and the offset of
+ * every page in the segment. Page texts may be compressed individually. Each record also holds its key, so pages that
+ * were written to a segment but not to its index before a crash are indexed from the segment when the store is opened.
+ * Segments are read through memory-mapped files, for sequential scans of all the pages and for looking up single
+ * pages. When a page is stored more than once (e.g., the document was processed again), the latest one is used.
+ * The store can be exported back into the per-page files layout of the text_pages folder.
+ */
+public class PageStore implements Closeable {
+
+    // Segments are memory-mapped, so they must stay below 2GB
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 1L << 30;
+
+    // Shorter pages aren't worth compressing
+    private static final int MIN_COMPRESSED_LENGTH = 512;
+    private static final byte FLAG_DEFLATE = 1;
+
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile("segment-(\\d+)\\.pages");
+
+    private record PageKey(String filenamePrefix, int pageNum) { }
+
+    private record Location(int segment, int offset) { }
+
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final Map<PageKey, Location> index = new HashMap<>();
+
+    private PageStore(File storeFolder) throws IOException {
+        for (int segment = 0; segment < countSegments(storeFolder); segment++) {
+            try (FileChannel channel = FileChannel.open(segmentFile(storeFolder, segment, ".pages"))) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                // A page only partially written before a crash is ignored, along with its index entry
+                int length = validLength(buffer);
+                if (length < buffer.limit()) {
+                    System.out.println("Ignoring a partially written page at the end of page-store segment " +
+                            segment);
+                    buffer.limit(length);
+                }
+                segments.add(buffer);
+            }
+            // The index is flushed less often than the segment, so a crash may leave the last pages unindexed
+            int indexed = loadIndex(segmentFile(storeFolder, segment, ".idx"), segment);
+            if (indexed < segments.get(segment).limit())
+                indexRecords(segment, indexed);
+        }
+    }
+
+    static void main(String[] args) {
+        if (args == null || args.length < 2 || Utils.getOption(args, "--export", null) == null) {
+            System.out.println("Please provide full path to a page-store folder and an export folder");
+            System.out.println("Example usage:");
+            System.out.println("java -cp path/to/app.jar org.informiz.pdf.txt.PageStore /full/path/to/text_pages.store " +
+                    "--export=/full/path/to/text_pages");
+            exit(1);
+        }
+
+        File exportFolder = new File(Utils.getOption(args, "--export", null));
+        if (! exportFolder.exists() && ! exportFolder.mkdirs())
+            throw new IllegalStateException("Failed to create export folder " + exportFolder.getAbsolutePath());
+
+        try (PageStore store = PageStore.open(new File(args[0]))) {
+            store.forEach(PageSink.toFolder(exportFolder)::accept);
+            System.out.println("Exported " + store.size() + " pages to " + exportFolder.getAbsolutePath());
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected error while exporting pages", e);
+        }
+    }
+
+    /**
+     * Open a page-store for reading.
+     */
+    public static PageStore open(File storeFolder) throws IOException {
+        return new PageStore(storeFolder);
+    }
+
+    /**
+     * Open a page-store for appending pages. New pages are written into new segments, existing segments are never
+     * modified.
+     * @param compress whether to compress the page texts
+     */
+    public static Writer openForWriting(File storeFolder, boolean compress) throws IOException {
+        return new Writer(storeFolder, compress, DEFAULT_MAX_SEGMENT_BYTES);
+    }
+
+    /**
+     * The page-store folder for a text-pages folder, e.g. text_pages.store for the text_pages folder.
+     */
+    public static File forPagesFolder(File pagesFolder) {
+        File folder = pagesFolder.getAbsoluteFile();
+        return new File(folder.getParentFile(), folder.getName() + ".store");
+    }
+
+    /**
+     * @return the number of distinct pages in the store
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Look up the text of a single page.
+     * @return the text, or null if the page is not in the store
+     */
+    public String get(String filenamePrefix, int pageNum) {
+        Location location = index.get(new PageKey(filenamePrefix, pageNum));
+        return location == null ? null : readRecord(location.segment(), location.offset()).text();
+    }
+
+    /**
+     * @return the page numbers in the store of each document, by filename prefix (in no particular order)
+     */
+    public Map<String, List<Integer>> documents() {
+        Map<String, List<Integer>> documents = new HashMap<>();
+        for (PageKey key : index.keySet())
+            documents.computeIfAbsent(key.filenamePrefix(), prefix -> new ArrayList<>()).add(key.pageNum());
+        return documents;
+    }
+
+    /**
+     * Scan all the pages in the store, in the order they were written.
+     */
+    public void forEach(Consumer<TextPage> action) {
+        for (int segment = 0; segment < segments.size(); segment++) {
+            MappedByteBuffer buffer = segments.get(segment);
+            int offset = 0;
+            while (offset < buffer.limit()) {
+                TextPage page = readRecord(segment, offset);
+                Location latest = index.get(new PageKey(page.filenamePrefix(), page.pageNum()));
+                if (latest != null && latest.segment() == segment && latest.offset() == offset)
+                    action.accept(page);
+                offset = recordEnd(buffer, offset);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // Mapped buffers are released by the garbage collector
+        segments.clear();
+        index.clear();
+    }
+
+    // Record layout: prefix length (short), prefix (UTF-8), page (int), flags (byte), text length (int),
+    // stored length (int), stored text (UTF-8, possibly compressed)
+    private TextPage readRecord(int segment, int offset) {
+        MappedByteBuffer buffer = segments.get(segment);
+        if (recordEnd(buffer, offset) < 0)
+            throw new IllegalStateException("Corrupt page-store segment " + segment + " at offset " + offset);
+        int prefixLength = Short.toUnsignedInt(buffer.getShort(offset));
+        String prefix = StandardCharsets.UTF_8.decode(buffer.slice(offset + 2, prefixLength)).toString();
+        int position = offset + 2 + prefixLength;
+        int pageNum = buffer.getInt(position);
+        byte flags = buffer.get(position + 4);
+        int textLength = buffer.getInt(position + 5);
+        int storedLength = buffer.getInt(position + 9);
+        ByteBuffer stored = buffer.slice(position + 13, storedLength);
+
+        String text;
+        if ((flags & FLAG_DEFLATE) != 0) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(stored);
+                byte[] inflated = new byte[textLength];
+                int length = 0;
+                while (length < textLength && ! inflater.finished())
+                    length += inflater.inflate(inflated, length, textLength - length);
+                text = new String(inflated, 0, length, StandardCharsets.UTF_8);
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Corrupt page " + prefix + " page " + pageNum, e);
+            } finally {
+                inflater.end();
+            }
+        } else {
+            text = StandardCharsets.UTF_8.decode(stored).toString();
+        }
+        return new TextPage(prefix, pageNum, text);
+    }
+
+    // The offset after the record at the given offset, or -1 if the record's lengths don't fit in the segment (e.g.
+    // a record torn by a crash)
+    private static int recordEnd(ByteBuffer buffer, int offset) {
+        int limit = buffer.limit();
+        if (offset < 0 || offset > limit - 2)
+            return -1;
+        long position = offset + 2L + Short.toUnsignedInt(buffer.getShort(offset));
+        if (position + 13 > limit)
+            return -1;
+        int textLength = buffer.getInt((int) position + 5);
+        int storedLength = buffer.getInt((int) position + 9);
+        if (textLength < 0 || storedLength < 0 || position + 13 + storedLength > limit)
+            return -1;
+        return (int) (position + 13 + storedLength);
+    }
+
+    // The length of the complete records at the start of a segment
+    private static int validLength(ByteBuffer buffer) {
+        int offset = 0;
+        while (offset < buffer.limit()) {
+            int end = recordEnd(buffer, offset);
+            if (end < 0)
+                break;
+            offset = end;
+        }
+        return offset;
+    }
+
+    // Index entry layout: prefix (modified UTF-8), page (int), offset in segment (int)
+    // Returns the offset in the segment after the last indexed record
+    private int loadIndex(Path indexFile, int segment) throws IOException {
+        if (! Files.exists(indexFile))
+            return 0;
+        MappedByteBuffer buffer = segments.get(segment);
+        int indexed = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            while (true) {
+                PageKey key = new PageKey(in.readUTF(), in.readInt());
+                int offset = in.readInt();
+                if (offset < buffer.limit()) {
+                    index.put(key, new Location(segment, offset));
+                    indexed = Math.max(indexed, recordEnd(buffer, offset));
+                }
+            }
+        } catch (EOFException e) {
+            // end of index, possibly a partially written entry after a crash
+        }
+        return indexed;
+    }
+
+    // Adds the records from the given offset to the end of the segment to the index, from their own keys
+    private void indexRecords(int segment, int offset) {
+        MappedByteBuffer buffer = segments.get(segment);
+        int count = 0;
+        while (offset < buffer.limit()) {
+            int prefixLength = Short.toUnsignedInt(buffer.getShort(offset));
+            String prefix = StandardCharsets.UTF_8.decode(buffer.slice(offset + 2, prefixLength)).toString();
+            index.put(new PageKey(prefix, buffer.getInt(offset + 2 + prefixLength)), new Location(segment, offset));
+            offset = recordEnd(buffer, offset);
+            count++;
+        }
+        System.out.println("Indexed " + count + " pages missing from the index of page-store segment " + segment);
+    }
+
+    private static int countSegments(File storeFolder) throws IOException {
+        if (! storeFolder.isDirectory())
+            return 0;
+        try (Stream<Path> files = Files.list(storeFolder.toPath())) {
+            return (int) files.map(path -> SEGMENT_PATTERN.matcher(path.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .count();
+        }
+    }
+
+    private static Path segmentFile(File storeFolder, int segment, String extension) {
+        return new File(storeFolder, String.format("segment-%06d%s", segment, extension)).toPath();
+    }
+
+    /**
+     * Appends pages to a page-store. Pages may be added concurrently by multiple extraction workers: each page is
+     * encoded (and compressed) by its worker, only appending it to the segment is serialized. A segment is only
+     * created once a page is added.
+     */
+    public static class Writer implements PageSink, Closeable {
+        private final File storeFolder;
+        private final boolean compress;
+        private final long maxSegmentBytes;
+        // Encoders not in use by a worker, each with its own deflater and buffers
+        private final Queue<Encoder> encoders = new ConcurrentLinkedQueue<>();
+
+        private int segment;
+        private FileChannel segmentChannel;
+        private DataOutputStream indexOut;
+
+        private Writer(File storeFolder, boolean compress, long maxSegmentBytes) throws IOException {
+            if (! storeFolder.exists() && ! storeFolder.mkdirs())
+                throw new IllegalStateException("Failed to create page-store folder " + storeFolder.getAbsolutePath());
+            this.storeFolder = storeFolder;
+            this.compress = compress;
+            this.maxSegmentBytes = Math.min(maxSegmentBytes, Integer.MAX_VALUE);
+            this.segment = countSegments(storeFolder);
+            if (segment > 0)
+                truncateTornTail(segmentFile(storeFolder, segment - 1, ".pages"));
+        }
+
+        @Override
+        public void accept(TextPage page) {
+            Encoder encoder = encoders.poll();
+            if (encoder == null)
+                encoder = new Encoder();
+            try {
+                ByteBuffer record = encoder.encode(page, compress);
+                int recordLength = record.remaining();
+                long start = PipelineMetrics.start();
+                append(page, record);
+                PipelineMetrics.record(PipelineMetrics.Stage.WRITE, start, recordLength);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to store page " + page.pageNum() + " of " +
+                        page.filenamePrefix(), e);
+            } finally {
+                encoders.offer(encoder);
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (segmentChannel != null)
+                closeSegment();
+            segmentChannel = null;
+            Encoder encoder;
+            while ((encoder = encoders.poll()) != null)
+                encoder.deflater.end();
+        }
+
+        private synchronized void append(TextPage page, ByteBuffer record) throws IOException {
+            if (segmentChannel == null) {
+                openSegment();
+            } else if (segmentChannel.size() > 0 && segmentChannel.size() + record.remaining() > maxSegmentBytes) {
+                closeSegment();
+                segment++;
+                openSegment();
+            }
+            int offset = (int) segmentChannel.size();
+            while (record.hasRemaining())
+                segmentChannel.write(record);
+
+            indexOut.writeUTF(page.filenamePrefix());
+            indexOut.writeInt(page.pageNum());
+            indexOut.writeInt(offset);
+        }
+
+        private void openSegment() throws IOException {
+            segmentChannel = FileChannel.open(segmentFile(storeFolder, segment, ".pages"),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            indexOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+                    segmentFile(storeFolder, segment, ".idx"), StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        }
+
+        private void closeSegment() throws IOException {
+            // The index is written last, so it never points at data that isn't in the segment
+            segmentChannel.force(false);
+            segmentChannel.close();
+            indexOut.close();
+        }
+
+        // Removes a page only partially written to the last segment before a crash
+        private static void truncateTornTail(Path segmentFile) throws IOException {
+            try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                int length = validLength(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                if (length < channel.size()) {
+                    System.out.println("Removing a partially written page at the end of " + segmentFile);
+                    channel.truncate(length);
+                }
+            }
+        }
+    }
+
+    // Encodes pages into records, see readRecord
+    private static class Encoder {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private ByteBuffer record = ByteBuffer.allocate(64 * 1024);
+        private byte[] compressed = new byte[64 * 1024];
+
+        // The returned buffer is reused by the next call
+        ByteBuffer encode(TextPage page, boolean compress) {
+            byte[] prefix = page.filenamePrefix().getBytes(StandardCharsets.UTF_8);
+            byte[] text = page.text().getBytes(StandardCharsets.UTF_8);
+            byte flags = 0;
+            byte[] stored = text;
+            int storedLength = text.length;
+            if (compress && text.length >= MIN_COMPRESSED_LENGTH) {
+                storedLength = deflate(text);
+                if (storedLength < text.length) {
+                    stored = compressed;
+                    flags = FLAG_DEFLATE;
+                } else {
+                    storedLength = text.length;
+                }
+            }
+
+            int recordLength = 2 + prefix.length + 13 + storedLength;
+            if (record.capacity() < recordLength)
+                record = ByteBuffer.allocate(Math.max(recordLength, 2 * record.capacity()));
+            record.clear();
+            return record.putShort((short) prefix.length).put(prefix)
+                    .putInt(page.pageNum()).put(flags).putInt(text.length).putInt(storedLength)
+                    .put(stored, 0, storedLength)
+                    .flip();
+        }
+
+        private int deflate(byte[] text) {
+            deflater.reset();
+            deflater.setInput(text);
+            deflater.finish();
+            if (compressed.length < text.length + 64)
+                compressed = new byte[text.length + 64];
+            int length = 0;
+            while (! deflater.finished() && length < compressed.length)
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            return length;
+        }
+    }
+}
@@ -0,0 +1,503 @@
+package org.informiz.pdf.txt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.lang.System.exit;
+
+/**
+ * Exports the text-pages into Parquet files, for distributed processing (e.g. Spark splits Parquet files by row groups
+ * across its executors, instead of listing and opening a file per page). Each row is a page: origFile, page, text,
+ * bytes (the length of the text in UTF-8) and status ('ok', 'empty' when no text was found, or 'skipped' when the page
+ * was skipped for the memory budget, see {@link PdfDocumentService}).
+ * The files are written in row groups of about --row-group-mb (default 64) of text, each column in pages that are
+ * gzip-compressed as soon as they're full, so memory use is bounded by the compressed size of a row group. A new file
+ * is started every --file-mb (default 1024) of compressed data: text_pages.parquet/part-00000.parquet, etc.
+ */
+public class ParquetExport {
+
+    public static final int DEFAULT_ROW_GROUP_MB = 64;
+    public static final int DEFAULT_FILE_MB = 1024;
+
+    private static final byte[] MAGIC = "PAR1".getBytes(StandardCharsets.US_ASCII);
+    private static final int PAGE_BYTES = 1024 * 1024;
+    // Including the temporary files of an interrupted export
+    private static final Pattern PART_PATTERN = Pattern.compile("part-\\d+\\.parquet(\\.tmp)?");
+
+    // Parquet enums (see parquet.thrift)
+    private static final int TYPE_INT32 = 1;
+    private static final int TYPE_BYTE_ARRAY = 6;
+    private static final int REQUIRED = 0;
+    private static final int CONVERTED_UTF8 = 0;
+    private static final int ENCODING_PLAIN = 0;
+    private static final int ENCODING_RLE = 3;
+    private static final int CODEC_GZIP = 2;
+    private static final int PAGE_TYPE_DATA = 0;
+
+    static void main(String[] args) {
+        if (args == null || args.length == 0) {
+            System.out.println("Please provide full path to a text_pages folder");
+            System.out.println("Example usage:");
+            System.out.println("java -cp path/to/app.jar org.informiz.pdf.txt.ParquetExport /full/path/to/text_pages");
+            System.out.println("Add --store to export the pages in the page-store (text_pages.store) instead, and " +
+                    "--output=/full/path/to/folder to write the files into another folder than text_pages.parquet");
+            System.out.println("Add --row-group-mb=N to set the size of the row groups (default: " +
+                    DEFAULT_ROW_GROUP_MB + "), and --file-mb=N to set the size of the files (default: " +
+                    DEFAULT_FILE_MB + ")");
+            exit(1);
+        }
+
+        File pagesFolder = new File(args[0]);
+        String output = Utils.getOption(args, "--output", null);
+        File outputFolder = output == null ? forPagesFolder(pagesFolder) : new File(output);
+        long start = System.nanoTime();
+        try (Writer writer = openForWriting(outputFolder,
+                Utils.getIntOption(args, "--row-group-mb", DEFAULT_ROW_GROUP_MB) * 1024L * 1024,
+                Utils.getIntOption(args, "--file-mb", DEFAULT_FILE_MB) * 1024L * 1024)) {
+            if (Utils.hasFlag(args, "--store")) {
+                try (PageStore store = PageStore.open(PageStore.forPagesFolder(pagesFolder))) {
+                    store.forEach(writer::accept);
+                }
+            } else {
+                exportFolder(pagesFolder, writer);
+            }
+            writer.close();
+            System.out.printf("Exported %d pages into %d files in %.1f sec, available under %s%n", writer.getRows(),
+                    writer.getFiles(), (System.nanoTime() - start) / 1e9, outputFolder.getAbsolutePath());
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected error while exporting pages", e);
+        }
+    }
+
+    /**
+     * The export folder of a text-pages folder, e.g. text_pages.parquet for the text_pages folder.
+     */
+    public static File forPagesFolder(File pagesFolder) {
+        File folder = pagesFolder.getAbsoluteFile();
+        return new File(folder.getParentFile(), folder.getName() + ".parquet");
+    }
+
+    /**
+     * Open an export folder for writing, replacing the files of a previous export (including the incomplete files of
+     * an interrupted one).
+     */
+    public static Writer openForWriting(File outputFolder, long rowGroupBytes, long fileBytes) throws IOException {
+        return new Writer(outputFolder, rowGroupBytes, fileBytes);
+    }
+
+    /**
+     * Export all the text-pages in a folder (and sub-folders), in the order they're listed.
+     * @return the number of pages exported
+     */
+    public static long exportFolder(File pagesFolder, Writer writer) throws IOException {
+        long numPages = 0;
+        try (Stream<Path> files = Files.walk(pagesFolder.toPath())) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                Matcher idPattern = IngestManifest.PAGE_ID_PATTERN.matcher(path.getFileName().toString());
+                if (! idPattern.matches() || ! Files.isRegularFile(path))
+                    continue;
+                String text = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+                writer.accept(new TextPage(idPattern.group(1), Integer.parseInt(idPattern.group(2)), text));
+                numPages++;
+            }
+        }
+        return numPages;
+    }
+
+    // Same as the origFile field of the pages in ElasticSearch
+    static String origFile(TextPage page) {
+        Matcher namePattern = ElasticSearchService.PAGE_TXT_PATTERN.matcher(page.fileName());
+        return namePattern.find() ? namePattern.group(1) : page.filenamePrefix();
+    }
+
+    // Tells the texts of pages that weren't extracted (see PdfDocumentService) from the actual text
+    static String status(TextPage page) {
+        String text = page.text().strip();
+        if (text.isEmpty() || text.equals(PdfDocumentService.NO_TEXT + page.pageNum()) ||
+                text.equals(PdfDocumentService.EMPTY_CONTENT + page.pageNum()))
+            return "empty";
+        return text.equals(String.format(PdfDocumentService.OVER_BUDGET, page.pageNum())) ? "skipped" : "ok";
+    }
+
+    /**
+     * Writes pages into Parquet files. Pages may be added concurrently by multiple extraction workers.
+     * Files are written under a temporary name, and renamed once they're complete.
+     */
+    public static class Writer implements PageSink, Closeable {
+        private final File outputFolder;
+        private final long rowGroupBytes;
+        private final long fileBytes;
+
+        private final Column[] columns = {
+                new Column("origFile", TYPE_BYTE_ARRAY), new Column("page", TYPE_INT32),
+                new Column("text", TYPE_BYTE_ARRAY), new Column("bytes", TYPE_INT32),
+                new Column("status", TYPE_BYTE_ARRAY)};
+
+        private int part = 0;
+        private Path tmpFile;
+        private OutputStream out;
+        private long position;
+        private final List<RowGroup> rowGroups = new ArrayList<>();
+        private int groupRows = 0;
+        private long fileRows = 0;
+        private long rows = 0;
+        private int files = 0;
+        private boolean closed = false;
+
+        private Writer(File outputFolder, long rowGroupBytes, long fileBytes) throws IOException {
+            if (! outputFolder.exists() && ! outputFolder.mkdirs())
+                throw new IllegalStateException("Failed to create export folder " + outputFolder.getAbsolutePath());
+            try (Stream<Path> files = Files.list(outputFolder.toPath())) {
+                for (Path file : files.filter(file -> PART_PATTERN.matcher(file.getFileName().toString()).matches())
+                        .toList())
+                    Files.delete(file);
+            }
+            this.outputFolder = outputFolder;
+            this.rowGroupBytes = rowGroupBytes;
+            this.fileBytes = fileBytes;
+            openFile();
+        }
+
+        @Override
+        public synchronized void accept(TextPage page) {
+            if (out == null)
+                openNextFile(page);
+            byte[] text = page.text().getBytes(StandardCharsets.UTF_8);
+            columns[0].add(origFile(page).getBytes(StandardCharsets.UTF_8));
+            columns[1].add(page.pageNum());
+            columns[2].add(text);
+            columns[3].add(text.length);
+            columns[4].add(status(page).getBytes(StandardCharsets.UTF_8));
+            groupRows++;
+            rows++;
+
+            long groupBytes = 0;
+            for (Column column : columns)
+                groupBytes += column.uncompressedBytes();
+            if (groupBytes < rowGroupBytes)
+                return;
+            try {
+                writeRowGroup();
+                if (position >= fileBytes)
+                    closeFile(); // the next file is opened with the next page
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to export page " + page.pageNum() + " of " +
+                        page.filenamePrefix(), e);
+            }
+        }
+
+        public synchronized long getRows() {
+            return rows;
+        }
+
+        public synchronized int getFiles() {
+            return files;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            if (out == null)
+                return;
+            if (groupRows > 0)
+                writeRowGroup();
+            closeFile();
+        }
+
+        private void openNextFile(TextPage page) {
+            try {
+                part++;
+                openFile();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to export page " + page.pageNum() + " of " +
+                        page.filenamePrefix(), e);
+            }
+        }
+
+        private void openFile() throws IOException {
+            tmpFile = outputFolder.toPath().resolve(partName() + ".tmp");
+            out = Files.newOutputStream(tmpFile);
+            out.write(MAGIC);
+            position = MAGIC.length;
+            rowGroups.clear();
+            fileRows = 0;
+        }
+
+        private void closeFile() throws IOException {
+            CompactWriter footer = new CompactWriter();
+            footer.i32(1, 1);
+            footer.beginList(2, CompactWriter.STRUCT, columns.length + 1);
+            footer.beginElement().string(4, "schema").i32(5, columns.length).endStruct();
+            for (Column column : columns) {
+                footer.beginElement().i32(1, column.type).i32(3, REQUIRED).string(4, column.name);
+                if (column.type == TYPE_BYTE_ARRAY)
+                    footer.i32(6, CONVERTED_UTF8);
+                footer.endStruct();
+            }
+            footer.i64(3, fileRows);
+            footer.beginList(4, CompactWriter.STRUCT, rowGroups.size());
+            for (RowGroup rowGroup : rowGroups)
+                rowGroup.write(footer.beginElement()).endStruct();
+            footer.string(6, "pdf-to-text");
+            byte[] metadata = footer.finish();
+
+            out.write(metadata);
+            out.write(littleEndian(metadata.length));
+            out.write(MAGIC);
+            out.close();
+            out = null;
+            Files.move(tmpFile, tmpFile.resolveSibling(partName()), StandardCopyOption.REPLACE_EXISTING);
+            files++;
+        }
+
+        private String partName() {
+            return String.format("part-%05d.parquet", part);
+        }
+
+        // Writes the column chunks of the row group: the pages of each column, one column after the other
+        private void writeRowGroup() throws IOException {
+            List<ColumnChunk> chunks = new ArrayList<>();
+            long groupStart = position;
+            long uncompressed = 0;
+            for (Column column : columns) {
+                column.flushPage();
+                long chunkStart = position;
+                long chunkUncompressed = 0;
+                for (Page page : column.pages) {
+                    byte[] header = new CompactWriter().i32(1, PAGE_TYPE_DATA).i32(2, page.uncompressedSize())
+                            .i32(3, page.data().length)
+                            .beginStruct(5).i32(1, page.numValues()).i32(2, ENCODING_PLAIN).i32(3, ENCODING_RLE)
+                            .i32(4, ENCODING_RLE).endStruct()
+                            .finish();
+                    out.write(header);
+                    out.write(page.data());
+                    position += header.length + page.data().length;
+                    chunkUncompressed += header.length + page.uncompressedSize();
+                }
+                chunks.add(new ColumnChunk(column.name, column.type, groupRows, chunkUncompressed,
+                        position - chunkStart, chunkStart));
+                uncompressed += chunkUncompressed;
+                column.clear();
+            }
+            rowGroups.add(new RowGroup(chunks, uncompressed, groupRows, groupStart, position - groupStart,
+                    rowGroups.size()));
+            fileRows += groupRows;
+            groupRows = 0;
+        }
+    }
+
+    // The values of a column in the current row group: pages that are compressed once they're full, and the values
+    // of the current page, PLAIN-encoded (little-endian ints, and length-prefixed byte arrays)
+    private static class Column {
+        final String name;
+        final int type;
+        final List<Page> pages = new ArrayList<>();
+        private final ByteArrayOutputStream values = new ByteArrayOutputStream();
+        private int numValues = 0;
+        private long flushedBytes = 0;
+
+        Column(String name, int type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        void add(int value) {
+            values.writeBytes(littleEndian(value));
+            valueAdded();
+        }
+
+        void add(byte[] value) {
+            values.writeBytes(littleEndian(value.length));
+            values.writeBytes(value);
+            valueAdded();
+        }
+
+        long uncompressedBytes() {
+            return flushedBytes + values.size();
+        }
+
+        void flushPage() throws IOException {
+            if (numValues == 0)
+                return;
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(values.size() / 3 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                values.writeTo(gzip);
+            }
+            pages.add(new Page(compressed.toByteArray(), values.size(), numValues));
+            flushedBytes += values.size();
+            values.reset();
+            numValues = 0;
+        }
+
+        // Once the pages were written into a row group
+        void clear() {
+            pages.clear();
+            flushedBytes = 0;
+        }
+
+        private void valueAdded() {
+            numValues++;
+            if (values.size() >= PAGE_BYTES) {
+                try {
+                    flushPage();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to compress the values of " + name, e);
+                }
+            }
+        }
+    }
+
+    private record Page(byte[] data, int uncompressedSize, int numValues) { }
+
+    private record ColumnChunk(String name, int type, long numValues, long uncompressedSize, long compressedSize,
+                               long offset) {
+        CompactWriter write(CompactWriter writer) {
+            writer.i64(2, offset).beginStruct(3)
+                    .i32(1, type);
+            // The values, and the levels declared by the page headers
+            writer.beginList(2, CompactWriter.I32, 2).listI32(ENCODING_PLAIN).listI32(ENCODING_RLE);
+            writer.beginList(3, CompactWriter.BINARY, 1).listString(name);
+            return writer.i32(4, CODEC_GZIP).i64(5, numValues).i64(6, uncompressedSize).i64(7, compressedSize)
+                    .i64(9, offset).endStruct();
+        }
+    }
+
+    private record RowGroup(List<ColumnChunk> columns, long totalByteSize, long numRows, long offset,
+                            long compressedSize, int ordinal) {
+        CompactWriter write(CompactWriter writer) {
+            writer.beginList(1, CompactWriter.STRUCT, columns.size());
+            for (ColumnChunk column : columns)
+                column.write(writer.beginElement()).endStruct();
+            return writer.i64(2, totalByteSize).i64(3, numRows).i64(5, offset).i64(6, compressedSize)
+                    .i16(7, ordinal);
+        }
+    }
+
+    private static byte[] littleEndian(int value) {
+        return new byte[] {(byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24)};
+    }
+
+    /**
+     * Encodes Thrift structs with the compact protocol, as used by the Parquet metadata. The writer starts in a
+     * top-level struct, closed by {@link #finish()}.
+     */
+    static class CompactWriter {
+        static final byte I16 = 4;
+        static final byte I32 = 5;
+        static final byte I64 = 6;
+        static final byte BINARY = 8;
+        static final byte LIST = 9;
+        static final byte STRUCT = 12;
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // The last field id of each open struct
+        private final List<Integer> lastFields = new ArrayList<>(List.of(0));
+
+        CompactWriter i16(int id, int value) {
+            field(id, I16);
+            varint(zigzag(value));
+            return this;
+        }
+
+        CompactWriter i32(int id, int value) {
+            field(id, I32);
+            varint(zigzag(value));
+            return this;
+        }
+
+        CompactWriter i64(int id, long value) {
+            field(id, I64);
+            varint(zigzag(value));
+            return this;
+        }
+
+        CompactWriter string(int id, String value) {
+            field(id, BINARY);
+            return listString(value);
+        }
+
+        CompactWriter beginStruct(int id) {
+            field(id, STRUCT);
+            return beginElement();
+        }
+
+        CompactWriter beginList(int id, byte elementType, int size) {
+            field(id, LIST);
+            if (size < 15) {
+                out.write(size << 4 | elementType);
+            } else {
+                out.write(0xF0 | elementType);
+                varint(size);
+            }
+            return this;
+        }
+
+        // A struct element of a list
+        CompactWriter beginElement() {
+            lastFields.add(0);
+            return this;
+        }
+
+        CompactWriter listI32(int value) {
+            varint(zigzag(value));
+            return this;
+        }
+
+        CompactWriter listString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            out.writeBytes(bytes);
+            return this;
+        }
+
+        CompactWriter endStruct() {
+            out.write(0);
+            lastFields.removeLast();
+            return this;
+        }
+
+        byte[] finish() {
+            endStruct();
+            return out.toByteArray();
+        }
+
+        private void field(int id, byte type) {
+            int delta = id - lastFields.getLast();
+            if (delta > 0 && delta <= 15) {
+                out.write(delta << 4 | type);
+            } else {
+                out.write(type);
+                varint(zigzag(id));
+            }
+            lastFields.set(lastFields.size() - 1, id);
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private void varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+}
@@ -1,12 +1,26 @@
 package org.informiz.pdf.txt;
 
 
+import org.openpdf.text.pdf.PRIndirectReference;
+import org.openpdf.text.pdf.PRStream;
+import org.openpdf.text.pdf.PdfArray;
 import org.openpdf.text.pdf.PdfBatchUtils;
+import org.openpdf.text.pdf.PdfDictionary;
+import org.openpdf.text.pdf.PdfName;
+import org.openpdf.text.pdf.PdfObject;
 import org.openpdf.text.pdf.PdfReader;
+import org.openpdf.text.pdf.RandomAccessFileOrArray;
 import org.openpdf.text.pdf.parser.PdfTextExtractor;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,11 +34,104 @@ public class PdfDocumentService {
 
     public static final Pattern PAGE_NAME_PATTERN = Pattern.compile("[^.]+\\.pdf_page(\\d+)\\.pdf");
 
+    public static final int DEFAULT_LARGE_FILE_MB = 64;
+    public static final int DEFAULT_DOCUMENT_MEMORY_MB = 256;
+
+    // Rough ratio between the memory used for extracting the text of a page and the size of its (usually compressed)
+    // content streams in the file
+    private static final int CONTENT_EXPANSION = 10;
+    // How long a page waits for the other pages of its document to free their share of the memory budget
+    private static final long BUDGET_WAIT_SECONDS = Watchdog.DEFAULT_PAGE_TIMEOUT_SECONDS;
+
+    // Files larger than this are read partially, see openReader
+    private static volatile long largeFileBytes = DEFAULT_LARGE_FILE_MB * 1024L * 1024;
+    // The memory a document may use for extracting the text of the pages in progress, see MemoryBudget
+    private static volatile long documentMemoryBytes = DEFAULT_DOCUMENT_MEMORY_MB * 1024L * 1024;
+    // Whether the text is extracted with FastTextExtractor, see --engine
+    private static volatile boolean fastEngine = false;
+
+    private static final byte[] NEW_LINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    // The texts of pages whose text wasn't extracted, followed by the page number (see ParquetExport.status)
+    static final String NO_TEXT = "No text found in page ";
+    static final String EMPTY_CONTENT = "Empty content found in page ";
+    static final String OVER_BUDGET = "Page %d exceeds the memory budget, text not extracted";
+
+    /**
+     * The memory budget of a document (see --doc-memory-mb), shared by the workers extracting its page-ranges. The
+     * memory of each page is estimated from the size of its content streams and form XObjects (images aren't decoded
+     * for extracting text), and held from the page's start until its text is extracted and it is released. A page
+     * waits for the document's other pages in progress to leave it room; it is only skipped if it doesn't fit in the
+     * whole budget, or if the other pages keep the budget for too long (e.g., a stuck page).
+     */
+    public static class MemoryBudget {
+        private final long limit = documentMemoryBytes;
+        private long reserved = 0;
+
+        // Returns false if the page should be skipped
+        private synchronized boolean reserve(long pageBytes) {
+            if (pageBytes > limit)
+                return false;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(BUDGET_WAIT_SECONDS);
+            while (reserved + pageBytes > limit) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    return false;
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            reserved += pageBytes;
+            return true;
+        }
+
+        private synchronized void release(long pageBytes) {
+            reserved -= pageBytes;
+            notifyAll();
+        }
+    }
+
     static void main(String[] args) {
         if (args == null || args.length == 0) {
             System.out.println("Please provide full path to a source-folder with PDF files");
             System.out.println("Example usage:");
             System.out.println("java -cp path/to/app.jar org.informiz.pdf.txt.PdfDocumentService /full/path/to/pdf/folder/");
+            System.out.println("Add --split to extract the text through intermediate single-page PDF files (slower)");
+            System.out.println("Add --workers=N to set the number of concurrent workers (default: number of CPUs)");
+            System.out.println("Add --bench to measure the extraction throughput with 1, N/2 and N workers");
+            System.out.println("Add --full to re-process all the documents, including the ones that haven't changed");
+            System.out.println("Add --store to write the pages into a packed page-store instead of separate files, " +
+                    "and --compress to compress them");
+            System.out.println("Add --metrics to print per-stage metrics every 10 seconds (--metrics-interval=N to " +
+                    "change, --metrics-json for JSON lines)");
+            System.out.println("Add --records=/full/path/to/records/folder to also create ElasticSearch records from " +
+                    "the pages, with names from --gazetteer=/full/path/to/dictionaries (see RecordExtractor)");
+            System.out.println("Add --index to also add the pages to the local full-text index (see LocalIndex)");
+            System.out.println("Add --concat to also assemble the pages of each document into a single text file " +
+                    "under text_pages.docs, and --page-markers to mark where each page starts");
+            System.out.println("Add --cache to keep the extracted text of each page in a cache, so the same pages " +
+                    "in other documents aren't extracted again (--cache=/path/to/folder, --cache-mb=N to set the size)");
+            System.out.println("Documents that fail are copied to the text_pages.quarantine folder (or " +
+                    "--quarantine=/path/to/folder) and skipped by later runs, add --fail-fast to stop on the first " +
+                    "failure instead");
+            System.out.println("Add --page-timeout=N to give up on documents with a page that takes more than N " +
+                    "seconds (default: " + Watchdog.DEFAULT_PAGE_TIMEOUT_SECONDS + "), and --doc-timeout=N for " +
+                    "documents that take more than N seconds (default: " + Watchdog.DEFAULT_DOC_TIMEOUT_SECONDS +
+                    "), 0 to disable");
+            System.out.println("Add --coordinate=/path/to/shared/folder to share the documents with other processes " +
+                    "(on this host, or on other hosts through shared storage) started with the same folder, and " +
+                    "--lease-seconds=N to set how long a process may be silent before its pages are taken over " +
+                    "(default: " + ShardCoordinator.DEFAULT_LEASE_SECONDS + ")");
+            System.out.println("Add --engine=fast to extract the text of simple pages from their text operators " +
+                    "only, skipping the layout work (complex pages are still extracted in full), and " +
+                    "--compare-engines to compare its speed and text with the full extraction");
+            System.out.println("Add --large-file-mb=N to read files larger than N MB partially (default: " +
+                    DEFAULT_LARGE_FILE_MB + "), and --doc-memory-mb=N to set the memory budget of a document, " +
+                    "shared by its pages in progress and estimated from the size of their content (default: " +
+                    DEFAULT_DOCUMENT_MEMORY_MB + ")");
             exit(1);
         }
 
@@ -36,21 +143,121 @@ public class PdfDocumentService {
 
         System.out.println("Processing documents under " + args[0] + " and sub-folders...");
 
-        try {
-            File outputFolder = createTxtPagesFolder();
-            Utils.processFilesInFolder(srcFolder, srcFolder.getName(), outputFolder);
-            //Utils::concatPages
-            System.out.println("Done extracting text");
+        Utils.ExtractionMode mode = Utils.getExtractionMode(args);
+        int workers = Utils.getWorkers(args);
+        configureLargeFiles(args);
+        configureEngine(args);
+
+        try (PipelineMetrics.Reporter metrics = PipelineMetrics.reporterFromArgs(args);
+             ExtractionCache cache = ExtractionCache.fromArgs(args, new File("text_pages"));
+             Watchdog watchdog = Watchdog.fromArgs(args);
+             Quarantine quarantine = Quarantine.fromArgs(args, new File("text_pages"));
+             ShardCoordinator coordinator = ShardCoordinator.fromArgs(args)) {
+            if (Utils.hasFlag(args, "--bench")) {
+                benchmark(srcFolder, mode, workers);
+                return;
+            }
+            if (Utils.hasFlag(args, "--compare-engines")) {
+                System.out.println(FastTextExtractor.compare(srcFolder, srcFolder.getName(), 20).summary());
+                return;
+            }
+            if (coordinator != null) {
+                processShared(args, srcFolder, mode, workers, coordinator, quarantine);
+                if (cache != null)
+                    System.out.println(cache.stats());
+                if (quarantine != null)
+                    System.out.println(quarantine.summary());
+                return;
+            }
+
+            boolean useStore = Utils.hasFlag(args, "--store");
+            File outputFolder = useStore ? PageStore.forPagesFolder(new File("text_pages")) : createTxtPagesFolder();
+            long start = System.nanoTime();
+            long numPages;
+            try (IngestManifest manifest = IngestManifest.forPagesFolder(new File("text_pages"),
+                    Utils.hasFlag(args, "--full"));
+                 LocalIndex.Writer index = Utils.hasFlag(args, "--index") ?
+                         LocalIndex.openForWriting(LocalIndex.forPagesFolder(new File("text_pages"))) : null) {
+                ExtractionEngine engine = new ExtractionEngine(workers, mode).withManifest(manifest, false)
+                        .withQuarantine(quarantine);
+                PageSink records = index == null ? recordsSink(args) : recordsSink(args).andThen(index);
+                if (useStore) {
+                    try (PageStore.Writer store = PageStore.openForWriting(outputFolder,
+                            Utils.hasFlag(args, "--compress"))) {
+                        numPages = engine.process(srcFolder, srcFolder.getName(), store.andThen(records));
+                    }
+                } else {
+                    numPages = engine.process(srcFolder, srcFolder.getName(),
+                            PageSink.toFolder(outputFolder).andThen(records));
+                }
+                System.out.println("Skipped " + engine.getSkipped() + " unchanged documents");
+            }
+            System.out.println("Done extracting text: " + numPages + " pages with " + workers + " workers, " +
+                    pagesPerSecond(numPages, System.nanoTime() - start) + " pages/sec");
+            if (Utils.hasFlag(args, "--concat"))
+                DocumentAssembler.assemble(args, new File("text_pages"),
+                        DocumentAssembler.forPagesFolder(new File("text_pages")), useStore);
 
             // TODO: delete tmp files/folders?
             // System.out.println("Intermediate files were created under " + System.getProperty("java.io.tmpdir"));
 
+            if (cache != null)
+                System.out.println(cache.stats());
+            if (quarantine != null)
+                System.out.println(quarantine.summary());
             System.out.println("Text-pages are available under " + outputFolder.getAbsolutePath());
         } catch (IOException e) {
             throw new RuntimeException("Unexpected error while processing files", e);
         }
     }
 
+    // Extracts the text together with other processes sharing the coordination folder. The page-store, the local
+    // index and the manifest are written by a single process, so only the text-pages and the records are created.
+    private static void processShared(String[] args, File srcFolder, Utils.ExtractionMode mode, int workers,
+                                      ShardCoordinator coordinator, Quarantine quarantine) throws IOException {
+        if (mode == Utils.ExtractionMode.SPLIT || Utils.hasFlag(args, "--store") || Utils.hasFlag(args, "--index") ||
+                Utils.hasFlag(args, "--concat")) {
+            System.out.println("--coordinate can't be used with --split, --store, --index or --concat");
+            exit(1);
+        }
+        System.out.println("Sharing the documents with other processes as " + coordinator.workerId());
+        File outputFolder = createTxtPagesFolder();
+        long start = System.nanoTime();
+        ExtractionEngine engine = new ExtractionEngine(workers, mode).withQuarantine(quarantine)
+                .withCoordinator(coordinator);
+        long numPages = engine.process(srcFolder, srcFolder.getName(),
+                PageSink.toFolder(outputFolder).andThen(recordsSink(args)));
+        System.out.println("Skipped " + engine.getSkipped() + " documents done by other processes or earlier runs");
+        System.out.println("Done extracting text: " + numPages + " pages with " + workers + " workers, " +
+                pagesPerSecond(numPages, System.nanoTime() - start) + " pages/sec");
+        System.out.println("Text-pages are available under " + outputFolder.getAbsolutePath());
+    }
+
+    // Extracts the text from all the documents with 1, N/2 and N workers, reporting the throughput of each run.
+    // Text-pages are written into new temp folders, leaving the text_pages folder untouched.
+    private static void benchmark(File srcFolder, Utils.ExtractionMode mode, int maxWorkers) throws IOException {
+        for (int workers : new TreeSet<>(List.of(1, Math.max(1, maxWorkers / 2), maxWorkers))) {
+            File outputFolder = Files.createTempDirectory("bench_" + workers + "_workers").toFile();
+            PipelineMetrics.reset();
+            long start = System.nanoTime();
+            long numPages = Utils.processFilesInFolder(srcFolder, srcFolder.getName(), outputFolder, mode, workers);
+            System.out.printf("%d workers: %d pages, %s pages/sec (output under %s)%n", workers, numPages,
+                    pagesPerSecond(numPages, System.nanoTime() - start), outputFolder.getAbsolutePath());
+        }
+    }
+
+    // Creates the records of the pages while they're extracted, if --records is given
+    private static PageSink recordsSink(String[] args) throws IOException {
+        String recordsFolder = Utils.getOption(args, "--records", null);
+        if (recordsFolder == null)
+            return page -> { };
+        return new RecordExtractor(RecordExtractor.loadGazetteer(args)).toFolder(new File(recordsFolder));
+    }
+
+    private static String pagesPerSecond(long numPages, long nanos) {
+        return String.format("%.1f", numPages * 1_000_000_000.0 / Math.max(1, nanos));
+    }
+
     /**
      * Split a PDF file into individual PDF pages in the output folder.
      * @param file the file to split
@@ -61,12 +268,51 @@ public class PdfDocumentService {
      */
     public static void splitPdf(File file, File outputFolder, String filenamePrefix) {
         PdfBatchUtils.SplitJob splitJob = new PdfBatchUtils.SplitJob(file.toPath(), outputFolder.toPath(), filenamePrefix);
-        PdfBatchUtils.batchSplit(List.of(splitJob), paths -> {}, throwable -> {});
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        PdfBatchUtils.batchSplit(List.of(splitJob), paths -> {}, failure::set);
+        if (failure.get() != null)
+            throw new RuntimeException("Failed to split " + file.getName(), failure.get());
+    }
+
+    /**
+     * Set the size from which files are read partially, and the memory budget of a document, from --large-file-mb
+     * and --doc-memory-mb.
+     */
+    public static void configureLargeFiles(String[] args) {
+        largeFileBytes = Utils.getIntOption(args, "--large-file-mb", DEFAULT_LARGE_FILE_MB) * 1024L * 1024;
+        documentMemoryBytes = Utils.getIntOption(args, "--doc-memory-mb", DEFAULT_DOCUMENT_MEMORY_MB) * 1024L * 1024;
+    }
+
+    /**
+     * Select the text extractor with --engine: 'full' (the default) for OpenPDF's text extractor, or 'fast' for
+     * {@link FastTextExtractor}, which passes complex pages to the full extractor.
+     */
+    public static void configureEngine(String[] args) {
+        String engine = Utils.getOption(args, "--engine", "full");
+        switch (engine) {
+            case "full" -> useFastEngine(false);
+            case "fast" -> useFastEngine(true);
+            default -> throw new IllegalArgumentException("Unknown extraction engine '" + engine +
+                    "', expected 'full' or 'fast'");
+        }
+    }
+
+    public static void useFastEngine(boolean fast) {
+        fastEngine = fast;
+    }
+
+    static boolean usesFastEngine() {
+        return fastEngine;
+    }
+
+    // The text extractor for a document, see --engine
+    static PdfTextExtractor newExtractor(PdfReader reader) {
+        return fastEngine ? new FastTextExtractor(reader) : new PdfTextExtractor(reader);
     }
 
     public static int getNumPages(File file) {
         int numPages;
-        try (PdfReader reader = new PdfReader(new FileInputStream(file))) {
+        try (PdfReader reader = openReader(file)) {
             numPages = reader.getNumberOfPages();
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -74,6 +320,163 @@ public class PdfDocumentService {
         return numPages;
     }
 
+    /**
+     * Extract the text from all the pages of a PDF document in a single pass, without splitting it into single-page
+     * PDF files first. The document is opened once, and all its pages are processed with the same text-extractor.
+     * @param pdfFile the file to extract text from
+     * @param filenamePrefix the prefix for the resulting file names - should indicate the original filename
+     *                       (possibly including directory/path of the original file)
+     * @param outputFolder where to save the resulting text files. File names follow the pattern:
+     *                     filenamePrefix_page123.pdf.txt, same as the text extracted from split pages
+     * @return the number of pages extracted, not including pages skipped for the memory budget
+     */
+    public static int extractPages(File pdfFile, String filenamePrefix, File outputFolder) {
+        return extractPages(pdfFile, filenamePrefix, PageSink.toFolder(outputFolder), 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Extract the text from a range of pages of a PDF document in a single pass, see
+     * {@link #extractPages(File, String, File)}.
+     * @param sink receives the text of each page
+     * @param fromPage the first page to extract
+     * @param toPage the last page to extract (inclusive), capped by the number of pages in the document
+     * @return the number of pages extracted, not including pages skipped for the memory budget
+     */
+    public static int extractPages(File pdfFile, String filenamePrefix, PageSink sink, int fromPage, int toPage) {
+        return extractPages(pdfFile, filenamePrefix, sink, fromPage, toPage, new MemoryBudget());
+    }
+
+    /**
+     * Extract the text from a range of pages of a PDF document, sharing the memory budget of the document with the
+     * other ranges being extracted.
+     */
+    public static int extractPages(File pdfFile, String filenamePrefix, PageSink sink, int fromPage, int toPage,
+                                   MemoryBudget budget) {
+        try (PdfReader reader = openReader(pdfFile)) {
+            return extractPages(reader, filenamePrefix, sink, fromPage, toPage, budget);
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected state: failed to process " + pdfFile.getName(), e);
+        }
+    }
+
+    /**
+     * Extract the text from a range of pages of an already opened PDF document.
+     * Each page is released once its text is extracted, so a partially read document (see {@link #openReader(File)})
+     * only holds one page at a time, within the document's memory budget (see {@link MemoryBudget}). Pages that are
+     * skipped for the budget are logged, and their text-page says so; they're not counted as extracted, so the
+     * document isn't recorded as extracted, and its pages are extracted again by the next run.
+     * A reader must not be shared between threads; concurrent workers should each open their own reader.
+     * @return the number of pages extracted, not including pages skipped for the memory budget
+     */
+    public static int extractPages(PdfReader reader, String filenamePrefix, PageSink sink, int fromPage, int toPage) {
+        return extractPages(reader, filenamePrefix, sink, fromPage, toPage, new MemoryBudget());
+    }
+
+    public static int extractPages(PdfReader reader, String filenamePrefix, PageSink sink, int fromPage, int toPage,
+                                   MemoryBudget budget) {
+        int lastPage = Math.min(toPage, reader.getNumberOfPages());
+        PdfTextExtractor extractor = newExtractor(reader);
+        int slowestPage = 0;
+        long slowestNanos = -1;
+        int skipped = 0;
+        for (int pageNum = fromPage; pageNum <= lastPage; pageNum++) {
+            long start = PipelineMetrics.start();
+            long pageBytes = pageMemory(reader, pageNum);
+            boolean reserved = budget.reserve(pageBytes);
+            Watchdog.pageStarted(pageNum);
+            String content;
+            try {
+                content = reserved ? getContent(reader, extractor, pageNum, pageNum) :
+                        String.format(OVER_BUDGET, pageNum);
+            } finally {
+                if (reserved)
+                    budget.release(pageBytes);
+            }
+            reader.releasePage(pageNum);
+            Watchdog.pageDone();
+            if (! reserved) {
+                skipped++;
+                System.out.println("Skipping page " + pageNum + " of " + filenamePrefix + ": an estimated " +
+                        pageBytes + " bytes " + (pageBytes > budget.limit ? "exceed the memory budget" :
+                        "didn't fit in the memory budget left by the document's other pages") +
+                        " (see --doc-memory-mb), the document will be extracted again by the next run");
+            }
+            long nanos = PipelineMetrics.pageExtracted(filenamePrefix, pageNum, content, start);
+            if (nanos > slowestNanos) {
+                slowestPage = pageNum;
+                slowestNanos = nanos;
+            }
+            sink.accept(new TextPage(filenamePrefix, pageNum, content));
+        }
+        if (slowestPage > 0)
+            PipelineMetrics.slowestPage(filenamePrefix, slowestPage, slowestNanos);
+        return Math.max(0, lastPage - fromPage + 1) - skipped;
+    }
+
+    /**
+     * Open a PDF document for reading. Small files are read into memory. Large files (see --large-file-mb) are read
+     * partially: objects are read from the file when they're needed, so memory use doesn't depend on the file size.
+     */
+    public static PdfReader openReader(File pdfFile) throws IOException {
+        if (pdfFile.length() < largeFileBytes)
+            return new PdfReader(new FileInputStream(pdfFile));
+
+        // Memory-mapped, except for files that are too large to be mapped as a single buffer
+        RandomAccessFileOrArray file = new RandomAccessFileOrArray(pdfFile.getPath(), false,
+                pdfFile.length() > Integer.MAX_VALUE);
+        try {
+            return new PdfReader(file, null);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    // The estimated memory for extracting the text of a page: its content streams and the form XObjects they draw,
+    // decoded and parsed, read from their sizes in the file before anything is decoded
+    private static long pageMemory(PdfReader reader, int pageNum) {
+        PdfDictionary page = reader.getPageN(pageNum);
+        return CONTENT_EXPANSION * (streamsLength(page.get(PdfName.CONTENTS)) +
+                formsLength(page.getAsDict(PdfName.RESOURCES), new HashSet<>()));
+    }
+
+    private static long streamsLength(PdfObject contents) {
+        PdfObject object = PdfReader.getPdfObject(contents);
+        if (object instanceof PRStream stream)
+            return stream.getLength();
+        long length = 0;
+        if (object instanceof PdfArray array) {
+            for (int i = 0; i < array.size(); i++)
+                length += streamsLength(array.getPdfObject(i));
+        }
+        return length;
+    }
+
+    // Forms may draw other forms, each form is counted once (by its object number)
+    private static long formsLength(PdfDictionary resources, Set<Integer> counted) {
+        PdfDictionary xObjects = resources == null ? null : resources.getAsDict(PdfName.XOBJECT);
+        if (xObjects == null)
+            return 0;
+        long length = 0;
+        for (PdfName name : xObjects.getKeys()) {
+            if (xObjects.get(name) instanceof PRIndirectReference reference && counted.add(reference.getNumber()) &&
+                    PdfReader.getPdfObject(reference) instanceof PRStream form &&
+                    PdfName.FORM.equals(form.getAsName(PdfName.SUBTYPE)))
+                length += form.getLength() + formsLength(form.getAsDict(PdfName.RESOURCES), counted);
+        }
+        return length;
+    }
+
+    /**
+     * The name of a single-page PDF file, as created when splitting a document.
+     * @param filenamePrefix the prefix indicating the original filename
+     * @param pageNum the page number in the original document
+     * @return the file name, e.g., filenamePrefix_page123.pdf
+     */
+    public static String pageFileName(String filenamePrefix, int pageNum) {
+        return filenamePrefix + "_page" + pageNum + ".pdf";
+    }
+
     /**
      * Extract text from a single-page PDF document and writes it into the output folder.
      * @param pdfFile the file to extract text from. File-name is expected to end with e.g., '.pdf_page123.pdf'.
@@ -81,6 +484,15 @@ public class PdfDocumentService {
      *                            originalFileName.pdf_page123.pdf.txt
      */
     public static void extractText(File pdfFile, File outputFolder) {
+        extractText(pdfFile, PageSink.toFolder(outputFolder));
+    }
+
+    /**
+     * Extract text from a single-page PDF document and pass it to the sink.
+     * @param pdfFile the file to extract text from. File-name is expected to end with e.g., '.pdf_page123.pdf'.
+     * @param sink receives the text of the page
+     */
+    public static void extractText(File pdfFile, PageSink sink) {
         Matcher namePattern = PAGE_NAME_PATTERN.matcher(pdfFile.getName());
         if (! namePattern.find())
             return;
@@ -93,37 +505,73 @@ public class PdfDocumentService {
                     pdfFile.getName(), e);
         }
 
+        String filenamePrefix = pdfFile.getName().substring(0, namePattern.start(1) - "_page".length());
+
+        long start = PipelineMetrics.start();
+        Watchdog.pageStarted(pageNum);
         String content = getContent(pdfFile, pageNum);
+        Watchdog.pageDone();
+        PipelineMetrics.slowestPage(filenamePrefix, pageNum,
+                PipelineMetrics.pageExtracted(filenamePrefix, pageNum, content, start));
 
-        String filename = pdfFile.getName() + ".txt";
+        sink.accept(new TextPage(filenamePrefix, pageNum, content));
+    }
 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(outputFolder, filename)))) {
-            try {
-                writer.write(content);
-                writer.newLine();
-                writer.close();
-            } catch (IOException e) {
-                throw new RuntimeException("Unexpected state: failed to write page " + pageNum, e);
-            }
+    // The text is encoded once, so the bytes written are counted without asking the file system for the file size
+    static void writeText(String content, File txtFile, int pageNum) {
+        long start = PipelineMetrics.start();
+        byte[] text = content.getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = new FileOutputStream(txtFile)) {
+            out.write(text);
+            out.write(NEW_LINE);
         } catch (IOException e) {
-            throw new RuntimeException("Unexpected state: cannot write file for page " + pageNum, e);
+            throw new RuntimeException("Unexpected state: failed to write page " + pageNum, e);
         }
+        PipelineMetrics.record(PipelineMetrics.Stage.WRITE, start, text.length + NEW_LINE.length);
     }
 
-    private static String getContent(File pdfFile, int pageNum) {
-        String content = "No text found in page " + pageNum;
-        try (PdfReader reader = new PdfReader(new FileInputStream(pdfFile))) {
+    static String getContent(File pdfFile, int pageNum) {
+        String content = NO_TEXT + pageNum;
+        try (PdfReader reader = openReader(pdfFile)) {
             if (reader.getNumberOfPages() > 0) {
-                PdfTextExtractor extractor = new PdfTextExtractor(reader);
-                try {
-                    content = extractor.getTextFromPage(1);
-                } catch (Exception e) {
-                    content = "Empty content found in page " + pageNum;
-                }
+                content = getContent(reader, newExtractor(reader), 1, pageNum);
             }
         } catch (IOException e) {
             throw new RuntimeException("Unexpected state: failed to process page " + pageNum, e);
         }
         return content;
     }
-}
\ No newline at end of file
+
+    // Takes the text of a page from the extraction cache, if there's one and the same page was extracted before
+    private static String getContent(PdfReader reader, PdfTextExtractor extractor, int readerPageNum, int pageNum) {
+        ExtractionCache cache = ExtractionCache.active();
+        if (cache == null)
+            return getContent(extractor, readerPageNum, pageNum);
+
+        String key;
+        try {
+            key = ExtractionCache.key(reader, readerPageNum);
+        } catch (Exception e) {
+            return getContent(extractor, readerPageNum, pageNum);
+        }
+        String content = cache.get(key);
+        if (content == null) {
+            try {
+                content = extractor.getTextFromPage(readerPageNum);
+            } catch (Exception e) {
+                return EMPTY_CONTENT + pageNum;
+            }
+            cache.put(key, content);
+        }
+        return content;
+    }
+
+    // Extracts the text of page 'readerPageNum' in the reader, 'pageNum' is the page number in the original document
+    static String getContent(PdfTextExtractor extractor, int readerPageNum, int pageNum) {
+        try {
+            return extractor.getTextFromPage(readerPageNum);
+        } catch (Exception e) {
+            return EMPTY_CONTENT + pageNum;
+        }
+    }
+}
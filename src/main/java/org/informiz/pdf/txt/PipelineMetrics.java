@@ -0,0 +1,384 @@
+package org.informiz.pdf.txt;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Timespan;
+import tools.jackson.databind.ObjectMapper;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters and timers for the stages of the pipeline: splitting documents, extracting page text, writing text-pages,
+ * building bulk payloads and the ElasticSearch round-trips. Also keeps a bulk-request latency histogram, the depths
+ * of the queues between the stages, and the slowest pages.
+ * Counters are striped (LongAdder), so recording from many workers is cheap and doesn't contend. The same numbers are
+ * available as JDK Flight Recorder events (category "PDF to Text"), e.g. with
+ * java -XX:StartFlightRecording:filename=run.jfr ..., and as a periodic console summary (--metrics).
+ */
+public class PipelineMetrics {
+
+    public enum Stage { SPLIT, EXTRACT, WRITE, PAYLOAD, BULK }
+
+    // Pages taking longer than this to extract are recorded as SlowPage events
+    static final long SLOW_PAGE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final ObjectMapper MAPPER = new JsonMapper();
+    private static final int SLOWEST_PAGES = 10;
+    private static final int DEFAULT_REPORT_SECONDS = 10;
+
+    // Bucket i counts the bulk requests that took less than 2^i ms (and at least 2^(i-1) ms), the last bucket counts
+    // all the slower ones
+    private static final int LATENCY_BUCKETS = 18;
+
+    private static final class StageStats {
+        final LongAdder count = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    /**
+     * A page and the time it took to extract its text.
+     */
+    public record SlowPage(String filenamePrefix, int pageNum, long nanos) { }
+
+    private static final Map<Stage, StageStats> STAGES = new EnumMap<>(Stage.class);
+    private static final AtomicLongArray BULK_LATENCY = new AtomicLongArray(LATENCY_BUCKETS);
+    private static final Map<String, IntSupplier> GAUGES = new ConcurrentHashMap<>();
+    private static final PriorityQueue<SlowPage> SLOWEST = new PriorityQueue<>(Comparator.comparingLong(SlowPage::nanos));
+    private static volatile long startNanos = System.nanoTime();
+
+    static {
+        for (Stage stage : Stage.values())
+            STAGES.put(stage, new StageStats());
+        FlightRecorder.addPeriodicEvent(StageStatsEvent.class, PipelineMetrics::emitStageStats);
+    }
+
+    /**
+     * @return the start time of an operation, to be passed to {@link #record(Stage, long, long)}
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record an operation of a stage.
+     * @param startNanos the start time of the operation, from {@link #start()}
+     * @param bytes the number of bytes produced by the operation, or 0
+     * @return the time the operation took, in nanoseconds
+     */
+    public static long record(Stage stage, long startNanos, long bytes) {
+        return record(stage, startNanos, 1, bytes);
+    }
+
+    /**
+     * Record an operation of a stage that processed several items (e.g., a document split into pages).
+     */
+    public static long record(Stage stage, long startNanos, int items, long bytes) {
+        long nanos = System.nanoTime() - startNanos;
+        StageStats stats = STAGES.get(stage);
+        stats.count.add(items);
+        stats.nanos.add(nanos);
+        if (bytes > 0)
+            stats.bytes.add(bytes);
+        return nanos;
+    }
+
+    /**
+     * Record the extraction of a page's text.
+     * @return the time the extraction took, in nanoseconds
+     */
+    public static long pageExtracted(String filenamePrefix, int pageNum, String content, long startNanos) {
+        long nanos = record(Stage.EXTRACT, startNanos, 0);
+        if (nanos >= SLOW_PAGE_NANOS) {
+            SlowPageEvent event = new SlowPageEvent();
+            if (event.shouldCommit()) {
+                event.filenamePrefix = filenamePrefix;
+                event.pageNum = pageNum;
+                event.chars = content.length();
+                event.extractionTime = nanos;
+                event.commit();
+            }
+        }
+        return nanos;
+    }
+
+    /**
+     * Record the slowest page of a document (or of a page-range of a document).
+     */
+    public static void slowestPage(String filenamePrefix, int pageNum, long nanos) {
+        synchronized (SLOWEST) {
+            if (SLOWEST.size() < SLOWEST_PAGES) {
+                SLOWEST.add(new SlowPage(filenamePrefix, pageNum, nanos));
+            } else if (SLOWEST.peek().nanos() < nanos) {
+                SLOWEST.poll();
+                SLOWEST.add(new SlowPage(filenamePrefix, pageNum, nanos));
+            }
+        }
+    }
+
+    /**
+     * Record a bulk request round-trip.
+     * @param status the HTTP status, or 0 if the request failed without a response
+     */
+    public static void bulkCompleted(String index, long startNanos, int docs, long bytes, int status, int attempt) {
+        long nanos = record(Stage.BULK, startNanos, docs, bytes);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+        BULK_LATENCY.incrementAndGet(bucket);
+
+        BulkRequestEvent event = new BulkRequestEvent();
+        if (event.shouldCommit()) {
+            event.index = index;
+            event.docs = docs;
+            event.bytes = bytes;
+            event.status = status;
+            event.attempt = attempt;
+            event.latency = nanos;
+            event.commit();
+        }
+    }
+
+    /**
+     * Register the current depth of a queue, e.g. the pages waiting to be indexed. A gauge with the same name
+     * replaces the previous one.
+     */
+    public static void gauge(String name, IntSupplier depth) {
+        GAUGES.put(name, depth);
+    }
+
+    public static void removeGauge(String name) {
+        GAUGES.remove(name);
+    }
+
+    public static long getCount(Stage stage) {
+        return STAGES.get(stage).count.sum();
+    }
+
+    public static long getNanos(Stage stage) {
+        return STAGES.get(stage).nanos.sum();
+    }
+
+    public static long getBytes(Stage stage) {
+        return STAGES.get(stage).bytes.sum();
+    }
+
+    public static List<SlowPage> getSlowestPages() {
+        synchronized (SLOWEST) {
+            List<SlowPage> pages = new ArrayList<>(SLOWEST);
+            pages.sort(Comparator.comparingLong(SlowPage::nanos).reversed());
+            return pages;
+        }
+    }
+
+    /**
+     * Clear all the counters, e.g. between benchmark runs.
+     */
+    public static void reset() {
+        for (StageStats stats : STAGES.values()) {
+            stats.count.reset();
+            stats.nanos.reset();
+            stats.bytes.reset();
+        }
+        for (int i = 0; i < LATENCY_BUCKETS; i++)
+            BULK_LATENCY.set(i, 0);
+        synchronized (SLOWEST) {
+            SLOWEST.clear();
+        }
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * A summary of the counters: a human-readable line per stage, or a single JSON object.
+     */
+    public static String summary(boolean json) {
+        return json ? jsonSummary() : textSummary();
+    }
+
+    /**
+     * Start printing a summary periodically, if --metrics is given (with --metrics-interval=seconds and
+     * --metrics-json to print JSON lines instead). The final summary is printed when the reporter is closed.
+     */
+    public static Reporter reporterFromArgs(String[] args) {
+        boolean json = Utils.hasFlag(args, "--metrics-json");
+        boolean periodic = json || Utils.hasFlag(args, "--metrics");
+        return new Reporter(periodic ? Utils.getIntOption(args, "--metrics-interval", DEFAULT_REPORT_SECONDS) : 0,
+                json);
+    }
+
+    /**
+     * Prints the summary periodically, and once more when closed.
+     */
+    public static class Reporter implements AutoCloseable {
+        private final boolean json;
+        private final ScheduledExecutorService scheduler;
+
+        Reporter(int intervalSeconds, boolean json) {
+            this.json = json;
+            if (intervalSeconds <= 0) {
+                scheduler = null;
+                return;
+            }
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleAtFixedRate(() -> System.out.println(summary(json)), intervalSeconds, intervalSeconds,
+                    TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void close() {
+            if (scheduler != null)
+                scheduler.shutdownNow();
+            System.out.println(summary(json));
+        }
+    }
+
+    private static String textSummary() {
+        double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+        StringBuilder summary = new StringBuilder(String.format("Metrics after %.1f sec:", seconds));
+        for (Stage stage : Stage.values()) {
+            long count = getCount(stage);
+            if (count == 0)
+                continue;
+            summary.append(String.format("%n  %-8s %,d in %.1f sec (%.1f/sec overall), avg %.2f ms, %,d bytes",
+                    stage, count, getNanos(stage) / 1_000_000_000.0, count / seconds,
+                    getNanos(stage) / 1_000_000.0 / count, getBytes(stage)));
+        }
+        if (getCount(Stage.BULK) > 0)
+            summary.append(String.format("%n  bulk latency (ms): %s", latencyHistogram()));
+        if (! GAUGES.isEmpty())
+            summary.append(String.format("%n  queues: %s", queueDepths()));
+        List<SlowPage> slowest = getSlowestPages();
+        if (! slowest.isEmpty()) {
+            summary.append(String.format("%n  slowest pages:"));
+            for (SlowPage page : slowest)
+                summary.append(String.format(" %s#%d (%.0f ms)", page.filenamePrefix(), page.pageNum(),
+                        page.nanos() / 1_000_000.0));
+        }
+        return summary.toString();
+    }
+
+    private static String jsonSummary() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("elapsedMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        for (Stage stage : Stage.values()) {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("count", getCount(stage));
+            stats.put("timeMs", TimeUnit.NANOSECONDS.toMillis(getNanos(stage)));
+            stats.put("bytes", getBytes(stage));
+            summary.put(stage.name().toLowerCase(), stats);
+        }
+        summary.put("bulkLatencyMs", latencyHistogram());
+        summary.put("queues", queueDepths());
+        summary.put("slowestPages", getSlowestPages().stream()
+                .map(page -> Map.of("doc", page.filenamePrefix(), "page", page.pageNum(),
+                        "ms", TimeUnit.NANOSECONDS.toMillis(page.nanos())))
+                .toList());
+        return MAPPER.writeValueAsString(summary);
+    }
+
+    // Upper bound of each bucket (ms) -> number of requests, non-empty buckets only
+    private static Map<String, Long> latencyHistogram() {
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            long count = BULK_LATENCY.get(i);
+            if (count > 0)
+                histogram.put(i == LATENCY_BUCKETS - 1 ? "more" : "<" + (1L << i), count);
+        }
+        return histogram;
+    }
+
+    private static Map<String, Integer> queueDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        GAUGES.forEach((name, depth) -> depths.put(name, depth.getAsInt()));
+        return depths;
+    }
+
+    private static void emitStageStats() {
+        for (Stage stage : Stage.values()) {
+            StageStatsEvent event = new StageStatsEvent();
+            event.stage = stage.name();
+            event.count = getCount(stage);
+            event.totalTime = getNanos(stage);
+            event.bytes = getBytes(stage);
+            event.commit();
+        }
+    }
+
+    @Name("org.informiz.pdf.txt.SlowPage")
+    @Label("Slow Page")
+    @Description("A page that took long to extract")
+    @Category({"PDF to Text", "Extraction"})
+    static class SlowPageEvent extends Event {
+        @Label("File")
+        String filenamePrefix;
+        @Label("Page")
+        int pageNum;
+        @Label("Characters")
+        int chars;
+        @Label("Extraction Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long extractionTime;
+    }
+
+    @Name("org.informiz.pdf.txt.BulkRequest")
+    @Label("Bulk Request")
+    @Description("A bulk request round-trip to ElasticSearch")
+    @Category({"PDF to Text", "Indexing"})
+    static class BulkRequestEvent extends Event {
+        @Label("Index")
+        String index;
+        @Label("Documents")
+        int docs;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+        @Label("Status")
+        int status;
+        @Label("Attempt")
+        int attempt;
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    @Name("org.informiz.pdf.txt.StageStats")
+    @Label("Stage Statistics")
+    @Description("Totals of a pipeline stage since the start of the run")
+    @Category({"PDF to Text", "Statistics"})
+    @Period("10 s")
+    static class StageStatsEvent extends Event {
+        @Label("Stage")
+        String stage;
+        @Label("Count")
+        long count;
+        @Label("Total Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long totalTime;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
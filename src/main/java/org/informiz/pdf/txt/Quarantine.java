@@ -0,0 +1,148 @@
+package org.informiz.pdf.txt;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the documents that failed to be processed (e.g. corrupt files, or pages that timed out, see
+ * {@link Watchdog}) out of the way, so a run carries on past them. A copy of each failed document is kept in the
+ * quarantine folder, e.g. text_pages.quarantine for the text_pages folder, and the failure is added to the
+ * failures.log file in it: a tab-separated line with the time, the document's text-page prefix, its path and the error.
+ * Quarantined documents are skipped by later runs, as long as they haven't changed; delete a document from the
+ * quarantine folder to try it again.
+ */
+public class Quarantine implements Closeable {
+
+    public static final String FAILURES_LOG = "failures.log";
+
+    private final Path folder;
+    // Created with the folder on the first failure
+    private BufferedWriter log;
+    private final Set<String> failed = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    private Quarantine(Path folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * The quarantine folder of a text-pages folder, e.g. text_pages.quarantine for the text_pages folder.
+     */
+    public static File forPagesFolder(File pagesFolder) {
+        File folder = pagesFolder.getAbsoluteFile();
+        return new File(folder.getParentFile(), folder.getName() + ".quarantine");
+    }
+
+    /**
+     * Open the quarantine of the text-pages folder, or the one given with --quarantine=/path/to/folder.
+     * @return the quarantine, or null with --fail-fast (stop the run on the first failure)
+     */
+    public static Quarantine fromArgs(String[] args, File pagesFolder) throws IOException {
+        if (Utils.hasFlag(args, "--fail-fast"))
+            return null;
+        String folder = Utils.getOption(args, "--quarantine", null);
+        return open(folder == null ? forPagesFolder(pagesFolder) : new File(folder));
+    }
+
+    public static Quarantine open(File folder) throws IOException {
+        return new Quarantine(folder.toPath());
+    }
+
+    /**
+     * @return whether the document failed in an earlier run, and hasn't changed since
+     */
+    public boolean isQuarantined(File pdfFile, String prefix) {
+        File copy = folder.resolve(prefix).toFile();
+        // The copy keeps the modification time of the document
+        if (! copy.isFile() || copy.length() != pdfFile.length() || copy.lastModified() != pdfFile.lastModified())
+            return false;
+        skipped.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Quarantine a document that failed with an exception, see {@link #add(File, String, String)}.
+     */
+    public boolean add(File pdfFile, String prefix, Throwable error) {
+        StringBuilder message = new StringBuilder(error.toString());
+        for (Throwable cause = error.getCause(); cause != null && cause != cause.getCause(); cause = cause.getCause())
+            message.append(", caused by ").append(cause);
+        return add(pdfFile, prefix, message.toString());
+    }
+
+    /**
+     * Quarantine a document that failed, once per run.
+     * @return false if the document already failed in this run
+     */
+    public boolean add(File pdfFile, String prefix, String error) {
+        if (! failed.add(prefix))
+            return false;
+        System.out.println("Failed to process " + prefix + ": " + error);
+        synchronized (this) {
+            try {
+                if (log == null) {
+                    Files.createDirectories(folder);
+                    log = Files.newBufferedWriter(folder.resolve(FAILURES_LOG), StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to create " + folder.resolve(FAILURES_LOG), e);
+            }
+        }
+        try {
+            Files.copy(pdfFile.toPath(), folder.resolve(prefix), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.COPY_ATTRIBUTES);
+        } catch (IOException e) {
+            System.out.println("Failed to copy " + pdfFile + " to the quarantine folder: " + e);
+        }
+        synchronized (this) {
+            try {
+                log.write(String.join("\t", Instant.now().toString(), prefix, pdfFile.getAbsolutePath(),
+                        error.replaceAll("\\s+", " ")));
+                log.newLine();
+                log.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to update " + folder.resolve(FAILURES_LOG), e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the document failed in this run
+     */
+    public boolean hasFailed(String prefix) {
+        return failed.contains(prefix);
+    }
+
+    public int getFailed() {
+        return failed.size();
+    }
+
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    public String summary() {
+        return String.format("%d documents failed, %d skipped (failed in earlier runs), see %s", failed.size(),
+                skipped.get(), folder.resolve(FAILURES_LOG));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null)
+            log.close();
+    }
+}
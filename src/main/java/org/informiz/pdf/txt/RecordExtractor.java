@@ -0,0 +1,187 @@
+package org.informiz.pdf.txt;
+
+import org.informiz.pdf.txt.Gazetteer.EntityType;
+import tools.jackson.databind.ObjectMapper;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.stream.Stream;
+
+import static java.lang.System.exit;
+import static org.informiz.pdf.txt.ElasticSearchService.PAGE_TXT_PATTERN;
+
+/**
+ * Creates ElasticSearch records from text-pages, with the same schema as the records created by nlp/process.py (see
+ * MAPPING_PROCESSED_RECORDS): dates are found by {@link DateExtractor}, and people, places, organizations and groups
+ * by a {@link Gazetteer} of known names. This is a fast first pass that can run on every ingest, either over an
+ * existing text_pages folder or while the text is extracted; the spaCy pipeline can still be used for a deeper
+ * processing of the pages.
+ * An extractor may be shared between threads.
+ */
+public class RecordExtractor {
+
+    private static final ObjectMapper MAPPER = new JsonMapper();
+
+    private final Gazetteer gazetteer;
+
+    public RecordExtractor(Gazetteer gazetteer) {
+        this.gazetteer = gazetteer;
+    }
+
+    static void main(String[] args) {
+        if (args == null || args.length < 2) {
+            System.out.println("Please provide full path to a folder with text-pages and an output folder for the records");
+            System.out.println("Example usage:");
+            System.out.println("java -cp path/to/app.jar org.informiz.pdf.txt.RecordExtractor /full/path/to/text_pages " +
+                    "/full/path/to/records/folder --gazetteer=/full/path/to/dictionaries");
+            System.out.println("The dictionaries folder may contain people.txt, places.txt, orgs.txt and groups.txt");
+            System.out.println("Add --workers=N to set the number of concurrent workers (default: number of CPUs)");
+            exit(1);
+        }
+
+        File pagesFolder = new File(args[0]);
+        if (! pagesFolder.isDirectory()) {
+            System.out.println("Text-pages folder " + args[0] + " does not exist");
+            exit(2);
+        }
+
+        try {
+            RecordExtractor extractor = new RecordExtractor(loadGazetteer(args));
+            long start = System.nanoTime();
+            long numRecords = extractor.processFolder(pagesFolder, new File(args[1]), Utils.getWorkers(args));
+            System.out.printf("Done creating %d records in %.1f sec, records are available under %s%n", numRecords,
+                    (System.nanoTime() - start) / 1_000_000_000.0, new File(args[1]).getAbsolutePath());
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected error while processing files", e);
+        }
+    }
+
+    /**
+     * The gazetteer in the folder given with --gazetteer=/path/to/dictionaries, or an empty one (only dates are
+     * extracted).
+     */
+    public static Gazetteer loadGazetteer(String[] args) throws IOException {
+        String folder = Utils.getOption(args, "--gazetteer", null);
+        return folder == null ? Gazetteer.empty() : Gazetteer.load(new File(folder));
+    }
+
+    /**
+     * Create the record of a text-page.
+     */
+    public Map<String, Object> toRecord(TextPage page) {
+        Matcher namePattern = PAGE_TXT_PATTERN.matcher(page.fileName());
+        String origFile = namePattern.matches() ? namePattern.group(1) : page.filenamePrefix();
+        String text = page.text();
+        Map<EntityType, Set<String>> names = gazetteer.find(text);
+
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("origFile", origFile);
+        record.put("page", page.pageNum());
+        record.put("people", names.get(EntityType.PEOPLE));
+        record.put("dates", DateExtractor.find(text));
+        record.put("places", names.get(EntityType.PLACES));
+        record.put("orgs", names.get(EntityType.ORGS));
+        record.put("groups", names.get(EntityType.GROUPS));
+        // Same as process.py, so records from both pipelines have the same text
+        record.put("txt", text.replace('"', '\'').replace("\n", "    "));
+        return record;
+    }
+
+    /**
+     * Create the record of a text-page as a single line of JSON, as expected when uploading records.
+     */
+    public String toJson(TextPage page) {
+        return MAPPER.writeValueAsString(toRecord(page));
+    }
+
+    /**
+     * A sink writing the record of each page into the records folder, e.g. filenamePrefix_page123.pdf.txt.record
+     */
+    public PageSink toFolder(File recordsFolder) {
+        return page -> writeRecord(page, new File(recordsFolder, page.fileName() + ".record"));
+    }
+
+    /**
+     * Create the records of all the text-pages in a folder (and sub-folders), using the given number of concurrent
+     * workers. Sub-folders are created in the records folder as well.
+     * @return the number of records created
+     */
+    public long processFolder(File pagesFolder, File recordsFolder, int workers) throws IOException {
+        AtomicLong records = new AtomicLong();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        AtomicInteger threadNum = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "records-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Bounds the queued pages, so walking a large folder doesn't fill up the memory
+        Semaphore slots = new Semaphore(workers * 3);
+
+        try (Stream<Path> files = Files.walk(pagesFolder.toPath())) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                if (failure.get() != null)
+                    break;
+                Matcher namePattern = PAGE_TXT_PATTERN.matcher(path.getFileName().toString());
+                if (! namePattern.matches() || ! Files.isRegularFile(path))
+                    continue;
+
+                File recordFile = new File(recordsFolder.toPath().resolve(pagesFolder.toPath().relativize(path)) +
+                        ".record");
+                slots.acquireUninterruptibly();
+                executor.execute(() -> {
+                    try {
+                        String text = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+                        writeRecord(new TextPage(namePattern.group(1) + ".pdf", Integer.parseInt(namePattern.group(2)),
+                                text), recordFile);
+                        records.incrementAndGet();
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, new UncheckedIOException("Failed to read " + path, e));
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        slots.release();
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (failure.get() != null)
+            throw failure.get();
+        return records.get();
+    }
+
+    private void writeRecord(TextPage page, File recordFile) {
+        try {
+            File folder = recordFile.getParentFile();
+            if (folder != null && ! folder.isDirectory())
+                Files.createDirectories(folder.toPath());
+            Files.writeString(recordFile.toPath(), toJson(page), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write record " + recordFile, e);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package org.informiz.pdf.txt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares the extraction of a folder of documents between several processes, on one host or on several hosts with
+ * shared storage, through files in a coordination folder (--coordinate=/shared/folder):
+ * <ul>
+ *     <li>plans/ - the number of pages of each document, and how they're divided into page-ranges. Written by the
+ *     first process that gets to the document.</li>
+ *     <li>leases/ - a lease file for each page-range being extracted, created atomically by the process that claims
+ *     it. The owner touches its leases every few seconds (the heartbeat); a lease that wasn't touched for
+ *     --lease-seconds (default 60) belongs to a dead process, and is reclaimed by another process.</li>
+ *     <li>done/ - a marker for each page-range, and for each document, whose pages were all extracted.</li>
+ * </ul>
+ * All the files of a document are named after its text-page prefix, size and modification time, so a document that
+ * changes is processed again. Each page is written by the process that extracted it, and text-page file names are
+ * unique, so processes don't overwrite each other's results. A page-range is extracted at least once: if a slow
+ * process loses its lease, the range may be extracted twice, into the same text-pages.
+ * The clocks of the hosts should be roughly in sync, since lease expiry compares file modification times.
+ */
+public class ShardCoordinator implements Closeable {
+
+    public static final int DEFAULT_LEASE_SECONDS = 60;
+
+    /**
+     * How a document is divided into page-ranges, the same for all the processes.
+     */
+    public record Plan(int numPages, int pagesPerRange) {
+        public int ranges() {
+            return (numPages + pagesPerRange - 1) / pagesPerRange;
+        }
+    }
+
+    /**
+     * A claimed page-range of a document.
+     */
+    public record Lease(File pdfFile, String prefix, int fromPage, int toPage, Path file) { }
+
+    private final Path plans;
+    private final Path leases;
+    private final Path done;
+    private final String workerId;
+    private final long leaseMillis;
+
+    private final Set<Path> held = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService heartbeat;
+    // Page-ranges that other processes were working on, in the current pass over the documents
+    private final AtomicInteger busyElsewhere = new AtomicInteger();
+
+    private ShardCoordinator(Path folder, int leaseSeconds) throws IOException {
+        this.plans = Files.createDirectories(folder.resolve("plans"));
+        this.leases = Files.createDirectories(folder.resolve("leases"));
+        this.done = Files.createDirectories(folder.resolve("done"));
+        this.leaseMillis = TimeUnit.SECONDS.toMillis(leaseSeconds);
+        this.workerId = InetAddress.getLocalHost().getHostName() + "-" + ManagementFactory.getRuntimeMXBean().getPid() +
+                "-" + UUID.randomUUID().toString().substring(0, 8);
+
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(100, leaseMillis / 6);
+        heartbeat.scheduleWithFixedDelay(this::renewLeases, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a coordinator for the folder given with --coordinate, with the lease time given with --lease-seconds,
+     * or null if the documents aren't shared with other processes
+     */
+    public static ShardCoordinator fromArgs(String[] args) throws IOException {
+        String folder = Utils.getOption(args, "--coordinate", null);
+        return folder == null ? null :
+                open(new File(folder), Utils.getIntOption(args, "--lease-seconds", DEFAULT_LEASE_SECONDS));
+    }
+
+    public static ShardCoordinator open(File folder, int leaseSeconds) throws IOException {
+        return new ShardCoordinator(folder.toPath(), leaseSeconds);
+    }
+
+    public String workerId() {
+        return workerId;
+    }
+
+    /**
+     * @return whether all the pages of the document were extracted, by any process
+     */
+    public boolean isDone(File pdfFile, String prefix) {
+        return Files.exists(done.resolve(key(pdfFile, prefix) + ".done"));
+    }
+
+    /**
+     * The page-ranges of a document. The first process to get to the document counts its pages and writes the plan,
+     * the others read it.
+     * @param pagesPerRange the size of the page-ranges, if there's no plan yet
+     */
+    public Plan plan(File pdfFile, String prefix, int pagesPerRange) {
+        Path planFile = plans.resolve(key(pdfFile, prefix) + ".plan");
+        try {
+            if (Files.exists(planFile)) {
+                String[] plan = Files.readString(planFile, StandardCharsets.UTF_8).strip().split(" ");
+                return new Plan(Integer.parseInt(plan[0]), Integer.parseInt(plan[1]));
+            }
+            Plan plan = new Plan(PdfDocumentService.getNumPages(pdfFile), pagesPerRange);
+            // Written atomically; processes that count the pages at the same time come up with the same plan
+            writeAtomically(planFile, plan.numPages() + " " + plan.pagesPerRange());
+            return plan;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the plan of " + prefix, e);
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Invalid plan for " + prefix + " in " + planFile, e);
+        }
+    }
+
+    /**
+     * Try to claim a page-range of a document.
+     * @param range the range number, from 0
+     * @return the lease, or null if the range is done or another live process is working on it
+     */
+    public Lease claim(File pdfFile, String prefix, Plan plan, int range) {
+        String rangeKey = key(pdfFile, prefix) + "@" + range;
+        if (Files.exists(done.resolve(rangeKey + ".done")))
+            return null;
+
+        Path leaseFile = leases.resolve(rangeKey + ".lease");
+        try {
+            if (! tryCreate(leaseFile)) {
+                if (! reclaim(leaseFile)) {
+                    busyElsewhere.incrementAndGet();
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to claim " + leaseFile, e);
+        }
+
+        // The range may have been finished by the previous owner, just before its lease was reclaimed
+        if (Files.exists(done.resolve(rangeKey + ".done"))) {
+            release(leaseFile);
+            return null;
+        }
+        held.add(leaseFile);
+        int fromPage = range * plan.pagesPerRange() + 1;
+        return new Lease(pdfFile, prefix, fromPage, Math.min(plan.numPages(), fromPage + plan.pagesPerRange() - 1),
+                leaseFile);
+    }
+
+    /**
+     * Mark a claimed page-range as done and release it. Marks the document as done if it was the last range.
+     */
+    public void done(Lease lease, Plan plan) {
+        String docKey = key(lease.pdfFile(), lease.prefix());
+        try {
+            tryCreate(done.resolve(docKey + "@" + (lease.fromPage() - 1) / plan.pagesPerRange() + ".done"));
+            boolean allDone = true;
+            for (int range = 0; range < plan.ranges() && allDone; range++)
+                allDone = Files.exists(done.resolve(docKey + "@" + range + ".done"));
+            if (allDone)
+                tryCreate(done.resolve(docKey + ".done"));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to mark " + lease.prefix() + " as done", e);
+        } finally {
+            release(lease);
+        }
+    }
+
+    /**
+     * Release a claimed page-range without marking it as done, e.g. after a failure, so another process can try it.
+     */
+    public void release(Lease lease) {
+        release(lease.file());
+    }
+
+    /**
+     * Start a new pass over the documents.
+     */
+    public void newPass() {
+        busyElsewhere.set(0);
+    }
+
+    /**
+     * @return the number of page-ranges that other processes were working on in the current pass
+     */
+    public int busyElsewhere() {
+        return busyElsewhere.get();
+    }
+
+    /**
+     * How long to wait before another pass, for the other processes to finish or for their leases to expire.
+     */
+    public long passIntervalMillis() {
+        return Math.max(100, Math.min(5000, leaseMillis / 4));
+    }
+
+    @Override
+    public void close() {
+        heartbeat.shutdownNow();
+        for (Path leaseFile : held)
+            release(leaseFile);
+    }
+
+    // Replaces a lease that expired, when its owner died. Only one process succeeds in moving the old lease away.
+    private boolean reclaim(Path leaseFile) throws IOException {
+        long modified;
+        try {
+            modified = Files.getLastModifiedTime(leaseFile).toMillis();
+        } catch (NoSuchFileException e) {
+            return tryCreate(leaseFile); // released in the meantime
+        }
+        if (System.currentTimeMillis() - modified < leaseMillis)
+            return false;
+
+        Path expired = leaseFile.resolveSibling(leaseFile.getFileName() + ".expired-" + workerId);
+        try {
+            Files.move(leaseFile, expired, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return false; // reclaimed by another process
+        }
+        if (System.currentTimeMillis() - Files.getLastModifiedTime(expired).toMillis() < leaseMillis) {
+            // Another process reclaimed it since it was checked, give it back
+            try {
+                Files.move(expired, leaseFile);
+            } catch (FileAlreadyExistsException e) {
+                Files.deleteIfExists(expired);
+            }
+            return false;
+        }
+        System.out.println("Reclaiming expired lease " + leaseFile.getFileName() + " (" +
+                Files.readString(expired, StandardCharsets.UTF_8).strip() + ")");
+        Files.deleteIfExists(expired);
+        return tryCreate(leaseFile);
+    }
+
+    // The file is written under a temp name, then linked into place: linking fails if the file exists, unlike a move
+    // that replaces it, so exactly one process creates the file, and no process sees it without its content
+    private boolean tryCreate(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + "." + workerId + ".tmp");
+        Files.writeString(tmp, workerId + System.lineSeparator(), StandardCharsets.UTF_8);
+        try {
+            Files.createLink(file, tmp);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void release(Path leaseFile) {
+        held.remove(leaseFile);
+        try {
+            // Only if it's still ours, it might have been reclaimed by another process
+            if (workerId.equals(Files.readString(leaseFile, StandardCharsets.UTF_8).strip()))
+                Files.deleteIfExists(leaseFile);
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    private void renewLeases() {
+        long now = System.currentTimeMillis();
+        for (Path leaseFile : held) {
+            if (! leaseFile.toFile().setLastModified(now))
+                System.out.println("Lost the lease " + leaseFile.getFileName() + ", another process may take it over");
+        }
+    }
+
+    private void writeAtomically(Path file, String content) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + "." + workerId + ".tmp");
+        Files.writeString(tmp, content + System.lineSeparator(), StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Documents are identified by their text-page prefix, size and modification time
+    private static String key(File pdfFile, String prefix) {
+        return prefix + "@" + pdfFile.length() + "-" + pdfFile.lastModified();
+    }
+}
@@ -0,0 +1,17 @@
+package org.informiz.pdf.txt;
+
+/**
+ * The text extracted from a single page of a PDF document.
+ * @param filenamePrefix indicates the original filename (possibly including directory/path of the original file)
+ * @param pageNum the page number in the original document
+ * @param text the extracted text
+ */
+public record TextPage(String filenamePrefix, int pageNum, String text) {
+
+    /**
+     * @return the name of the text-page file, e.g., filenamePrefix_page123.pdf.txt
+     */
+    public String fileName() {
+        return PdfDocumentService.pageFileName(filenamePrefix, pageNum) + ".txt";
+    }
+}
@@ -4,20 +4,45 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.function.BiConsumer;
 import java.util.stream.Stream;
 
 import static org.informiz.pdf.txt.PdfDocumentService.getNumPages;
 
 public class Utils {
+
+    // How the text is extracted from a PDF document:
+    // SPLIT - split the document into single-page PDF files, then extract the text from each page-file
+    // SINGLE_PASS - open the document once and extract the text from all its pages directly
+    public enum ExtractionMode { SPLIT, SINGLE_PASS }
+
+    // Extract the text from a PDF file into text-pages passed to the sink, using the given extraction mode.
+    // Returns the number of text pages created.
+    protected static int pdfToTxt(File pdfFile, String filenamePrefix, PageSink sink, ExtractionMode mode)
+            throws IOException {
+        if (mode == ExtractionMode.SPLIT)
+            return splitToTxt(pdfFile, filenamePrefix, sink);
+
+        return PdfDocumentService.extractPages(pdfFile, filenamePrefix, sink, 1, Integer.MAX_VALUE);
+    }
+
     // Split a PDF file into pages and extract the text from each page.
     // Intermediate files/folders are created in the default temp folder.
     // Returns the folder containing the text pages.
     protected static File pdfToTxt(File pdfFile, String filenamePrefix, File outputFolder) throws IOException {
+        splitToTxt(pdfFile, filenamePrefix, PageSink.toFolder(outputFolder));
+        return outputFolder;
+    }
+
+    private static int splitToTxt(File pdfFile, String filenamePrefix, PageSink sink) throws IOException {
         File pagesFolder = Files.createTempDirectory("split_" + filenamePrefix).toFile();
         boolean splitRequired = isSplitRequired(pdfFile, filenamePrefix, pagesFolder);
 
         if (splitRequired) {
+            long start = PipelineMetrics.start();
             PdfDocumentService.splitPdf(pdfFile, pagesFolder, filenamePrefix);
+            PipelineMetrics.record(PipelineMetrics.Stage.SPLIT, start, 0);
 
             // TODO: need sub-folders for text-pages?
 /*
@@ -28,9 +53,10 @@ public class Utils {
         }
 
         try (Stream<Path> pdfPages = Files.list(pagesFolder.toPath())) {
-            pdfPages.forEach(path -> PdfDocumentService.extractText(path.toFile(), outputFolder));
+            List<Path> pages = pdfPages.toList();
+            pages.forEach(path -> PdfDocumentService.extractText(path.toFile(), sink));
+            return pages.size();
         }
-        return outputFolder;
     }
 
     private static boolean isSplitRequired(File pdfFile, String filenamePrefix, File outputFolder) {
@@ -40,7 +66,7 @@ public class Utils {
             splitRequired = false;
         }
         if (numPages == 1) {
-            Path targetPath = Paths.get(outputFolder.getAbsolutePath(), filenamePrefix + "_page1.pdf");
+            Path targetPath = Paths.get(outputFolder.getAbsolutePath(), PdfDocumentService.pageFileName(filenamePrefix, 1));
             Path originalPath = pdfFile.toPath();
             try {
                 Files.copy(originalPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
@@ -54,47 +80,72 @@ public class Utils {
 
     public static File createTxtPagesFolder() {
         File outputFolder = new File("text_pages");
-        if (! outputFolder.exists() && ! outputFolder.mkdir()) {
+        // Other processes may be creating it at the same time
+        if (! outputFolder.mkdir() && ! outputFolder.isDirectory()) {
             throw new IllegalStateException("Failed to create new folder in user-directory");
         }
         return outputFolder;
     }
 
+    // Command-line flags, e.g. '--records', may appear anywhere after the source-folder argument
+    public static boolean hasFlag(String[] args, String flag) {
+        for (int i = 1; i < args.length; i++) {
+            if (flag.equals(args[i]))
+                return true;
+        }
+        return false;
+    }
 
-    // Concatenates all the text-pages from a single folder into one TXT file.
-    // The concatenated file is stored in the tmp folder.
-    protected static void concatPages(File txtFolder, String filenamePrefix) {
-        Path output;
-        try {
-            output = Files.createTempFile(filenamePrefix, ".txt");
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    // Command-line options are passed as e.g. '--workers=8'
+    public static String getOption(String[] args, String option, String defaultValue) {
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith(option + "="))
+                return args[i].substring(option.length() + 1);
         }
+        return defaultValue;
+    }
 
-        try (Stream<Path> txtPages = Files.list(txtFolder.toPath())) {
-            txtPages.sorted()
-                    .flatMap(page -> {
-                        try {
-                            return Files.lines(page);
-                        } catch (IOException e) {
-                            return Stream.of("Error while reading text page at " + page);
-                        }
-                    })
-                    .forEach(line -> {
-                        try {
-                            Files.writeString(output, line + System.lineSeparator(),
-                                    StandardOpenOption.APPEND);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    public static int getIntOption(String[] args, String option, int defaultValue) {
+        String value = getOption(args, option, null);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a number for " + option + ", got " + value, e);
         }
     }
 
+    public static ExtractionMode getExtractionMode(String[] args) {
+        return hasFlag(args, "--split") ? ExtractionMode.SPLIT : ExtractionMode.SINGLE_PASS;
+    }
+
+    public static int getWorkers(String[] args) {
+        return getIntOption(args, "--workers", Runtime.getRuntime().availableProcessors());
+    }
+
     // Helper function to walk through a directory-structure and process all files
     public static void processFilesInFolder(File folder, String srcDir, File outputFolder) throws IOException {
+        processFilesInFolder(folder, srcDir, outputFolder, ExtractionMode.SINGLE_PASS);
+    }
+
+    public static void processFilesInFolder(File folder, String srcDir, File outputFolder, ExtractionMode mode)
+            throws IOException {
+        processFilesInFolder(folder, srcDir, outputFolder, mode, Runtime.getRuntime().availableProcessors());
+    }
+
+    // Extracts the text from all the PDF files under the folder, using the given number of concurrent workers
+    public static long processFilesInFolder(File folder, String srcDir, File outputFolder, ExtractionMode mode,
+                                            int workers) throws IOException {
+        return processFilesInFolder(folder, srcDir, PageSink.toFolder(outputFolder), mode, workers);
+    }
+
+    public static long processFilesInFolder(File folder, String srcDir, PageSink sink, ExtractionMode mode,
+                                            int workers) throws IOException {
+        return new ExtractionEngine(workers, mode).process(folder, srcDir, sink);
+    }
+
+    // Walks through a directory-structure and calls the action for every PDF file, with the prefix for the names of
+    // its text-pages (the file name, including sub-directories relative to the source-folder)
+    public static void walkPdfFiles(File folder, String srcDir, BiConsumer<File, String> action) throws IOException {
         Files.walkFileTree(folder.toPath(), new FileVisitor<Path>() {
             @Override
             public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes basicFileAttributes) throws IOException {
@@ -114,12 +165,7 @@ public class Utils {
                 }
 
                 if (file.getName().endsWith(".pdf")) {
-                    String prefix = prefixBuf.toString();
-                    try {
-                        pdfToTxt(file, prefix, outputFolder);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
+                    action.accept(file, prefixBuf.toString());
                 }
 
                 return FileVisitResult.CONTINUE;
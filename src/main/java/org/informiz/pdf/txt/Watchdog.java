@@ -0,0 +1,214 @@
+package org.informiz.pdf.txt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Detects extraction workers that are stuck on a document: a page that takes longer than --page-timeout seconds to
+ * extract (default 60), or a document (or a page-range of a large document) that takes longer than --doc-timeout
+ * seconds (default 600). Set either to 0 to disable it.
+ * A stuck thread can't be stopped safely, so it's left to finish in the background: the listeners (e.g. the extraction
+ * engine) give up on its document and carry on with another worker, and whatever the thread extracts after it timed
+ * out is discarded - {@link #pageDone()} throws {@link TimedOut} when it gets there.
+ * Workers report their progress through static methods, which do nothing unless a watchdog is running and the thread
+ * started a task.
+ */
+public class Watchdog implements Closeable {
+
+    public static final int DEFAULT_PAGE_TIMEOUT_SECONDS = 60;
+    public static final int DEFAULT_DOC_TIMEOUT_SECONDS = 600;
+
+    private static final long CHECK_MS = 1000;
+
+    /**
+     * Thrown by a worker that was given up on, when it finally finishes a page.
+     */
+    public static class TimedOut extends RuntimeException {
+        TimedOut(Task task) {
+            super("Gave up on " + task.prefix + " after it timed out");
+        }
+    }
+
+    /**
+     * What a worker is working on.
+     */
+    public static final class Task {
+        private final File pdfFile;
+        private final String prefix;
+        private final long start = System.nanoTime();
+        private volatile int pageNum;
+        private volatile long pageStart;
+        private volatile String timedOut;
+        private final AtomicBoolean decided = new AtomicBoolean();
+
+        Task(File pdfFile, String prefix) {
+            this.pdfFile = pdfFile;
+            this.prefix = prefix;
+        }
+
+        public File pdfFile() {
+            return pdfFile;
+        }
+
+        public String prefix() {
+            return prefix;
+        }
+
+        // Why the task timed out, e.g. 'page 12 took more than 60 seconds', or null
+        public String timedOut() {
+            return timedOut;
+        }
+
+        /**
+         * The worker finishing the task and a listener giving up on it race each other, the first one to call this
+         * decides the outcome of the task.
+         * @return true for the first caller
+         */
+        public boolean decide() {
+            return decided.compareAndSet(false, true);
+        }
+    }
+
+    private static volatile Watchdog active;
+
+    private final long pageTimeoutNanos;
+    private final long docTimeoutNanos;
+    private final Map<Thread, Task> tasks = new ConcurrentHashMap<>();
+    private final List<BiConsumer<Thread, Task>> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService checker;
+
+    private Watchdog(int pageTimeoutSeconds, int docTimeoutSeconds) {
+        this.pageTimeoutNanos = TimeUnit.SECONDS.toNanos(pageTimeoutSeconds);
+        this.docTimeoutNanos = TimeUnit.SECONDS.toNanos(docTimeoutSeconds);
+        this.checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleWithFixedDelay(this::check, CHECK_MS, CHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start the watchdog with the timeouts given with --page-timeout and --doc-timeout (in seconds).
+     * @return the watchdog, or null if both timeouts are disabled
+     */
+    public static Watchdog fromArgs(String[] args) {
+        return start(Utils.getIntOption(args, "--page-timeout", DEFAULT_PAGE_TIMEOUT_SECONDS),
+                Utils.getIntOption(args, "--doc-timeout", DEFAULT_DOC_TIMEOUT_SECONDS));
+    }
+
+    public static Watchdog start(int pageTimeoutSeconds, int docTimeoutSeconds) {
+        if (pageTimeoutSeconds <= 0 && docTimeoutSeconds <= 0)
+            return null;
+        Watchdog watchdog = new Watchdog(pageTimeoutSeconds, docTimeoutSeconds);
+        active = watchdog;
+        return watchdog;
+    }
+
+    /**
+     * @return the running watchdog, or null
+     */
+    static Watchdog active() {
+        return active;
+    }
+
+    /**
+     * Add a listener that is called (from the watchdog thread) with a thread that timed out and its task.
+     */
+    public void onTimeout(BiConsumer<Thread, Task> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(BiConsumer<Thread, Task> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start watching the current thread, working on a document.
+     * @return the previous task of the thread, to be restored by {@link #taskDone(Task)} (tasks may be nested, e.g. a
+     * page-range run by the worker that submitted it)
+     */
+    public static Task taskStarted(File pdfFile, String prefix) {
+        Watchdog watchdog = active;
+        return watchdog == null ? null : watchdog.tasks.put(Thread.currentThread(), new Task(pdfFile, prefix));
+    }
+
+    public static void taskDone(Task previous) {
+        Watchdog watchdog = active;
+        if (watchdog == null)
+            return;
+        if (previous == null)
+            watchdog.tasks.remove(Thread.currentThread());
+        else
+            watchdog.tasks.put(Thread.currentThread(), previous);
+    }
+
+    public static void pageStarted(int pageNum) {
+        Task task = currentTask();
+        if (task != null) {
+            task.pageNum = pageNum;
+            task.pageStart = System.nanoTime();
+        }
+    }
+
+    /**
+     * @throws TimedOut if the current task timed out while the page was extracted
+     */
+    public static void pageDone() {
+        Task task = currentTask();
+        if (task == null)
+            return;
+        task.pageStart = 0;
+        if (task.timedOut != null)
+            throw new TimedOut(task);
+    }
+
+    @Override
+    public void close() {
+        if (active == this)
+            active = null;
+        checker.shutdownNow();
+    }
+
+    // The task of the current thread, or null
+    static Task currentTask() {
+        Watchdog watchdog = active;
+        return watchdog == null ? null : watchdog.tasks.get(Thread.currentThread());
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        for (Map.Entry<Thread, Task> entry : tasks.entrySet()) {
+            Task task = entry.getValue();
+            if (task.timedOut != null)
+                continue;
+            long pageStart = task.pageStart;
+            if (pageTimeoutNanos > 0 && pageStart != 0 && now - pageStart > pageTimeoutNanos)
+                task.timedOut = "page " + task.pageNum + " took more than " +
+                        TimeUnit.NANOSECONDS.toSeconds(pageTimeoutNanos) + " seconds";
+            else if (docTimeoutNanos > 0 && now - task.start > docTimeoutNanos)
+                task.timedOut = "the document took more than " +
+                        TimeUnit.NANOSECONDS.toSeconds(docTimeoutNanos) + " seconds";
+            else
+                continue;
+
+            System.out.println("Timeout: " + task.timedOut + " in " + task.prefix + ", giving up on it");
+            for (BiConsumer<Thread, Task> listener : listeners) {
+                try {
+                    listener.accept(entry.getKey(), task);
+                } catch (RuntimeException e) {
+                    System.out.println("Failed to handle the timeout of " + task.prefix + ": " + e);
+                }
+            }
+        }
+    }
+}
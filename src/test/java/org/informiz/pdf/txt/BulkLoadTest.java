@@ -0,0 +1,66 @@
+package org.informiz.pdf.txt;
+
+import org.junit.jupiter.api.Test;
+import tools.jackson.databind.ObjectMapper;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BulkLoadTest {
+
+    private static final ObjectMapper MAPPER = new JsonMapper();
+
+    // Records the requests, with pages pointing to pages_old; requests to endpoints with the failing suffix throw
+    private static BulkLoad.Requests fakeElasticSearch(List<String> sent, String failingSuffix) {
+        return (method, endpoint, body, parameters) -> {
+            sent.add(method + " " + endpoint);
+            if (failingSuffix != null && endpoint.endsWith(failingSuffix))
+                throw new IOException("Request failed");
+            if (endpoint.equals("/_alias/pages"))
+                return MAPPER.readTree("{ \"pages_old\": { \"aliases\": { \"pages\": {} } } }");
+            if (endpoint.startsWith("/pages_old/_settings"))
+                return MAPPER.readTree(
+                        "{ \"pages_old\": { \"settings\": { \"index\": { \"number_of_replicas\": \"1\" } } } }");
+            return MAPPER.readTree("{}");
+        };
+    }
+
+    @Test
+    void movesAliasWhenAllDocumentsWereIndexed() throws IOException {
+        List<String> sent = new ArrayList<>();
+        BulkLoad load = BulkLoad.start("pages", "{ \"mappings\": {} }", fakeElasticSearch(sent, null));
+        load.complete(0, false, false);
+
+        assertTrue(sent.contains("POST /_aliases"));
+        assertTrue(sent.contains("DELETE /pages_old"));
+        assertFalse(sent.contains("DELETE /" + load.index()));
+    }
+
+    @Test
+    void keepsAliasWhenDocumentsFailed() throws IOException {
+        List<String> sent = new ArrayList<>();
+        BulkLoad load = BulkLoad.start("pages", "{ \"mappings\": {} }", fakeElasticSearch(sent, null));
+
+        assertThrows(IllegalStateException.class, () -> load.complete(2, false, false));
+        assertFalse(sent.contains("POST /_aliases"));
+        assertFalse(sent.contains("DELETE /pages_old"));
+        assertEquals("DELETE /" + load.index(), sent.getLast());
+    }
+
+    @Test
+    void abortsWhenFinishingFails() throws IOException {
+        List<String> sent = new ArrayList<>();
+        BulkLoad load = BulkLoad.start("pages", "{ \"mappings\": {} }", fakeElasticSearch(sent, "/_refresh"));
+
+        assertThrows(IOException.class, () -> load.finish(false, false));
+        assertFalse(sent.contains("POST /_aliases"));
+        assertEquals("DELETE /" + load.index(), sent.getLast());
+    }
+}
@@ -0,0 +1,145 @@
+package org.informiz.pdf.txt;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.ObjectMapper;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BulkPayloadWriterTest {
+
+    private static final ObjectMapper MAPPER = new JsonMapper();
+
+    @Test
+    void keepsTextVerbatim() {
+        String text = "From: \"Assistant\" <a@b.c>\n\tC:\\path\\to\\file \u0000\u000c end\r\nלילה טוב";
+        String[] lines = new String(new BulkPayloadWriter("pages").writePage("x.pdf_page1.pdf.txt", "x", 1, text)
+                .toByteArray(), StandardCharsets.UTF_8).split("\n");
+
+        assertEquals(2, lines.length);
+        assertEquals("x.pdf_page1.pdf.txt", MAPPER.readTree(lines[0]).path("index").path("_id").asString());
+        JsonNode source = MAPPER.readTree(lines[1]);
+        assertEquals(1, source.path("page").asInt());
+        assertEquals(text, source.path("txt").asString());
+    }
+
+    @Test
+    void replacesMalformedInput(@TempDir Path tmp) throws IOException {
+        Path page = tmp.resolve("x.pdf_page1.pdf.txt");
+        Files.write(page, new byte[] {'a', '"', (byte) 0xff, (byte) 0xc3, '\\', 'b', '\n'});
+
+        String[] lines = new String(new BulkPayloadWriter("pages").writePage(page.toFile().getName(), "x", 1, page)
+                .toByteArray(), StandardCharsets.UTF_8).split("\n");
+
+        assertEquals(2, lines.length);
+        assertEquals("a\"\uFFFD\uFFFD\\b", MAPPER.readTree(lines[1]).path("txt").asString());
+    }
+
+    @Test
+    void copiesRecordsAsIs() {
+        byte[] record = "{\"origFile\":\"x\",\"page\":1,\"txt\":\"caf\u00e9 \\\"quoted\\\"\"}".getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new BulkPayloadWriter("records").writeRecord("x.pdf_page1.pdf.txt.record", record, 0,
+                record.length).toByteArray();
+        String[] lines = new String(payload, StandardCharsets.UTF_8).split("\n");
+
+        assertEquals(2, lines.length);
+        assertEquals("records", MAPPER.readTree(lines[0]).path("index").path("_index").asString());
+        assertEquals(new String(record, StandardCharsets.UTF_8), lines[1]);
+    }
+
+    @Test
+    void sendsRecordsInSmallChunks(@TempDir Path tmp) throws IOException {
+        String first = "{\"origFile\":\"dir_a\",\"page\":1,\"txt\":\"split across chunks\"}";
+        String second = "{\"origFile\":\"dir_b\",\"page\":\"2\",\"txt\":\"" + "longer than the buffer ".repeat(5) +
+                "\"}";
+        String third = "{\"txt\":\"no origFile and page\"}";
+        Path recordFile = tmp.resolve("records.ndjson");
+        // CRLF line-breaks, an empty line and no line-break at the end
+        Files.writeString(recordFile, first + "\r\n" + second + "\r\n\r\n" + third);
+
+        BulkPayloadWriter payload = new BulkPayloadWriter("records", 16);
+        List<String> ids = new ArrayList<>();
+        List<String> records = new ArrayList<>();
+        int sent = payload.sendRecords(recordFile, id -> {
+            ids.add(id);
+            records.add(new String(payload.toByteArray(), StandardCharsets.UTF_8).split("\n")[1]);
+            payload.reset();
+        });
+
+        assertEquals(3, sent);
+        assertEquals(List.of("dir_a.pdf_page1.pdf.txt.record", "dir_b.pdf_page2.pdf.txt.record",
+                "records.ndjson_line4"), ids);
+        assertEquals(List.of(first, second, third), records);
+    }
+
+    /**
+     * Compares the bytes allocated per page by the payload writer with the previous string-concatenation payload,
+     * over pages taken from the converted text under src/test/resources/converted
+     */
+    @Test
+    @Disabled
+    void allocationPerPage() throws IOException {
+        List<String> pages = loadPages();
+        BulkPayloadWriter payload = new BulkPayloadWriter("pages");
+
+        for (int round = 0; round < 5; round++) { // warm-up, the last round is measured
+            long start = allocatedBytes();
+            for (String page : pages)
+                legacyCommand("pages", "x.pdf_page1.pdf.txt", "x", 1, page).getBytes(StandardCharsets.UTF_8);
+            long legacy = allocatedBytes() - start;
+
+            start = allocatedBytes();
+            for (String page : pages)
+                payload.writePage("x.pdf_page1.pdf.txt", "x", 1, page).reset();
+            long streamed = allocatedBytes() - start;
+
+            System.out.printf("%d pages: %d bytes/page (string concatenation), %d bytes/page (payload writer)%n",
+                    pages.size(), legacy / pages.size(), streamed / pages.size());
+        }
+    }
+
+    private List<String> loadPages() throws IOException {
+        File converted = new File(Objects.requireNonNull(getClass().getClassLoader().getResource("converted/")).getFile());
+        List<String> pages = new ArrayList<>();
+        for (File file : Objects.requireNonNull(converted.listFiles())) {
+            List<String> lines = Files.readAllLines(file.toPath());
+            for (int i = 0; i < lines.size(); i += 50)
+                pages.add(String.join("\n", lines.subList(i, Math.min(i + 50, lines.size()))));
+        }
+        return pages;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    // The payload as it was built before the payload writer
+    private static String legacyCommand(String index, String fileName, String origFileName, int pageNum, String text) {
+        String txt = text.lines()
+                .reduce((s, s2) -> s + "    " + s2)
+                .orElseGet(System::lineSeparator)
+                .replace('"', '\'');
+        return new StringBuffer().append("{ \"index\" : { \"_index\" : \"")
+                .append(index).append("\", \"_id\" : \"")
+                .append(fileName)
+                .append("\" } }")
+                .append(String.format("%n"))
+                .append("{ \"origFile\" : \"").append(origFileName)
+                .append("\",  \"page\" : \"").append(pageNum)
+                .append("\", \"txt\" : \"").append(txt).append("\"}")
+                .append(String.format("%n")).toString();
+    }
+}
@@ -0,0 +1,62 @@
+package org.informiz.pdf.txt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DocumentAssemblerTest {
+
+    @Test
+    void assemblesPagesInNumericOrder(@TempDir Path tmp) throws IOException {
+        File pagesFolder = tmp.resolve("text_pages").toFile();
+        PageSink pages = PageSink.toFolder(pagesFolder);
+        pagesFolder.mkdir();
+        for (int page : List.of(10, 2, 1, 9))
+            pages.accept(new TextPage("dir_0001.pdf", page, "Flight log, page " + page));
+        pages.accept(new TextPage("dir_0002.pdf", 1, "Another document"));
+
+        File outputFolder = DocumentAssembler.forPagesFolder(pagesFolder);
+        assertEquals(2, new DocumentAssembler(false, 2).assembleFolder(pagesFolder, outputFolder));
+
+        assertEquals(List.of("Flight log, page 1", "Flight log, page 2", "Flight log, page 9", "Flight log, page 10"),
+                Files.readAllLines(outputFolder.toPath().resolve("dir_0001.pdf.txt")));
+        assertEquals(List.of("Another document"),
+                Files.readAllLines(outputFolder.toPath().resolve("dir_0002.pdf.txt")));
+    }
+
+    @Test
+    void marksPageOffsets(@TempDir Path tmp) throws IOException {
+        File storeFolder = tmp.resolve("text_pages.store").toFile();
+        try (PageStore.Writer writer = PageStore.openForWriting(storeFolder, false)) {
+            for (int page = 1; page <= 12; page++)
+                writer.accept(new TextPage("dir_0001.pdf", page, "Page " + page + " ".repeat(page * 10)));
+        }
+
+        File outputFolder = tmp.resolve("docs").toFile();
+        try (PageStore store = PageStore.open(storeFolder)) {
+            assertEquals(1, new DocumentAssembler(true, 1).assembleStore(store, outputFolder));
+        }
+
+        byte[] document = Files.readAllBytes(outputFolder.toPath().resolve("dir_0001.pdf.txt"));
+        Matcher markers = Pattern.compile("--- page (\\d+), offset (\\d+) ---")
+                .matcher(new String(document, StandardCharsets.UTF_8));
+        for (int page = 1; page <= 12; page++) {
+            assertTrue(markers.find());
+            assertEquals(page, Integer.parseInt(markers.group(1)));
+            String text = "Page " + page + " ";
+            assertEquals(text, new String(document, Integer.parseInt(markers.group(2)), text.length(),
+                    StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.informiz.pdf.txt;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ExtractionCacheTest {
+
+    @Test
+    void evictsLeastRecentlyUsedPages() throws IOException {
+        File folder = Files.createTempDirectory("extraction_cache").toFile();
+        String page = "x".repeat(1000);
+        try (ExtractionCache cache = ExtractionCache.open(folder, 2500)) {
+            cache.put("aa01", page);
+            cache.put("bb02", page);
+            assertEquals(page, cache.get("aa01"));
+
+            // Over the size, 'bb02' was used last before 'aa01'
+            cache.put("cc03", page);
+            assertNull(cache.get("bb02"));
+            assertEquals(page, cache.get("cc03"));
+            assertEquals(2, cache.getHits());
+            assertEquals(1, cache.getMisses());
+        }
+
+        // The entries are found again when the cache is reopened
+        try (ExtractionCache cache = ExtractionCache.open(folder, 2500)) {
+            assertEquals(page, cache.get("aa01"));
+            assertNull(cache.get("bb02"));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.informiz.pdf.txt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openpdf.text.Document;
+import org.openpdf.text.Paragraph;
+import org.openpdf.text.pdf.BaseFont;
+import org.openpdf.text.pdf.PdfContentByte;
+import org.openpdf.text.pdf.PdfReader;
+import org.openpdf.text.pdf.PdfTemplate;
+import org.openpdf.text.pdf.PdfWriter;
+import org.openpdf.text.pdf.parser.PdfTextExtractor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FastTextExtractorTest {
+
+    @Test
+    void extractsSimplePagesFromTheirTextOperators(@TempDir Path folder) throws IOException {
+        File pdfFile = folder.resolve("simple.pdf").toFile();
+        Document document = new Document();
+        try (OutputStream out = new FileOutputStream(pdfFile)) {
+            PdfWriter.getInstance(document, out);
+            document.open();
+            document.add(new Paragraph("The first line of the page"));
+            document.add(new Paragraph("and the second one"));
+            document.close();
+        }
+
+        try (PdfReader reader = new PdfReader(pdfFile.getPath())) {
+            FastTextExtractor extractor = new FastTextExtractor(reader);
+            String text = extractor.getTextFromPage(1);
+            assertEquals(1, extractor.getFastPages());
+            assertEquals(List.of("The first line of the page", "and the second one"), text.lines().toList());
+            assertEquals(words(new PdfTextExtractor(reader).getTextFromPage(1)), words(text));
+        }
+    }
+
+    @Test
+    void passesComplexPagesToTheFullExtractor(@TempDir Path folder) throws IOException {
+        File pdfFile = folder.resolve("form.pdf").toFile();
+        Document document = new Document();
+        try (OutputStream out = new FileOutputStream(pdfFile)) {
+            PdfWriter writer = PdfWriter.getInstance(document, out);
+            document.open();
+            // Text in a form XObject
+            PdfContentByte content = writer.getDirectContent();
+            PdfTemplate template = content.createTemplate(300, 100);
+            template.beginText();
+            template.setFontAndSize(BaseFont.createFont(), 12);
+            template.showTextAligned(PdfContentByte.ALIGN_LEFT, "Text in a form", 10, 50, 0);
+            template.endText();
+            content.addTemplate(template, 100, 500);
+            document.close();
+        }
+
+        try (PdfReader reader = new PdfReader(pdfFile.getPath())) {
+            FastTextExtractor extractor = new FastTextExtractor(reader);
+            String text = extractor.getTextFromPage(1);
+            assertEquals(1, extractor.getFullPages());
+            assertTrue(text.contains("Text in a form"));
+        }
+    }
+
+    private static List<String> words(String text) {
+        return List.of(text.strip().split("\\s+"));
+    }
+}
@@ -0,0 +1,118 @@
+package org.informiz.pdf.txt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.informiz.pdf.txt.PdfFixtures.writePdf;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IngestDaemonTest {
+
+    @Test
+    void ingestsExistingAndNewDocuments(@TempDir Path folder) throws Exception {
+        File root = folder.resolve("docs").toFile();
+        assertTrue(root.mkdir());
+        writePdf(new File(root, "old.pdf"), 2);
+
+        Set<String> pages = ConcurrentHashMap.newKeySet();
+        IngestDaemon.Config config = new IngestDaemon.Config(300, 1024 * 1024, 10, 2, true);
+        try (IngestDaemon daemon = new IngestDaemon(List.of(root), config, null, page -> pages.add(page.fileName()))) {
+            Thread thread = new Thread(() -> {
+                try {
+                    daemon.run();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+
+            waitFor(() -> pages.contains("old.pdf_page2.pdf.txt"));
+            File subFolder = new File(root, "VOL001");
+            assertTrue(subFolder.mkdir());
+            writePdf(new File(subFolder, "new.pdf"), 1);
+            waitFor(() -> pages.contains("VOL001_new.pdf_page1.pdf.txt"));
+
+            daemon.stop();
+            thread.join(TimeUnit.SECONDS.toMillis(20));
+            assertEquals(2, daemon.getDocuments());
+            assertEquals(3, daemon.getPages());
+        }
+    }
+
+    @Test
+    void capsTheReplacedWorkers(@TempDir Path folder) throws Exception {
+        File root = folder.resolve("docs").toFile();
+        assertTrue(root.mkdir());
+        for (int doc = 1; doc <= 3; doc++)
+            writePdf(new File(root, "stuck" + doc + ".pdf"), 2);
+
+        // The first page of each document blocks its worker past the document timeout, until unblocked
+        CountDownLatch unblock = new CountDownLatch(1);
+        Set<Thread> stuckWorkers = ConcurrentHashMap.newKeySet();
+        Set<String> pages = ConcurrentHashMap.newKeySet();
+        IngestDaemon.Config config = new IngestDaemon.Config(300, 1024 * 1024, 10, 1, true);
+        try (Watchdog watchdog = Watchdog.start(0, 1);
+             IngestDaemon daemon = new IngestDaemon(List.of(root), config, null, page -> {
+                 pages.add(page.fileName());
+                 if (page.pageNum() == 1) {
+                     stuckWorkers.add(Thread.currentThread());
+                     try {
+                         unblock.await(30, TimeUnit.SECONDS);
+                     } catch (InterruptedException e) {
+                         Thread.currentThread().interrupt();
+                     }
+                 }
+             })) {
+            Thread thread = new Thread(() -> {
+                try {
+                    daemon.run();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+
+            // The first stuck worker is replaced, the second one isn't: the third document waits
+            waitFor(() -> daemon.getFailed() == 2);
+            Thread.sleep(2000);
+            assertEquals(2, stuckWorkers.size());
+            assertTrue(stuckWorkers.stream().allMatch(Thread::isDaemon));
+            assertEquals(2, pages.size());
+
+            // A worker is started again once the stuck ones are done
+            unblock.countDown();
+            waitFor(() -> pages.size() == 4);
+            assertEquals(2, daemon.getFailed());
+            assertEquals(1, daemon.getDocuments());
+
+            daemon.stop();
+            thread.join(TimeUnit.SECONDS.toMillis(20));
+        }
+    }
+
+    @Test
+    void prefixIncludesSubFolders() {
+        Path root = Path.of("/data/docs");
+        assertEquals("VOL001_EFTA0001.pdf", IngestDaemon.prefixOf(root, root.resolve("VOL001/EFTA0001.pdf")));
+        assertEquals("a.pdf", IngestDaemon.prefixOf(root, root.resolve("a.pdf")));
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (! condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for the daemon");
+            Thread.sleep(50);
+        }
+    }
+}
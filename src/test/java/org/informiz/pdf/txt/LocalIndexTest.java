@@ -0,0 +1,92 @@
+package org.informiz.pdf.txt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LocalIndexTest {
+
+    @Test
+    void searchesPhrasesAndFilters(@TempDir Path tmp) throws IOException {
+        File indexFolder = tmp.resolve("text_pages.index").toFile();
+        try (LocalIndex.Writer writer = LocalIndex.openForWriting(indexFolder)) {
+            writer.accept(new TextPage("dir_0001.pdf", 1, "Flight from Palm Beach to New York"));
+            writer.accept(new TextPage("dir_0001.pdf", 2, "Beach house in Palm Springs, flight delayed"));
+            writer.accept(new TextPage("dir_0002.pdf", 1, "Another flight. Palm Beach, Palm Beach!"));
+        }
+
+        try (LocalIndex index = LocalIndex.open(indexFolder)) {
+            assertEquals(3, index.search("flight palm beach", 10).size());
+            assertEquals(List.of("dir_0002", "dir_0001"),
+                    index.search("\"palm beach\"", 10).stream().map(LocalIndex.Hit::origFile).toList());
+            assertEquals(List.of(2), index.search("flight origFile:dir_0001 page:2-5", 10).stream()
+                    .map(LocalIndex.Hit::pageNum).toList());
+            assertTrue(index.search("flight hotel", 10).isEmpty());
+        }
+
+        // Indexing a document again replaces its pages from the earlier build
+        try (LocalIndex.Writer writer = LocalIndex.openForWriting(indexFolder)) {
+            writer.accept(new TextPage("dir_0002.pdf", 1, "Hotel bill"));
+        }
+
+        try (LocalIndex index = LocalIndex.open(indexFolder)) {
+            assertEquals(List.of("dir_0001.pdf_page1.pdf.txt"),
+                    index.search("\"palm beach\"", 10).stream().map(LocalIndex.Hit::fileName).toList());
+            assertEquals(1, index.search("hotel", 10).size());
+        }
+    }
+
+    @Test
+    void reindexesAllPagesOfChangedDocuments(@TempDir Path tmp) throws IOException {
+        File pagesFolder = tmp.resolve("text_pages").toFile();
+        pagesFolder.mkdir();
+        PageSink pages = PageSink.toFolder(pagesFolder);
+        pages.accept(new TextPage("dir_0001.pdf", 1, "Flight from Palm Beach"));
+        pages.accept(new TextPage("dir_0001.pdf", 2, "Hotel bill"));
+        File indexFolder = LocalIndex.forPagesFolder(pagesFolder);
+        assertEquals(2, LocalIndex.buildFromFolder(pagesFolder, indexFolder, false));
+
+        // Only the second page changed, the first one is still searchable
+        Path secondPage = pagesFolder.toPath().resolve("dir_0001.pdf_page2.pdf.txt");
+        Files.writeString(secondPage, "Restaurant bill");
+        Files.setLastModifiedTime(secondPage, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+        assertEquals(2, LocalIndex.buildFromFolder(pagesFolder, indexFolder, false));
+
+        try (LocalIndex index = LocalIndex.open(indexFolder)) {
+            assertEquals(1, index.search("palm beach", 10).size());
+            assertEquals(1, index.search("restaurant", 10).size());
+            assertTrue(index.search("hotel", 10).isEmpty());
+        }
+    }
+
+    @Test
+    void ignoresIncompleteBuilds(@TempDir Path tmp) throws IOException {
+        File indexFolder = tmp.resolve("text_pages.index").toFile();
+        try (LocalIndex.Writer writer = LocalIndex.openForWriting(indexFolder)) {
+            writer.accept(new TextPage("dir_0001.pdf", 1, "Flight from Palm Beach"));
+        }
+        // A build that crashed after writing a segment, before committing it
+        Path orphan = indexFolder.toPath().resolve("segment-000007.docs");
+        Files.writeString(orphan, "partial");
+        try (LocalIndex index = LocalIndex.open(indexFolder)) {
+            assertEquals(1, index.search("flight", 10).size());
+        }
+
+        try (LocalIndex.Writer writer = LocalIndex.openForWriting(indexFolder)) {
+            writer.accept(new TextPage("dir_0002.pdf", 1, "Another flight"));
+        }
+        assertTrue(Files.notExists(orphan));
+        try (LocalIndex index = LocalIndex.open(indexFolder)) {
+            assertEquals(2, index.search("flight", 10).size());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.informiz.pdf.txt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.informiz.pdf.txt.PageDeduplicator.Kind.EXACT;
+import static org.informiz.pdf.txt.PageDeduplicator.Kind.NEAR;
+import static org.informiz.pdf.txt.PageDeduplicator.Kind.UNIQUE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PageDeduplicatorTest {
+
+    private static final String EMAIL = """
+            From: Jeffrey Smith
+            Sent: Tuesday, October 20, 2020 1:12 PM
+            To: Ghislaine Jones
+            Subject: Re: flight schedule
+            Please confirm the flight from Palm Beach to Teterboro on Friday morning, the car will wait at the
+            terminal. Let me know if the guests need rooms at the house over the weekend, and who is coming along.
+            """;
+
+    @Test
+    void findsExactAndNearDuplicates(@TempDir Path srcFolder) throws IOException {
+        Files.createDirectories(srcFolder.resolve("VOL001"));
+        Files.createDirectories(srcFolder.resolve("VOL002"));
+        PageDeduplicator dedup = new PageDeduplicator(PageDeduplicator.Mode.SKIP).withFolders(srcFolder.toFile());
+        assertEquals(UNIQUE, dedup.check("a_page1", "VOL001_a.pdf", EMAIL).kind());
+
+        PageDeduplicator.Result exact = dedup.check("b_page1", "VOL001_b_copy.pdf",
+                EMAIL.toUpperCase().replace("\n", " "));
+        assertEquals(EXACT, exact.kind());
+        assertEquals("a_page1", exact.canonicalId());
+
+        PageDeduplicator.Result near = dedup.check("c_page7", "VOL002_c.pdf", EMAIL.replace("Friday", "Saturday"));
+        assertEquals(NEAR, near.kind());
+        assertEquals("a_page1", near.canonicalId());
+
+        assertEquals(UNIQUE, dedup.check("d_page1", "VOL002_d.pdf",
+                "Invoice for the repairs at the ranch, paid by wire transfer in March, see the attached receipts " +
+                "and the statement from the bank for the details of the payment").kind());
+
+        // Short pages only differing in their numbers, e.g. Bates-stamped blank pages
+        assertEquals(UNIQUE, dedup.check("e_page1", "VOL002_e.pdf", "EFTA00001234").kind());
+        assertEquals(NEAR, dedup.check("e_page2", "VOL002_e.pdf", "EFTA00001235").kind());
+
+        String report = dedup.report();
+        assertTrue(report.contains("VOL001: 2 pages, 1 unique, 1 exact and 0 near duplicates (50.0% duplicates)"), report);
+        assertTrue(report.contains("total: 6 pages, 3 unique, 1 exact and 2 near duplicates"), report);
+    }
+
+    @Test
+    void releasesDuplicatesOnceTheirCanonicalPageIsIndexed() {
+        PageDeduplicator dedup = new PageDeduplicator(PageDeduplicator.Mode.POINTER).trackAcknowledgements();
+        dedup.check("a_page1", "a.pdf", EMAIL);
+        PageDeduplicator.Result duplicate = dedup.check("b_page1", "b.pdf", EMAIL);
+        assertEquals("a_page1", duplicate.canonicalId());
+        assertTrue(dedup.skipped("b_page1", duplicate).isEmpty());
+        dedup.pointerSent("c_page1", duplicate);
+
+        // The pointer is acknowledged before its canonical page
+        assertTrue(dedup.indexed(List.of("c_page1")).isEmpty());
+        assertEquals(List.of("a_page1", "b_page1", "c_page1"), dedup.indexed(List.of("a_page1")));
+
+        assertEquals(List.of("d_page1"), dedup.skipped("d_page1", duplicate));
+        dedup.pointerSent("e_page1", duplicate);
+        assertEquals(List.of("e_page1"), dedup.indexed(List.of("e_page1")));
+    }
+
+    @Test
+    void findsDuplicatesOfManyCanonicalPages() {
+        PageDeduplicator dedup = new PageDeduplicator(PageDeduplicator.Mode.SKIP);
+        for (int i = 0; i < 5000; i++)
+            assertEquals(UNIQUE, dedup.check("a_page" + i, "a.pdf", "Exhibit " + letters(i) + " of the deposition")
+                    .kind());
+        for (int i = 0; i < 5000; i++)
+            assertEquals("a_page" + i,
+                    dedup.check("b_page" + i, "b.pdf", "exhibit " + letters(i) + " of the Deposition.").canonicalId());
+    }
+
+    // A name without digits, since short pages that only differ in their numbers are near duplicates
+    private static String letters(int i) {
+        StringBuilder letters = new StringBuilder();
+        do {
+            letters.append((char) ('a' + i % 26));
+            i /= 26;
+        } while (i > 0);
+        return letters.toString();
+    }
+}
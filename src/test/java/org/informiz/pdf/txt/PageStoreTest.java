@@ -0,0 +1,123 @@
+package org.informiz.pdf.txt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PageStoreTest {
+
+    @Test
+    void storesAndExportsPages(@TempDir Path tmp) throws IOException {
+        File storeFolder = tmp.resolve("text_pages.store").toFile();
+        String longText = "Flight log, page two\n".repeat(100);
+        try (PageStore.Writer writer = PageStore.openForWriting(storeFolder, true)) {
+            writer.accept(new TextPage("dir_0001.pdf", 1, "short text"));
+            writer.accept(new TextPage("dir_0001.pdf", 2, longText));
+        }
+        // Processing a document again appends the pages to a new segment
+        try (PageStore.Writer writer = PageStore.openForWriting(storeFolder, false)) {
+            writer.accept(new TextPage("dir_0001.pdf", 1, "updated text"));
+        }
+
+        try (PageStore store = PageStore.open(storeFolder)) {
+            assertEquals(2, store.size());
+            assertEquals("updated text", store.get("dir_0001.pdf", 1));
+            assertEquals(longText, store.get("dir_0001.pdf", 2));
+            assertNull(store.get("dir_0001.pdf", 3));
+
+            File exportFolder = tmp.resolve("text_pages").toFile();
+            exportFolder.mkdir();
+            List<String> pages = new ArrayList<>();
+            store.forEach(page -> pages.add(page.fileName()));
+            store.forEach(PageSink.toFolder(exportFolder)::accept);
+
+            assertEquals(List.of("dir_0001.pdf_page2.pdf.txt", "dir_0001.pdf_page1.pdf.txt"), pages);
+            assertEquals(longText + System.lineSeparator(),
+                    Files.readString(new File(exportFolder, "dir_0001.pdf_page2.pdf.txt").toPath()));
+        }
+    }
+
+    @Test
+    void ignoresTruncatedSegments(@TempDir Path tmp) throws IOException {
+        File storeFolder = tmp.resolve("text_pages.store").toFile();
+        try (PageStore.Writer writer = PageStore.openForWriting(storeFolder, false)) {
+            writer.accept(new TextPage("dir_0001.pdf", 1, "first page"));
+            writer.accept(new TextPage("dir_0001.pdf", 2, "second page"));
+        }
+        // A crash while the second page was written
+        Path segment = storeFolder.toPath().resolve("segment-000000.pages");
+        long tornSize = Files.size(segment) - 3;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(tornSize);
+        }
+
+        try (PageStore store = PageStore.open(storeFolder)) {
+            assertEquals(1, store.size());
+            assertNull(store.get("dir_0001.pdf", 2));
+            List<String> pages = new ArrayList<>();
+            store.forEach(page -> pages.add(page.text()));
+            assertEquals(List.of("first page"), pages);
+        }
+
+        // The torn page is removed before writing, and a writer without pages doesn't add a segment
+        PageStore.openForWriting(storeFolder, false).close();
+        assertTrue(Files.size(segment) < tornSize);
+        try (Stream<Path> files = Files.list(storeFolder.toPath())) {
+            assertEquals(List.of("segment-000000.idx", "segment-000000.pages"),
+                    files.map(path -> path.getFileName().toString()).sorted().toList());
+        }
+        try (PageStore.Writer writer = PageStore.openForWriting(storeFolder, false)) {
+            writer.accept(new TextPage("dir_0001.pdf", 2, "second page"));
+        }
+        try (PageStore store = PageStore.open(storeFolder)) {
+            assertEquals(2, store.size());
+            assertEquals("second page", store.get("dir_0001.pdf", 2));
+        }
+    }
+
+    @Test
+    void indexesPagesMissingFromTheIndex(@TempDir Path tmp) throws IOException {
+        File storeFolder = tmp.resolve("text_pages.store").toFile();
+        try (PageStore.Writer writer = PageStore.openForWriting(storeFolder, true)) {
+            writer.accept(new TextPage("dir_0001.pdf", 1, "first page"));
+            writer.accept(new TextPage("dir_0001.pdf", 2, "second page"));
+            writer.accept(new TextPage("dir_0002.pdf", 1, "Flight log\n".repeat(100)));
+        }
+        // A crash before the index entries of the last two pages were flushed
+        Path index = storeFolder.toPath().resolve("segment-000000.idx");
+        long firstEntry = 2 + "dir_0001.pdf".length() + 4 + 4;
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.WRITE)) {
+            channel.truncate(firstEntry + 5);
+        }
+
+        try (PageStore store = PageStore.open(storeFolder)) {
+            assertEquals(3, store.size());
+            assertEquals("second page", store.get("dir_0001.pdf", 2));
+            assertEquals("Flight log\n".repeat(100), store.get("dir_0002.pdf", 1));
+            List<String> pages = new ArrayList<>();
+            store.forEach(page -> pages.add(page.fileName()));
+            assertEquals(List.of("dir_0001.pdf_page1.pdf.txt", "dir_0001.pdf_page2.pdf.txt",
+                    "dir_0002.pdf_page1.pdf.txt"), pages);
+        }
+
+        // Also without any index
+        Files.delete(index);
+        try (PageStore store = PageStore.open(storeFolder)) {
+            assertEquals(3, store.size());
+            assertEquals("first page", store.get("dir_0001.pdf", 1));
+        }
+    }
+}
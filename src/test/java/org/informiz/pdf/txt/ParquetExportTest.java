@@ -0,0 +1,137 @@
+package org.informiz.pdf.txt;
+
+import org.apache.parquet.column.page.PageReadStore;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.convert.GroupRecordConverter;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.io.ColumnIOFactory;
+import org.apache.parquet.io.LocalInputFile;
+import org.apache.parquet.io.MessageColumnIO;
+import org.apache.parquet.io.RecordReader;
+import org.apache.parquet.schema.LogicalTypeAnnotation;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.PrimitiveType;
+import org.apache.parquet.schema.Type;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParquetExportTest {
+
+    @Test
+    void exportsPagesFolder(@TempDir Path tmp) throws IOException {
+        File pagesFolder = tmp.resolve("text_pages").toFile();
+        pagesFolder.mkdir();
+        Files.writeString(pagesFolder.toPath().resolve("dir_0001.pdf_page1.pdf.txt"), "Flight log, page one");
+        Files.writeString(pagesFolder.toPath().resolve("dir_0001.pdf_page2.pdf.txt"), "No text found in page 2");
+        Files.writeString(pagesFolder.toPath().resolve("notes.txt"), "not a page");
+
+        File outputFolder = ParquetExport.forPagesFolder(pagesFolder);
+        // Left by an interrupted export
+        outputFolder.mkdir();
+        Files.writeString(outputFolder.toPath().resolve("part-00003.parquet.tmp"), "PAR1");
+        try (ParquetExport.Writer writer = ParquetExport.openForWriting(outputFolder, 1024 * 1024, 1024 * 1024)) {
+            assertEquals(2, ParquetExport.exportFolder(pagesFolder, writer));
+        }
+
+        assertEquals(tmp.resolve("text_pages.parquet").toFile(), outputFolder);
+        assertEquals(List.of("part-00000.parquet"), Arrays.asList(outputFolder.list()));
+        byte[] file = Files.readAllBytes(outputFolder.toPath().resolve("part-00000.parquet"));
+        assertEquals("PAR1", new String(file, 0, 4, StandardCharsets.US_ASCII));
+        assertEquals("PAR1", new String(file, file.length - 4, 4, StandardCharsets.US_ASCII));
+        int footerLength = ByteBuffer.wrap(file, file.length - 8, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        String footer = new String(file, file.length - 8 - footerLength, footerLength, StandardCharsets.UTF_8);
+        for (String column : List.of("origFile", "page", "text", "bytes", "status"))
+            assertTrue(footer.contains(column), column);
+    }
+
+    @Test
+    void rollsOverToNewFiles(@TempDir Path tmp) throws IOException {
+        File outputFolder = tmp.resolve("export").toFile();
+        String text = "Flight log\n".repeat(1000);
+        try (ParquetExport.Writer writer = ParquetExport.openForWriting(outputFolder, 10_000, 1)) {
+            for (int page = 1; page <= 5; page++)
+                writer.accept(new TextPage("dir_0001.pdf", page, text));
+            writer.close();
+            assertEquals(5, writer.getRows());
+            assertEquals(5, writer.getFiles()); // a file per row group
+        }
+        assertEquals(5, outputFolder.list().length);
+    }
+
+    @Test
+    void readsBackRowsAndValues(@TempDir Path tmp) throws IOException {
+        File outputFolder = tmp.resolve("export").toFile();
+        List<TextPage> pages = new ArrayList<>();
+        for (int page = 1; page <= 40; page++)
+            pages.add(new TextPage("dir_0001.pdf", page, page % 10 == 0 ? "No text found in page " + page :
+                    "Flight log, page " + page + "\n" + "passengers ".repeat(page)));
+        // Small row groups, so the file has several of them
+        try (ParquetExport.Writer writer = ParquetExport.openForWriting(outputFolder, 2_000, 1024 * 1024)) {
+            pages.forEach(writer::accept);
+        }
+
+        // Read with parquet-java, the reader used by Spark
+        List<Group> rows = new ArrayList<>();
+        int rowGroups = 0;
+        try (ParquetFileReader reader = ParquetFileReader.open(
+                new LocalInputFile(outputFolder.toPath().resolve("part-00000.parquet")))) {
+            MessageType schema = reader.getFooter().getFileMetaData().getSchema();
+            assertEquals(List.of("origFile", "page", "text", "bytes", "status"),
+                    schema.getFields().stream().map(Type::getName).toList());
+            assertEquals(PrimitiveType.PrimitiveTypeName.INT32,
+                    schema.getType("page").asPrimitiveType().getPrimitiveTypeName());
+            assertEquals(LogicalTypeAnnotation.stringType(), schema.getType("text").getLogicalTypeAnnotation());
+            assertEquals(40, reader.getRecordCount());
+
+            MessageColumnIO columnIO = new ColumnIOFactory().getColumnIO(schema);
+            PageReadStore rowGroup;
+            while ((rowGroup = reader.readNextRowGroup()) != null) {
+                rowGroups++;
+                RecordReader<Group> records = columnIO.getRecordReader(rowGroup, new GroupRecordConverter(schema));
+                for (long row = 0; row < rowGroup.getRowCount(); row++)
+                    rows.add(records.read());
+            }
+        }
+        assertTrue(rowGroups > 1, "row groups: " + rowGroups);
+        assertEquals(40, rows.size());
+
+        assertEquals(Collections.nCopies(40, "dir_0001"), values(rows, row -> row.getString("origFile", 0)));
+        assertEquals(pages.stream().map(TextPage::pageNum).toList(), values(rows, row -> row.getInteger("page", 0)));
+        assertEquals(pages.stream().map(TextPage::text).toList(), values(rows, row -> row.getString("text", 0)));
+        assertEquals(pages.stream().map(page -> page.text().getBytes(StandardCharsets.UTF_8).length).toList(),
+                values(rows, row -> row.getInteger("bytes", 0)));
+        assertEquals("empty", rows.get(9).getString("status", 0));
+        assertEquals("ok", rows.get(10).getString("status", 0));
+    }
+
+    @Test
+    void detectsPageStatus() {
+        assertEquals("ok", ParquetExport.status(new TextPage("dir_0001.pdf", 3, "Flight log")));
+        assertEquals("empty", ParquetExport.status(new TextPage("dir_0001.pdf", 3, " ")));
+        assertEquals("empty", ParquetExport.status(new TextPage("dir_0001.pdf", 3, "Empty content found in page 3")));
+        assertEquals("skipped", ParquetExport.status(new TextPage("dir_0001.pdf", 3,
+                "Page 3 exceeds the memory budget, text not extracted")));
+        // Only the placeholder of the page itself
+        assertEquals("ok", ParquetExport.status(new TextPage("dir_0001.pdf", 4, "No text found in page 3")));
+    }
+
+    private static <T> List<T> values(List<Group> rows, Function<Group, T> column) {
+        return rows.stream().map(column).toList();
+    }
+}
@@ -0,0 +1,36 @@
+package org.informiz.pdf.txt;
+
+import org.openpdf.text.Document;
+import org.openpdf.text.Paragraph;
+import org.openpdf.text.pdf.PdfWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Creates PDF documents for the tests.
+ */
+final class PdfFixtures {
+
+    private PdfFixtures() {
+    }
+
+    /**
+     * Write a document with a line of text on each page, e.g. "Page 2 of doc1.pdf".
+     */
+    static void writePdf(File file, int numPages) throws IOException {
+        Document document = new Document();
+        try (OutputStream out = new FileOutputStream(file)) {
+            PdfWriter.getInstance(document, out);
+            document.open();
+            for (int page = 1; page <= numPages; page++) {
+                if (page > 1)
+                    document.newPage();
+                document.add(new Paragraph("Page " + page + " of " + file.getName()));
+            }
+            document.close();
+        }
+    }
+}
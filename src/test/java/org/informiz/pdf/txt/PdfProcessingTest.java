@@ -24,8 +24,20 @@ class PdfProcessingTest {
 
         File srcFolder = new File(Objects.requireNonNull(classLoader.getResource("docs/")).getFile());
 
-        Utils.processFilesInFolder(srcFolder, srcFolder.getName(), createTxtPagesFolder());
-        //Utils::concatPages
+        File txtFolder = createTxtPagesFolder();
+        Utils.processFilesInFolder(srcFolder, srcFolder.getName(), txtFolder);
+        new DocumentAssembler(true, Runtime.getRuntime().availableProcessors())
+                .assembleFolder(txtFolder, DocumentAssembler.forPagesFolder(txtFolder));
+    }
+
+    @Test
+    @Disabled
+    void compareEngines() throws IOException {
+        ClassLoader classLoader = getClass().getClassLoader();
+
+        File srcFolder = new File(Objects.requireNonNull(classLoader.getResource("docs/")).getFile());
+
+        System.out.println(FastTextExtractor.compare(srcFolder, srcFolder.getName(), 20).summary());
     }
 
     @Test
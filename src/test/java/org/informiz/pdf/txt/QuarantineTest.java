@@ -0,0 +1,99 @@
+package org.informiz.pdf.txt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.informiz.pdf.txt.PdfFixtures.writePdf;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QuarantineTest {
+
+    @Test
+    void carriesOnPastCorruptDocuments(@TempDir Path folder) throws IOException {
+        File srcFolder = folder.resolve("docs").toFile();
+        assertTrue(srcFolder.mkdir());
+        writePdf(new File(srcFolder, "good.pdf"), 1);
+        Files.writeString(srcFolder.toPath().resolve("corrupt.pdf"), "BAD, not a PDF file");
+
+        File quarantineFolder = folder.resolve("quarantine").toFile();
+        Set<String> pages = ConcurrentHashMap.newKeySet();
+        try (Quarantine quarantine = Quarantine.open(quarantineFolder)) {
+            long numPages = new ExtractionEngine(2, Utils.ExtractionMode.SINGLE_PASS).withQuarantine(quarantine)
+                    .process(srcFolder, srcFolder.getName(), page -> pages.add(page.fileName()));
+            assertEquals(1, numPages);
+            assertEquals(Set.of("good.pdf_page1.pdf.txt"), pages);
+            assertEquals(1, quarantine.getFailed());
+        }
+        assertTrue(new File(quarantineFolder, "corrupt.pdf").isFile());
+        List<String> failures = Files.readAllLines(quarantineFolder.toPath().resolve(Quarantine.FAILURES_LOG),
+                StandardCharsets.UTF_8);
+        assertEquals(1, failures.size());
+        assertEquals("corrupt.pdf", failures.get(0).split("\t")[1]);
+
+        // Skipped by the next run, unless it changes
+        try (Quarantine quarantine = Quarantine.open(quarantineFolder)) {
+            new ExtractionEngine(2, Utils.ExtractionMode.SINGLE_PASS).withQuarantine(quarantine)
+                    .process(srcFolder, srcFolder.getName(), page -> { });
+            assertEquals(0, quarantine.getFailed());
+            assertEquals(1, quarantine.getSkipped());
+        }
+    }
+
+    @Test
+    void replacesStuckWorkers(@TempDir Path folder) throws Exception {
+        File srcFolder = folder.resolve("docs").toFile();
+        assertTrue(srcFolder.mkdir());
+        writePdf(new File(srcFolder, "good.pdf"), 1);
+        writePdf(new File(srcFolder, "stuck.pdf"), 2);
+
+        // The first page of stuck.pdf blocks its worker past the document timeout
+        CountDownLatch unblock = new CountDownLatch(1);
+        AtomicReference<Thread> stuckWorker = new AtomicReference<>();
+        Set<String> pages = ConcurrentHashMap.newKeySet();
+        File quarantineFolder = folder.resolve("quarantine").toFile();
+        try (Watchdog watchdog = Watchdog.start(0, 1);
+             Quarantine quarantine = Quarantine.open(quarantineFolder)) {
+            assertFalse(quarantineFolder.exists());
+            new ExtractionEngine(1, Utils.ExtractionMode.SINGLE_PASS).withQuarantine(quarantine)
+                    .process(srcFolder, srcFolder.getName(), page -> {
+                        pages.add(page.fileName());
+                        if (page.fileName().equals("stuck.pdf_page1.pdf.txt")) {
+                            stuckWorker.set(Thread.currentThread());
+                            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+                            while (unblock.getCount() > 0 && System.nanoTime() < deadline) {
+                                try {
+                                    unblock.await(1, TimeUnit.SECONDS);
+                                } catch (InterruptedException e) {
+                                    // stays stuck when the engine shuts its workers down
+                                }
+                            }
+                        }
+                    });
+            // The run finished with another worker, while the stuck one is still blocked
+            assertTrue(stuckWorker.get().isAlive());
+            assertEquals(Set.of("good.pdf_page1.pdf.txt", "stuck.pdf_page1.pdf.txt"), pages);
+            assertTrue(quarantine.hasFailed("stuck.pdf"));
+
+            unblock.countDown();
+            stuckWorker.get().join(TimeUnit.SECONDS.toMillis(30));
+            // The page extracted after the timeout is discarded
+            assertEquals(Set.of("good.pdf_page1.pdf.txt", "stuck.pdf_page1.pdf.txt"), pages);
+            assertEquals(1, quarantine.getFailed());
+        }
+        assertTrue(new File(quarantineFolder, "stuck.pdf").isFile());
+    }
+}
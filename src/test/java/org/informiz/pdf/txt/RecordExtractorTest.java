@@ -0,0 +1,42 @@
+package org.informiz.pdf.txt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RecordExtractorTest {
+
+    @Test
+    void parsesSupportedDateFormats() {
+        assertEquals(List.of("2020-10-20"), DateExtractor.parse("Tue, 20 Oct 2020 13:44:57 +0000"));
+        assertEquals(List.of("1999-10-19"), DateExtractor.parse("10/19/99"));
+        assertEquals(List.of("2019-10-01"), DateExtractor.parse("October 2019,"));
+        assertEquals(List.of("2003-01-02", "2006-04-05"), DateExtractor.parse("from 1/2/03 to 4/5/2006"));
+        assertEquals(List.of(), DateExtractor.parse("last Tuesday"));
+    }
+
+    @Test
+    void findsDatesAndNames() {
+        Gazetteer gazetteer = new Gazetteer.Builder()
+                .add(Gazetteer.EntityType.PLACES, "New York", "New York")
+                .add(Gazetteer.EntityType.PLACES, "NYC", "New York")
+                .add(Gazetteer.EntityType.PLACES, "York", "York")
+                .add(Gazetteer.EntityType.ORGS, "FBI", "FBI")
+                .build();
+        String text = "On Apr 19, 2023, at 3:46 PM the \"FBI\" met in NYC,\nthen in new york (ref FBIX-1234).";
+
+        Map<String, Object> record = new RecordExtractor(gazetteer).toRecord(new TextPage("dir_0001.pdf", 7, text));
+
+        assertEquals("dir_0001", record.get("origFile"));
+        assertEquals(7, record.get("page"));
+        assertEquals(Set.of("2023-04-19"), record.get("dates"));
+        assertEquals(Set.of("New York"), record.get("places"));
+        assertEquals(Set.of("FBI"), record.get("orgs"));
+        assertEquals(Set.of(), record.get("people"));
+        assertEquals(text.replace('"', '\'').replace("\n", "    "), record.get("txt"));
+    }
+}
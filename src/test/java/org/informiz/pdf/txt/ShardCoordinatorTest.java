@@ -0,0 +1,134 @@
+package org.informiz.pdf.txt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.informiz.pdf.txt.PdfFixtures.writePdf;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardCoordinatorTest {
+
+    @Test
+    void sharesPageRangesBetweenThreads(@TempDir Path folder) throws IOException {
+        File srcFolder = createDocs(folder, 3, 7);
+        File shared = folder.resolve("shared").toFile();
+        Set<String> pages = ConcurrentHashMap.newKeySet();
+
+        // Each engine has its own coordinator, like separate processes, but they share the JVM (see
+        // sharesDocumentsBetweenProcesses)
+        List<CompletableFuture<Long>> runs = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            runs.add(CompletableFuture.supplyAsync(() -> {
+                try (ShardCoordinator coordinator = ShardCoordinator.open(shared, 60)) {
+                    return new ExtractionEngine(2, Utils.ExtractionMode.SINGLE_PASS, 2).withCoordinator(coordinator)
+                            .process(srcFolder, srcFolder.getName(), page -> pages.add(page.fileName()));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        long numPages = 0;
+        for (CompletableFuture<Long> run : runs)
+            numPages += run.join();
+
+        // Every page-range was extracted exactly once
+        assertEquals(21, numPages);
+        assertEquals(21, pages.size());
+        try (ShardCoordinator coordinator = ShardCoordinator.open(shared, 60)) {
+            for (File pdfFile : srcFolder.listFiles())
+                assertTrue(coordinator.isDone(pdfFile, pdfFile.getName()));
+        }
+    }
+
+    @Test
+    void sharesDocumentsBetweenProcesses(@TempDir Path folder) throws IOException, InterruptedException {
+        File srcFolder = createDocs(folder, 4, 3);
+        File shared = folder.resolve("shared").toFile();
+
+        // Separate JVMs, each writing the text-pages into its own working directory
+        List<Process> processes = new ArrayList<>();
+        for (int i = 1; i <= 2; i++) {
+            File workDir = folder.resolve("worker" + i).toFile();
+            assertTrue(workDir.mkdir());
+            processes.add(new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"), PdfDocumentService.class.getName(),
+                    srcFolder.getAbsolutePath(), "--coordinate=" + shared.getAbsolutePath(), "--workers=2")
+                    .directory(workDir).redirectErrorStream(true)
+                    .redirectOutput(new File(workDir, "output.log")).start());
+        }
+        for (Process process : processes) {
+            assertTrue(process.waitFor(2, TimeUnit.MINUTES));
+            assertEquals(0, process.exitValue());
+        }
+
+        // Every document was extracted by exactly one of the processes
+        List<String> pages = new ArrayList<>();
+        for (int i = 1; i <= 2; i++) {
+            File pagesFolder = folder.resolve("worker" + i).resolve("text_pages").toFile();
+            if (pagesFolder.isDirectory()) {
+                try (Stream<Path> files = Files.list(pagesFolder.toPath())) {
+                    files.forEach(file -> pages.add(file.getFileName().toString()));
+                }
+            }
+        }
+        assertEquals(12, pages.size());
+        assertEquals(12, Set.copyOf(pages).size());
+        try (ShardCoordinator coordinator = ShardCoordinator.open(shared, 60)) {
+            for (File pdfFile : srcFolder.listFiles())
+                assertTrue(coordinator.isDone(pdfFile, pdfFile.getName()));
+        }
+    }
+
+    @Test
+    void reclaimsTheLeasesOfDeadProcesses(@TempDir Path folder) throws IOException {
+        File srcFolder = createDocs(folder, 1, 5);
+        File pdfFile = srcFolder.listFiles()[0];
+        File shared = folder.resolve("shared").toFile();
+
+        try (ShardCoordinator coordinator = ShardCoordinator.open(shared, 1)) {
+            ShardCoordinator.Plan plan = coordinator.plan(pdfFile, pdfFile.getName(), 2);
+            assertEquals(3, plan.ranges());
+
+            // A lease of a process that stopped renewing it
+            ShardCoordinator.Lease lease = coordinator.claim(pdfFile, pdfFile.getName(), plan, 0);
+            assertNotNull(lease);
+            coordinator.release(lease);
+            Files.writeString(lease.file(), "dead-worker", StandardCharsets.UTF_8);
+
+            assertNull(coordinator.claim(pdfFile, pdfFile.getName(), plan, 0));
+            assertEquals(1, coordinator.busyElsewhere());
+
+            assertTrue(lease.file().toFile().setLastModified(System.currentTimeMillis() - 5000));
+            Set<String> pages = ConcurrentHashMap.newKeySet();
+            long numPages = new ExtractionEngine(2, Utils.ExtractionMode.SINGLE_PASS, 2).withCoordinator(coordinator)
+                    .process(srcFolder, srcFolder.getName(), page -> pages.add(page.fileName()));
+            assertEquals(5, numPages);
+            assertEquals(5, pages.size());
+            assertTrue(coordinator.isDone(pdfFile, pdfFile.getName()));
+        }
+    }
+
+    private static File createDocs(Path folder, int numDocs, int numPages) throws IOException {
+        File srcFolder = folder.resolve("docs").toFile();
+        assertTrue(srcFolder.mkdir());
+        for (int doc = 1; doc <= numDocs; doc++)
+            writePdf(new File(srcFolder, "doc" + doc + ".pdf"), numPages);
+        return srcFolder;
+    }
+}